@@ -21,11 +21,23 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.RestrictionsManager;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.DomainRealmMap;
+import com.google.android.apps.work.kerberosauthenticator.internal.KdcDiscovery;
 import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosConfig;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.common.base.Splitter;
+import com.google.common.base.Ascii;
 import com.google.common.base.Strings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class obtains and updates Kerberos account details from managed restrictions.
@@ -36,6 +48,11 @@ import com.google.common.base.Strings;
  * <p>A DPC can set account details in managed restrictions and this is the only way through which
  * the Kerberos Authenticator will obtain credentials to generate tickets. Users cannot add their
  * own authentication credentials.
+ *
+ * <p>Besides the primary account, which Chrome uses, further accounts may be configured for users
+ * who also have an identity in other domains, e.g. in another forest. Requests for a host are
+ * served with the account of the realm the host belongs to: see {@link
+ * #getAccountDetailsForHost}.
  */
 public class AccountConfiguration {
 
@@ -45,23 +62,51 @@ public class AccountConfiguration {
   static final String USERNAME_KEY = "username";
   static final String PASSWORD_KEY = "password";
   static final String SENSITIVE_DEBUG_DATA_KEY = "sensitiveDebugData";
+  static final String BACKGROUND_SERVICE_TICKETS_KEY = "backgroundServiceTickets";
+  static final String DISCOVER_DOMAIN_CONTROLLERS_KEY = "discoverDomainControllers";
+  static final String PREFETCH_SERVICES_KEY = "prefetchServices";
+  // Bundle array of further accounts, each with the username, password, adDomain and adController
+  // keys above.
+  static final String ADDITIONAL_ACCOUNTS_KEY = "additionalAccounts";
+  // Host name to realm mappings, such as ".example.com = EXAMPLE.COM", separated by commas or new
+  // lines.
+  static final String DOMAIN_REALMS_KEY = "domainRealms";
+
+  private static AccountConfiguration instance;
+
+  // The application context the receiver is registered with.
+  private final Context context;
   // Managed configuration
   private final RestrictionsManager restrictionsManager;
   private final ManagedConfigsBroadcastReceiver restrictionsReceiver;
-  // Manage configs fields
-  private String username;
-  private String password;
-  private String adDomain;
-  private String adController;
-  private boolean debugWithSensitiveData = false;
+  // Replaced as a whole when the managed configuration changes, so that readers never see half
+  // of an update.
+  private volatile ManagedConfigs managedConfigs;
+
+  /**
+   * Returns the configuration shared by the whole process. The managed configuration is only
+   * read from the {@link RestrictionsManager} the first time, and again whenever it changes:
+   * reading the returned configuration makes no binder call.
+   */
+  static synchronized AccountConfiguration getInstance(@NonNull Context context) {
+    Context applicationContext = context.getApplicationContext();
+    // The application context is the same for the lifetime of the process, except in tests.
+    if (instance == null || instance.context != applicationContext) {
+      instance = new AccountConfiguration(applicationContext);
+    }
+    return instance;
+  }
 
+  @VisibleForTesting
   AccountConfiguration(@NonNull Context context) {
+    this.context = context;
     // Managed configs initialisation and listener definition
     restrictionsManager = (RestrictionsManager) context.getSystemService(
         Context.RESTRICTIONS_SERVICE);
     IntentFilter restrictionsFilter =
         new IntentFilter(Intent.ACTION_APPLICATION_RESTRICTIONS_CHANGED);
     restrictionsReceiver = new ManagedConfigsBroadcastReceiver();
+    // Never unregistered: the configuration lives as long as the process.
     context.registerReceiver(restrictionsReceiver, restrictionsFilter);
     setManagedConfigs();
   }
@@ -71,31 +116,119 @@ public class AccountConfiguration {
     if (restrictionsBundle == null) {
       restrictionsBundle = new Bundle();
     }
-    // Obtain managed configs.
-    if (restrictionsBundle.containsKey(AD_DOMAIN_KEY)
-        && restrictionsBundle.containsKey(AD_CONTROLLER_KEY)
-        && restrictionsBundle.containsKey(USERNAME_KEY)) {
-      adDomain = restrictionsBundle.getString(AD_DOMAIN_KEY);
-      adController = restrictionsBundle.getString(AD_CONTROLLER_KEY);
-      username = restrictionsBundle.getString(USERNAME_KEY);
+    managedConfigs = new ManagedConfigs(restrictionsBundle);
+    KdcDiscovery.getInstance().setEnabled(managedConfigs.discoverDomainControllers);
+    // Requests referred to the realm of an account use its domain controllers.
+    Map<String, List<String>> realmKdcs = new HashMap<>();
+    for (Map.Entry<String, KerberosAccountDetails> account :
+        managedConfigs.accountsByRealm.entrySet()) {
+      List<String> kdcs =
+          KerberosContext.parseKdcs(account.getValue().getAdDomainController());
+      if (!kdcs.isEmpty()) {
+        realmKdcs.put(account.getKey(), kdcs);
+      }
     }
-    if (restrictionsBundle.containsKey(PASSWORD_KEY)) {
-      // Password may either be supplied by managed config or user input.
-      password = restrictionsBundle.getString(PASSWORD_KEY);
+    KerberosConfig kerberosConfig = KerberosConfig.getInstance();
+    kerberosConfig.setConfiguredKdcs(realmKdcs);
+    kerberosConfig.setDebug(managedConfigs.debugWithSensitiveData);
+  }
+
+  /** Returns the details of the primary account, or null if it is not configured. */
+  KerberosAccountDetails getAccountDetails() {
+    ManagedConfigs configs = managedConfigs;
+    if (!hasManagedConfigs(configs)) {
+      return null;
     }
+    return configs.primaryAccount;
+  }
 
-    debugWithSensitiveData = restrictionsBundle.getBoolean(SENSITIVE_DEBUG_DATA_KEY, false);
+  /**
+   * Returns the details of the configured account with the given username, or null if there is
+   * none.
+   */
+  KerberosAccountDetails getAccountDetails(String username) {
+    ManagedConfigs configs = managedConfigs;
+    if (!hasManagedConfigs(configs)) {
+      return null;
+    }
+    return configs.accountsByName.get(username);
   }
 
-  KerberosAccountDetails getAccountDetails() {
-    if (!hasManagedConfigs()) {
+  /** Returns the details of every configured account, the primary account first. */
+  List<KerberosAccountDetails> getAllAccountDetails() {
+    ManagedConfigs configs = managedConfigs;
+    if (!hasManagedConfigs(configs)) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(configs.accounts);
+  }
+
+  /**
+   * Returns the details of the account to authenticate to the given host with: the account of
+   * the realm the host belongs to, or the primary account if there is none.
+   *
+   * @return the account, or null if no account is configured.
+   */
+  KerberosAccountDetails getAccountDetailsForHost(String host) {
+    ManagedConfigs configs = managedConfigs;
+    if (!hasManagedConfigs(configs)) {
+      return null;
+    }
+    String realm = configs.domainRealms.getRealm(host);
+    KerberosAccountDetails details =
+        realm != null ? configs.accountsByRealm.get(Ascii.toUpperCase(realm)) : null;
+    return details != null ? details : configs.primaryAccount;
+  }
+
+  /**
+   * Returns the realm of the given host, from the configured domain to realm mappings or else
+   * from the domains of the accounts, or null if it is not known.
+   */
+  String getRealmForHost(String host) {
+    ManagedConfigs configs = managedConfigs;
+    if (!hasManagedConfigs(configs)) {
       return null;
     }
-    return new KerberosAccountDetails(username, password, adDomain, adController);
+    return configs.domainRealms.getRealm(host);
+  }
+
+  /**
+   * Whether the given username is that of an additional account, rather than of the primary
+   * account.
+   */
+  boolean isAdditionalAccount(String username) {
+    ManagedConfigs configs = managedConfigs;
+    return hasManagedConfigs(configs)
+        && configs.accountsByName.containsKey(username)
+        && !username.equals(configs.username);
   }
 
   boolean getDebugWithSensitiveData() {
-    return debugWithSensitiveData;
+    return managedConfigs.debugWithSensitiveData;
+  }
+
+  /**
+   * Whether service tickets should be obtained in the background, without showing the service
+   * ticket activity, when the account already has a valid ticket-granting-ticket.
+   */
+  boolean getBackgroundServiceTickets() {
+    return managedConfigs.backgroundServiceTickets;
+  }
+
+  /**
+   * Whether the domain controllers are discovered through the DNS SRV records of the domain when
+   * none is configured.
+   */
+  boolean getDiscoverDomainControllers() {
+    return managedConfigs.discoverDomainControllers;
+  }
+
+  /**
+   * Host names of the services to obtain service tickets for as soon as a ticket-granting-ticket
+   * is obtained.
+   */
+  List<String> getPrefetchServices() {
+    return managedConfigs.prefetchServices;
   }
 
   @VisibleForTesting
@@ -103,15 +236,17 @@ public class AccountConfiguration {
     return restrictionsReceiver;
   }
 
-  void unregisterReceiver(@NonNull Context context) {
-    context.unregisterReceiver(restrictionsReceiver);
+  boolean hasManagedConfigs() {
+    return hasManagedConfigs(managedConfigs);
   }
 
-  boolean hasManagedConfigs() {
+  private static boolean hasManagedConfigs(ManagedConfigs configs) {
     // If any restriction string is empty, the configs are assumed to be missing.
-    boolean emptyUsername = Strings.isNullOrEmpty(username);
-    boolean emptyDomain = Strings.isNullOrEmpty(adDomain);
-    boolean emptyDomainController = Strings.isNullOrEmpty(adController);
+    boolean emptyUsername = Strings.isNullOrEmpty(configs.username);
+    boolean emptyDomain = Strings.isNullOrEmpty(configs.adDomain);
+    // Without a domain controller, the configuration is only complete if it can be discovered.
+    boolean emptyDomainController =
+        Strings.isNullOrEmpty(configs.adController) && !configs.discoverDomainControllers;
     boolean hasManagedConfigs = !(emptyUsername || emptyDomain || emptyDomainController);
     if (!hasManagedConfigs) {
       Log.d(
@@ -125,7 +260,7 @@ public class AccountConfiguration {
   }
 
   boolean hasManagedConfigPassword() {
-    return !Strings.isNullOrEmpty(password);
+    return !Strings.isNullOrEmpty(managedConfigs.password);
   }
 
   class ManagedConfigsBroadcastReceiver extends BroadcastReceiver {
@@ -135,4 +270,106 @@ public class AccountConfiguration {
       setManagedConfigs();
     }
   }
+
+  /** The managed configs, as read at one point in time. */
+  private static final class ManagedConfigs {
+    private final String username;
+    private final String password;
+    private final String adDomain;
+    private final String adController;
+    private final boolean debugWithSensitiveData;
+    private final boolean backgroundServiceTickets;
+    private final boolean discoverDomainControllers;
+    private final List<String> prefetchServices;
+    // The primary account first, then the additional ones, indexed by username and by realm.
+    private final KerberosAccountDetails primaryAccount;
+    private final List<KerberosAccountDetails> accounts = new ArrayList<>();
+    private final Map<String, KerberosAccountDetails> accountsByName = new HashMap<>();
+    private final Map<String, KerberosAccountDetails> accountsByRealm = new HashMap<>();
+    // The configured mappings, then those of the accounts' domains to their realms.
+    private final DomainRealmMap domainRealms;
+
+    ManagedConfigs(Bundle restrictionsBundle) {
+      // Obtain managed configs.
+      if (restrictionsBundle.containsKey(AD_DOMAIN_KEY)
+          && restrictionsBundle.containsKey(USERNAME_KEY)) {
+        adDomain = restrictionsBundle.getString(AD_DOMAIN_KEY);
+        // May be left out if domain controllers are discovered.
+        adController = restrictionsBundle.getString(AD_CONTROLLER_KEY, "");
+        username = restrictionsBundle.getString(USERNAME_KEY);
+      } else {
+        adDomain = null;
+        adController = null;
+        username = null;
+      }
+      // Password may either be supplied by managed config or user input.
+      password = restrictionsBundle.getString(PASSWORD_KEY);
+
+      debugWithSensitiveData = restrictionsBundle.getBoolean(SENSITIVE_DEBUG_DATA_KEY, false);
+      backgroundServiceTickets =
+          restrictionsBundle.getBoolean(BACKGROUND_SERVICE_TICKETS_KEY, false);
+      discoverDomainControllers =
+          restrictionsBundle.getBoolean(DISCOVER_DOMAIN_CONTROLLERS_KEY, false);
+      prefetchServices =
+          Splitter.on(',')
+              .trimResults()
+              .omitEmptyStrings()
+              .splitToList(
+                  Strings.nullToEmpty(restrictionsBundle.getString(PREFETCH_SERVICES_KEY)));
+
+      domainRealms = DomainRealmMap.parse(restrictionsBundle.getString(DOMAIN_REALMS_KEY));
+      primaryAccount = new KerberosAccountDetails(username, password, adDomain, adController);
+      addAccount(primaryAccount);
+      Parcelable[] additionalAccounts =
+          restrictionsBundle.getParcelableArray(ADDITIONAL_ACCOUNTS_KEY);
+      if (additionalAccounts != null) {
+        for (Parcelable additionalAccount : additionalAccounts) {
+          addAccount((Bundle) additionalAccount);
+        }
+      }
+    }
+
+    private void addAccount(Bundle accountBundle) {
+      KerberosAccountDetails details =
+          new KerberosAccountDetails(
+              accountBundle.getString(USERNAME_KEY),
+              accountBundle.getString(PASSWORD_KEY),
+              accountBundle.getString(AD_DOMAIN_KEY),
+              accountBundle.getString(AD_CONTROLLER_KEY, ""));
+      boolean complete =
+          !Strings.isNullOrEmpty(details.getUsername())
+              && !Strings.isNullOrEmpty(details.getActiveDirectoryDomain())
+              && (!details.getAdDomainController().isEmpty() || discoverDomainControllers);
+      if (!complete) {
+        Log.w(
+            Constants.TAG,
+            String.format(
+                "Ignoring incomplete additional account %s in domain %s.",
+                details.getUsername(), details.getActiveDirectoryDomain()));
+        return;
+      }
+      if (accountsByName.containsKey(details.getUsername())) {
+        Log.w(
+            Constants.TAG,
+            String.format("Ignoring duplicate account %s.", details.getUsername()));
+        return;
+      }
+      addAccount(details);
+    }
+
+    private void addAccount(KerberosAccountDetails details) {
+      if (Strings.isNullOrEmpty(details.getUsername())
+          || Strings.isNullOrEmpty(details.getActiveDirectoryDomain())) {
+        return;
+      }
+      accounts.add(details);
+      accountsByName.put(details.getUsername(), details);
+      // The first account configured for a realm serves it.
+      String domain = details.getActiveDirectoryDomain();
+      String realm = Ascii.toUpperCase(domain);
+      accountsByRealm.putIfAbsent(realm, details);
+      domainRealms.putIfAbsent("." + domain, realm);
+      domainRealms.putIfAbsent(domain, realm);
+    }
+  }
 }
@@ -29,8 +29,11 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
+import com.google.android.apps.work.kerberosauthenticator.internal.KdcDiscovery;
 import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
 import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.KeyTabFiles;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.ServiceTicketCache;
 import java.text.DateFormat;
 import java.util.Date;
 
@@ -42,8 +45,11 @@ public class BaseAuthenticatorActivity extends AccountAuthenticatorActivity {
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.authenticator);
-    accountConfiguration = new AccountConfiguration(getApplicationContext());
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    accountConfiguration = AccountConfiguration.getInstance(this);
+    KdcDiscovery.getInstance().initialize(this);
+    ServiceTicketCache.getInstance().initialize(this);
+    KeyTabFiles.getInstance().initialize(this);
+    KerberosAccount account = getKerberosAccount();
     if (account == null) {
       // The account could be removed programmatically by calling KerberosAccount.remove()
       // or manually in Account Manager. For the second option we will only know the account is
@@ -53,18 +59,10 @@ public class BaseAuthenticatorActivity extends AccountAuthenticatorActivity {
     }
   }
 
-  @Override
-  protected void onDestroy() {
-    super.onDestroy();
-    if (accountConfiguration != null) {
-      accountConfiguration.unregisterReceiver(getApplicationContext());
-    }
-  }
-
   /** UI Helper methods. */
   protected void showAccountInfo() {
-    if (accountConfiguration.hasManagedConfigs()) {
-      KerberosAccountDetails accountDetails = accountConfiguration.getAccountDetails();
+    KerberosAccountDetails accountDetails = getAccountDetails();
+    if (accountDetails != null) {
       ((TextView) findViewById(R.id.subtitle))
           .setText(
               getResources()
@@ -75,6 +73,33 @@ public class BaseAuthenticatorActivity extends AccountAuthenticatorActivity {
     }
   }
 
+  /**
+   * Returns the name of the account this activity is for: the account named in the intent, or
+   * the primary account if the intent names none.
+   *
+   * @return the name, or null if no account is configured.
+   */
+  String getAccountName() {
+    String accountName = getIntent().getStringExtra(AccountManager.KEY_ACCOUNT_NAME);
+    if (accountName != null) {
+      return accountName;
+    }
+    KerberosAccountDetails primaryAccount = accountConfiguration.getAccountDetails();
+    return primaryAccount != null ? primaryAccount.getUsername() : null;
+  }
+
+  /** Returns the configured details of the account this activity is for, or null if none. */
+  KerberosAccountDetails getAccountDetails() {
+    String accountName = getAccountName();
+    return accountName != null ? accountConfiguration.getAccountDetails(accountName) : null;
+  }
+
+  /** Returns the stored account this activity is for, or null if none. */
+  KerberosAccount getKerberosAccount() {
+    String accountName = getAccountName();
+    return accountName != null ? KerberosAccount.getAccount(this, accountName) : null;
+  }
+
   void initUI(boolean isUserInitiated, String serviceName) {
     showAccountInfo();
     showTGTInfo();
@@ -84,7 +109,7 @@ public class BaseAuthenticatorActivity extends AccountAuthenticatorActivity {
     int tgtTimestampViewId = getTGTTimestampTextViewId();
     int serviceTicketTimestampViewId = getServiceTimestampTextviewId();
 
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    KerberosAccount account = getKerberosAccount();
     if (isUserInitiated) {
       // The call is user initiated so get most recent status from account manager.
       if (account != null) {
@@ -114,15 +139,14 @@ public class BaseAuthenticatorActivity extends AccountAuthenticatorActivity {
   }
 
   private void showTGTInfo() {
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    KerberosAccount account = getKerberosAccount();
     if (account == null) {
       // No account, no TGT info to display.
       return;
     }
 
     // Is there a valid TGT to display?
-    TicketGrantingTicket tgt = TicketGrantingTicket.fromSerializedSubject(
-        account.getTicketGrantingTicket());
+    TicketGrantingTicket tgt = account.getDecodedTicketGrantingTicket();
     if (tgt == null) {
       // Do not change UI.
       return;
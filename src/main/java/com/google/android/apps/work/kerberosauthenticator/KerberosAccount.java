@@ -20,6 +20,7 @@ import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
 import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
@@ -28,16 +29,73 @@ import android.util.Base64;
 import android.util.Log;
 import com.google.android.apps.work.kerberosauthenticator.BaseAuthenticatorActivity.ServiceTicketInfo;
 import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.CrossRealmTicketCache;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.ServiceTicketCache;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Kerberos account functionality. */
+/**
+ * Kerberos account functionality. Several accounts may be stored, e.g. for identities in
+ * different forests; each holds its own TGT.
+ */
 public class KerberosAccount {
   @VisibleForTesting static final String KEY_AD_DOMAIN = "ad_domain";
   @VisibleForTesting static final String KEY_AD_DC = "domain_controller";
   @VisibleForTesting static final String KEY_TGT = "ticket_granting_ticket";
 
+  // Versions identify the contents of a TGT: every TGT set on an account gets a new version, and
+  // storedTgtVersions holds, per account name, the version of the TGT held by the AccountManager.
+  private static final AtomicLong nextTgtVersion = new AtomicLong();
+  private static final Map<String, Long> storedTgtVersions = new HashMap<>();
+  // The application whose AccountManager holds the TGTs storedTgtVersions refers to.
+  private static Context tgtStoreContext = null;
+  // The most recently decoded TGT of each account, so that it is only deserialized again once it
+  // changed.
+  private static final Map<String, DecodedTicketGrantingTicket> decodedTgts =
+      new ConcurrentHashMap<>();
+  // What the AccountManager of tgtStoreContext holds, by account name, mirrored so that reading
+  // an account makes no binder call, or null if it must be read again. Accounts are only written
+  // through this class, which keeps the mirror up to date; accounts added or removed otherwise,
+  // e.g. from the settings, are noticed by the accountsListener.
+  private static Map<String, StoredAccount> storedAccounts = null;
+  // Writes the changes made by save() in the background, one after the other.
+  private static final ExecutorService accountWriter =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "Kerberos account"));
+  // Per account name, the account as it is to be written by the accountWriter, and as it was last
+  // written. Accounts without a pending write have no entry.
+  private static final Map<String, StoredAccount> pendingWrites = new HashMap<>();
+  private static final Map<String, StoredAccount> writtenAccounts = new HashMap<>();
+  // Per account name, the account the accountWriter is writing right now.
+  private static final Map<String, StoredAccount> inFlightWrites = new HashMap<>();
+  // Whether the accounts changed elsewhere while writes were outstanding: the mirror is then read
+  // again once they are all written, as reading it earlier would miss them.
+  private static boolean storedAccountsStale = false;
+  private static final OnAccountsUpdateListener accountsListener =
+      accounts -> {
+        synchronized (KerberosAccount.class) {
+          if (pendingWrites.isEmpty() && inFlightWrites.isEmpty()) {
+            storedAccounts = null;
+          } else {
+            storedAccountsStale = true;
+          }
+        }
+      };
+
   private final String name;
   private final String password;
   private final Bundle userData = new Bundle();
+  private long tgtVersion;
 
   KerberosAccount(String name, String password, String adDomain, String domainController) {
     this(name, password, adDomain, domainController, "");
@@ -50,6 +108,7 @@ public class KerberosAccount {
     userData.putString(KEY_AD_DOMAIN, adDomain);
     userData.putString(KEY_AD_DC, domainController);
     userData.putString(KEY_TGT, base64Tgt);
+    this.tgtVersion = nextTgtVersion.incrementAndGet();
   }
 
   KerberosAccount(KerberosAccountDetails accountDetails) {
@@ -60,37 +119,107 @@ public class KerberosAccount {
         accountDetails.getAdDomainController());
   }
 
-  static void removeAccount(Context context) {
+  /**
+   * Removes the account with the given name, along with its service tickets and its scheduled
+   * renewal.
+   */
+  static void removeAccount(Context context, String name) {
     AccountManager am = AccountManager.get(context);
-    Account[] accounts = am.getAccountsByType(KERBEROS_ACCOUNT_TYPE);
-    if (accounts.length > 0) {
-      am.removeAccountExplicitly(accounts[0]);
+    StoredAccount removed;
+    synchronized (KerberosAccount.class) {
+      useTgtStore(context);
+      removed = getStoredAccounts(am).remove(name);
+      storedTgtVersions.remove(name);
+      decodedTgts.remove(name);
+      pendingWrites.remove(name);
+      writtenAccounts.remove(name);
+      inFlightWrites.remove(name);
     }
+    am.removeAccountExplicitly(new Account(name, KERBEROS_ACCOUNT_TYPE));
+    if (removed != null && removed.adDomain != null) {
+      String clientPrincipal =
+          KerberosContext.forDomain(removed.adDomain, "", null, false).qualifyPrincipal(name);
+      ServiceTicketCache.getInstance().clearClient(clientPrincipal);
+      CrossRealmTicketCache.getInstance().clearClient(clientPrincipal);
+    }
+    TicketRenewalJobService.cancelRenewal(context, name);
     ServiceTicketInfo.clearServiceTicketInfo(
         context.getSharedPreferences(Constants.PREFERENCE_NAME, Activity.MODE_PRIVATE));
   }
 
   /**
-   * Returns the Kerberos account currently configured in the AccountMAnager.
-   * @return the account, or null if none is configured.
-   * @throws IllegalStateException if more than one account is configured.
+   * Returns the Kerberos account with the given name from the AccountManager. The accounts are
+   * only read from the AccountManager the first time and after accounts were added or removed
+   * outside of this class; after that, looking an account up is a map lookup.
+   *
+   * @return the account, or null if there is no account with that name.
    */
-  static KerberosAccount getAccount(Context context) {
-    AccountManager am = AccountManager.get(context);
-    Account[] accounts = am.getAccountsByType(KERBEROS_ACCOUNT_TYPE);
-    if (accounts.length > 1) {
-      throw new IllegalStateException(
-          "More than one Kerberos account available in the Account Manager");
-    } else if (accounts.length < 1) {
-      // Indicate there's no account.
-      return null;
-    }
-    Account account = accounts[0];
-    String password = am.getPassword(account);
-    String adDomain = am.getUserData(account, KEY_AD_DOMAIN);
-    String domainController = am.getUserData(account, KEY_AD_DC);
-    String base64Tgt = am.getUserData(account, KEY_TGT);
-    return new KerberosAccount(account.name, password, adDomain, domainController, base64Tgt);
+  static KerberosAccount getAccount(Context context, String name) {
+    synchronized (KerberosAccount.class) {
+      useTgtStore(context);
+      StoredAccount stored = getStoredAccounts(AccountManager.get(context)).get(name);
+      return stored != null ? makeAccount(stored) : null;
+    }
+  }
+
+  /** Returns every Kerberos account in the AccountManager. */
+  static List<KerberosAccount> getAccounts(Context context) {
+    synchronized (KerberosAccount.class) {
+      useTgtStore(context);
+      List<KerberosAccount> accounts = new ArrayList<>();
+      for (StoredAccount stored : getStoredAccounts(AccountManager.get(context)).values()) {
+        accounts.add(makeAccount(stored));
+      }
+      return accounts;
+    }
+  }
+
+  // Must be called with the class lock held.
+  private static KerberosAccount makeAccount(StoredAccount stored) {
+    KerberosAccount krbAccount =
+        new KerberosAccount(
+            stored.name,
+            stored.password,
+            stored.adDomain,
+            stored.domainController,
+            stored.base64Tgt);
+    Long version = storedTgtVersions.get(stored.name);
+    if (version == null) {
+      storedTgtVersions.put(stored.name, krbAccount.tgtVersion);
+    } else {
+      krbAccount.tgtVersion = version;
+    }
+    return krbAccount;
+  }
+
+  private static Map<String, StoredAccount> readStoredAccounts(AccountManager am) {
+    Map<String, StoredAccount> accounts = new LinkedHashMap<>();
+    for (Account account : am.getAccountsByType(KERBEROS_ACCOUNT_TYPE)) {
+      accounts.put(
+          account.name,
+          new StoredAccount(
+              account.name,
+              am.getPassword(account),
+              am.getUserData(account, KEY_AD_DOMAIN),
+              am.getUserData(account, KEY_AD_DC),
+              am.getUserData(account, KEY_TGT)));
+    }
+    return accounts;
+  }
+
+  // Starts tracking TGT versions, and mirroring the accounts, afresh when the accounts are held by
+  // another application's AccountManager. Must be called with the class lock held.
+  private static void useTgtStore(Context context) {
+    Context applicationContext = context.getApplicationContext();
+    if (applicationContext != tgtStoreContext) {
+      tgtStoreContext = applicationContext;
+      storedTgtVersions.clear();
+      decodedTgts.clear();
+      storedAccounts = null;
+      AccountManager.get(applicationContext)
+          .addOnAccountsUpdatedListener(
+              accountsListener, null /* main thread */, false /* updateImmediately */);
+    }
   }
 
   public String getName() {
@@ -103,53 +232,164 @@ public class KerberosAccount {
 
   void setTicketGrantingTicket(byte[] tgt) {
     userData.putString(KEY_TGT, Base64.encodeToString(tgt, Base64.NO_WRAP));
+    tgtVersion = nextTgtVersion.incrementAndGet();
+  }
+
+  /** Sets the TGT, keeping the decoded ticket for {@link #getDecodedTicketGrantingTicket()}. */
+  void setTicketGrantingTicket(TicketGrantingTicket tgt) {
+    setTicketGrantingTicket(tgt.asSerialized());
+    decodedTgts.put(name, new DecodedTicketGrantingTicket(tgtVersion, tgt));
   }
 
+  /**
+   * Returns the TGT of this account, decoded. The result of decoding is shared between the
+   * instances of an account, and the TGT is only decoded again once it changed.
+   *
+   * @return the ticket, or null if the stored TGT cannot be decoded.
+   */
+  TicketGrantingTicket getDecodedTicketGrantingTicket() {
+    DecodedTicketGrantingTicket cached = decodedTgts.get(name);
+    if (cached != null && cached.version == tgtVersion) {
+      return cached.tgt;
+    }
+    TicketGrantingTicket tgt =
+        TicketGrantingTicket.fromSerializedSubject(getTicketGrantingTicket());
+    decodedTgts.put(name, new DecodedTicketGrantingTicket(tgtVersion, tgt));
+    return tgt;
+  }
+
+  /**
+   * Stores the account in the AccountManager. A new account is added right away; changes to the
+   * stored account are applied in the background, several saves in a row being applied at once,
+   * and saving an account that did not change costs nothing. Either way, {@link #getAccount}
+   * returns the saved account as soon as this returns.
+   */
   void save(Context context) {
     AccountManager am = AccountManager.get(context);
-    Account[] accounts = am.getAccountsByType(KERBEROS_ACCOUNT_TYPE);
-    boolean hasAccountWithIncorrectName = (accounts.length > 0) && !accounts[0].name.equals(name);
-    boolean hasNoAccount = (accounts.length == 0);
+    synchronized (KerberosAccount.class) {
+      useTgtStore(context);
+      Map<String, StoredAccount> accounts = getStoredAccounts(am);
+      StoredAccount current = accounts.get(name);
+      storedTgtVersions.put(name, tgtVersion);
+      if (current == null) {
+        Log.i(TAG, String.format("Adding account %s.", name));
+        am.addAccountExplicitly(new Account(name, KERBEROS_ACCOUNT_TYPE), password, userData);
+        accounts.put(
+            name,
+            new StoredAccount(
+                name,
+                password,
+                userData.getString(KEY_AD_DOMAIN),
+                userData.getString(KEY_AD_DC),
+                userData.getString(KEY_TGT)));
+        return;
+      }
 
-    if (hasAccountWithIncorrectName) {
-      throw new IllegalStateException(
-          String.format(
-              "Cannot save account details for user %s when the existing account is for user %s",
-              name, accounts[0].name));
+      StoredAccount updated =
+          new StoredAccount(
+              name,
+              // The stored password is kept when the user did not provide one.
+              password != null ? password : current.password,
+              userData.getString(KEY_AD_DOMAIN),
+              userData.getString(KEY_AD_DC),
+              userData.getString(KEY_TGT));
+      if (updated.equals(current)) {
+        return;
+      }
+      accounts.put(name, updated);
+      if (!pendingWrites.containsKey(name)) {
+        writtenAccounts.put(name, current);
+        accountWriter.execute(() -> writePendingAccount(am, name));
+      }
+      pendingWrites.put(name, updated);
     }
+  }
 
-    if (hasNoAccount) {
-      Log.i(TAG, String.format("Adding account %s.", name));
-      am.addAccountExplicitly(new Account(name, KERBEROS_ACCOUNT_TYPE), password, userData);
-      return;
+  // Returns the mirrored accounts, reading them from the AccountManager if needed. Must be called
+  // with the class lock held.
+  private static Map<String, StoredAccount> getStoredAccounts(AccountManager am) {
+    if (storedAccounts == null) {
+      storedAccounts = readStoredAccounts(am);
+      // Changes not written yet are newer than what the AccountManager holds.
+      for (StoredAccount inFlightWrite : inFlightWrites.values()) {
+        storedAccounts.replace(inFlightWrite.name, inFlightWrite);
+      }
+      for (StoredAccount pendingWrite : pendingWrites.values()) {
+        storedAccounts.replace(pendingWrite.name, pendingWrite);
+      }
+    }
+    return storedAccounts;
+  }
+
+  // Writes the fields of the pending account with the given name that differ from what was
+  // written before.
+  private static void writePendingAccount(AccountManager am, String name) {
+    StoredAccount previous;
+    StoredAccount updated;
+    synchronized (KerberosAccount.class) {
+      previous = writtenAccounts.remove(name);
+      updated = pendingWrites.remove(name);
+      if (updated == null) {
+        // The account was removed in the meantime.
+        return;
+      }
+      inFlightWrites.put(name, updated);
+    }
+    try {
+      writeAccountChanges(am, previous, updated);
+    } finally {
+      synchronized (KerberosAccount.class) {
+        inFlightWrites.remove(name, updated);
+        if (storedAccountsStale && pendingWrites.isEmpty() && inFlightWrites.isEmpty()) {
+          storedAccountsStale = false;
+          storedAccounts = null;
+        }
+      }
     }
+  }
+
+  private static void writeAccountChanges(
+      AccountManager am, StoredAccount previous, StoredAccount updated) {
 
-    final Account account = accounts[0];
-    Log.i(TAG, String.format("Updating TGT for account %s.", account.name));
-    am.setUserData(account, KEY_TGT, userData.getString(KEY_TGT));
+    Account account = new Account(updated.name, KERBEROS_ACCOUNT_TYPE);
+    if (!Objects.equals(previous.base64Tgt, updated.base64Tgt)) {
+      Log.i(TAG, String.format("Updating TGT for account %s.", account.name));
+      am.setUserData(account, KEY_TGT, updated.base64Tgt);
+    }
 
-    if (password != null && !password.equals(am.getPassword(account))) {
+    if (!Objects.equals(previous.password, updated.password)) {
       Log.v(TAG, String.format("Updating password for account %s.", account.name));
-      am.setPassword(account, password);
+      am.setPassword(account, updated.password);
     }
 
-    final String domain = userData.getString(KEY_AD_DOMAIN);
-    final String currentDomain = am.getUserData(account, KEY_AD_DOMAIN);
-    if (!currentDomain.equals(domain)) {
+    if (!Objects.equals(previous.adDomain, updated.adDomain)) {
       Log.i(TAG, String.format("Updating domain for account %s from %s to %s.", account.name,
-          currentDomain, domain));
-      am.setUserData(account, KEY_AD_DOMAIN, domain);
+          previous.adDomain, updated.adDomain));
+      am.setUserData(account, KEY_AD_DOMAIN, updated.adDomain);
     }
 
-    final String domainController = userData.getString(KEY_AD_DC);
-    String currentDomainController = am.getUserData(account, KEY_AD_DC);
-    if (!currentDomainController.equals(domainController)) {
+    if (!Objects.equals(previous.domainController, updated.domainController)) {
       Log.i(
           TAG,
           String.format(
               "Updating domain controller for account %s from %s to %s",
-              account.name, currentDomainController, domainController));
-      am.setUserData(account, KEY_AD_DC, domainController);
+              account.name, previous.domainController, updated.domainController));
+      am.setUserData(account, KEY_AD_DC, updated.domainController);
+    }
+  }
+
+  /**
+   * Waits until the changes saved so far were written to the AccountManager, e.g. before the
+   * process may be stopped.
+   */
+  static void flushWrites() {
+    try {
+      accountWriter.submit(() -> {}).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // The empty task queued behind the writes cannot fail.
+      Log.w(TAG, "Failed waiting for account writes", e);
     }
   }
 
@@ -164,4 +404,55 @@ public class KerberosAccount {
   String getPassword() {
     return password;
   }
+
+  /** The account as held by the AccountManager. */
+  private static final class StoredAccount {
+    private final String name;
+    private final String password;
+    private final String adDomain;
+    private final String domainController;
+    private final String base64Tgt;
+
+    StoredAccount(
+        String name,
+        String password,
+        String adDomain,
+        String domainController,
+        String base64Tgt) {
+      this.name = name;
+      this.password = password;
+      this.adDomain = adDomain;
+      this.domainController = domainController;
+      this.base64Tgt = base64Tgt;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof StoredAccount)) {
+        return false;
+      }
+      StoredAccount account = (StoredAccount) other;
+      return Objects.equals(name, account.name)
+          && Objects.equals(password, account.password)
+          && Objects.equals(adDomain, account.adDomain)
+          && Objects.equals(domainController, account.domainController)
+          && Objects.equals(base64Tgt, account.base64Tgt);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name, password, adDomain, domainController, base64Tgt);
+    }
+  }
+
+  /** A decoded TGT, tagged with the version of the TGT it was decoded from. */
+  private static final class DecodedTicketGrantingTicket {
+    private final long version;
+    private final TicketGrantingTicket tgt;
+
+    DecodedTicketGrantingTicket(long version, TicketGrantingTicket tgt) {
+      this.version = version;
+      this.tgt = tgt;
+    }
+  }
 }
@@ -24,20 +24,41 @@ import android.accounts.AccountManager;
 import android.accounts.NetworkErrorException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.BaseAuthenticatorActivity.ServiceTicketInfo;
+import com.google.android.apps.work.kerberosauthenticator.internal.KdcDiscovery;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosExecutor;
 import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.ServiceTicketCache;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.SpnegoTicketRequest;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 
 /** Kerberos account authenticator. */
 public class KerberosAuthenticator extends AbstractAccountAuthenticator {
   private final Context context;
+  // Runs service ticket requests that are answered without UI.
+  private final Executor backgroundExecutor;
 
   KerberosAuthenticator(Context context) {
+    this(context, KerberosExecutor.getInstance());
+  }
+
+  @VisibleForTesting
+  KerberosAuthenticator(Context context, Executor backgroundExecutor) {
     super(context);
     this.context = context;
+    this.backgroundExecutor = backgroundExecutor;
+    KdcDiscovery.getInstance().initialize(context);
+    ServiceTicketCache.getInstance().initialize(context);
   }
 
   @Override
@@ -101,11 +122,8 @@ public class KerberosAuthenticator extends AbstractAccountAuthenticator {
     }
 
     Bundle result = new Bundle();
-    Matcher matcher = Constants.AUTH_TOKEN_PATTERN.matcher(authTokenType);
-    String serviceName;
-    if (matcher.matches() && matcher.groupCount() == 5) {
-      serviceName = matcher.group(4);
-    } else {
+    String serviceName = getServiceName(authTokenType);
+    if (serviceName == null) {
       // Cannot obtain service name.
       result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_BAD_ARGUMENTS);
       result.putString(
@@ -114,52 +132,172 @@ public class KerberosAuthenticator extends AbstractAccountAuthenticator {
       return result;
     }
 
-    KerberosAccount krbAccount = KerberosAccount.getAccount(context);
     // No account, this is a deviation from the protocol, return an error.
-    if (krbAccount == null) {
+    if (account == null || KerberosAccount.getAccount(context, account.name) == null) {
       result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_BAD_REQUEST);
       result.putString(AccountManager.KEY_ERROR_MESSAGE, "No account configured?");
       return result;
     }
 
-    // Mismatch between the username in the account provided and the existing Kerberos account,
-    // this is a deviation from the protocol, return an error.
-    if (!krbAccount.getName().equals(account.name)) {
-      result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_BAD_REQUEST);
-      result.putString(AccountManager.KEY_ERROR_MESSAGE,
-          String.format("Account names mismatch: %s vs %s", krbAccount.getName(), account.name));
-      return result;
-    }
-
     // Check if the account details via managed config have changed from what's stored in the
     // AccountManager. If there's a mismatch and the account needs to be updated, also call
     // getAuthenticateIntent as it will remove the old account and add a new one.
-    boolean needReAuthentication = !krbAccount.getName().equals(getManagedConfigurationUsername());
+    if (!account.name.equals(getManagedConfigurationUsername())) {
+      Log.d(TAG, String.format("Account %s is no longer configured.", account.name));
+      Intent intent =
+          LoginActivity.getAuthenticateIntent(context, response, null, serviceName, null);
+      result.putParcelable(AccountManager.KEY_INTENT, intent);
+      return result;
+    }
 
-    // Before requesting a service ticket, check if the TGT for the current account needs renewal.
+    // Chrome asks with the primary account; the host may be in the realm of another one. Both
+    // are looked up before talking to any KDC, so that the ticket is asked for in the right realm
+    // straight away.
+    String hostName = getHostName(authTokenType);
+    String accountName =
+        getFromAccountConfiguration(
+            config -> config.getAccountDetailsForHost(hostName).getUsername());
+    String serviceRealm =
+        getFromAccountConfiguration(config -> config.getRealmForHost(hostName));
+    String service = getService(authTokenType, serviceRealm);
+    KerberosAccount krbAccount = KerberosAccount.getAccount(context, accountName);
+
+    // Before requesting a service ticket, check if the TGT for the account needs renewal.
     TicketGrantingTicket tgt =
-        TicketGrantingTicket.fromSerializedSubject(krbAccount.getTicketGrantingTicket());
-
-    needReAuthentication |=
-        tgt == null || tgt.getExpiryDate() == null || tgt.getExpiryDate().before(new Date());
-    if (needReAuthentication) {
-      Log.d(
-          TAG,
-          String.format("Ticket-granting-ticket for %s will be renewed.", krbAccount.getName()));
+        krbAccount != null ? krbAccount.getDecodedTicketGrantingTicket() : null;
+    if (tgt == null || tgt.getExpiryDate() == null || tgt.getExpiryDate().before(new Date())) {
+      Log.d(TAG, String.format("Ticket-granting-ticket for %s will be renewed.", accountName));
       Intent intent =
-          LoginActivity.getAuthenticateIntent(context, response, serviceName);
+          LoginActivity.getAuthenticateIntent(
+              context, response, accountName, service, serviceRealm);
       result.putParcelable(AccountManager.KEY_INTENT, intent);
       return result;
     }
 
-    Log.d(TAG, String.format("Will request service ticket for %s, account %s.",
-        serviceName, krbAccount.getName()));
+    Log.d(TAG, String.format("Will request service ticket for %s in realm %s, account %s.",
+        service, serviceRealm, krbAccount.getName()));
+    if (getFromAccountConfiguration(AccountConfiguration::getBackgroundServiceTickets)) {
+      // No UI is needed to get a service ticket: answer through the response once the ticket
+      // is available, rather than launching an activity to do it.
+      requestServiceTicketInBackground(
+          service, serviceRealm, krbAccount, tgt, bundle -> response.onResult(bundle));
+      return null;
+    }
     Intent intent =
-        ServiceTicketActivity.getServiceTicketIntent(context, serviceName, response);
+        ServiceTicketActivity.getServiceTicketIntent(
+            context, krbAccount.getName(), service, serviceRealm, response);
     result.putParcelable(AccountManager.KEY_INTENT, intent);
     return result;
   }
 
+  /**
+   * Returns the name of the service to obtain a ticket for from the auth token type Chrome asks
+   * for, or null if the auth token type is not in the expected format.
+   */
+  static String getServiceName(String authTokenType) {
+    Matcher matcher = Constants.AUTH_TOKEN_PATTERN.matcher(authTokenType);
+    if (matcher.matches() && matcher.groupCount() == 5) {
+      return matcher.group(4);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the host Chrome asks for a ticket to from the auth token type, or null if the auth
+   * token type is not in the expected format.
+   */
+  static String getHostName(String authTokenType) {
+    if (getServiceName(authTokenType) == null) {
+      return null;
+    }
+    return authTokenType.substring(authTokenType.indexOf('@') + 1);
+  }
+
+  /**
+   * Returns the name of the service to obtain a ticket for, in the given realm, from the auth
+   * token type Chrome asks for. A service in a known realm is named by its principal, {@code
+   * HTTP/host@REALM}, which the GSS layer takes as is: it is then named by its full host name.
+   * Otherwise, it is named by its first label, which the GSS layer canonicalizes.
+   *
+   * @return the service, or null if the auth token type is not in the expected format.
+   */
+  static String getService(String authTokenType, String serviceRealm) {
+    return serviceRealm != null ? getHostName(authTokenType) : getServiceName(authTokenType);
+  }
+
+  /**
+   * Obtains a service ticket for {@code serviceName} on the background executor and passes the
+   * resulting bundle, in the same format {@link ServiceTicketActivity} returns, to {@code
+   * resultCallback}.
+   *
+   * @param serviceRealm the realm of the service, or null to let the KDC find it.
+   */
+  @VisibleForTesting
+  void requestServiceTicketInBackground(
+      String serviceName,
+      String serviceRealm,
+      KerberosAccount account,
+      TicketGrantingTicket tgt,
+      Consumer<Bundle> resultCallback) {
+    boolean debugWithSensitiveData =
+        getFromAccountConfiguration(AccountConfiguration::getDebugWithSensitiveData);
+    Runnable requestServiceTicket =
+        () -> {
+          SpnegoTicketRequest request =
+              new SpnegoTicketRequest(
+                  tgt.asSubject(),
+                  account.getDomain(),
+                  account.getDomainController(),
+                  debugWithSensitiveData);
+          TicketRequestResult requestResult = request.execute(serviceName, serviceRealm);
+          if (debugWithSensitiveData) {
+            Log.d(
+                TAG,
+                String.format(
+                    "Result of background attempt to obtain service ticket to %s: %s.",
+                    serviceName, requestResult));
+          }
+          resultCallback.accept(
+              makeServiceTicketResult(
+                  account, serviceName, requestResult, request.getSpnegoTicket()));
+        };
+    try {
+      backgroundExecutor.execute(requestServiceTicket);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, String.format("Too many pending requests, rejecting request for %s.",
+          serviceName));
+      Bundle result = new Bundle();
+      result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_REMOTE_EXCEPTION);
+      result.putString(AccountManager.KEY_ERROR_MESSAGE, "Too many pending requests");
+      resultCallback.accept(result);
+    }
+  }
+
+  private Bundle makeServiceTicketResult(
+      KerberosAccount account,
+      String serviceName,
+      TicketRequestResult requestResult,
+      String serviceTicket) {
+    Bundle result = new Bundle();
+    // Information about the most recent ticket to save in secure file storage.
+    SharedPreferences sharedPref =
+        context.getSharedPreferences(Constants.PREFERENCE_NAME, Context.MODE_PRIVATE);
+    if (!requestResult.successful() || serviceTicket == null) {
+      ServiceTicketInfo.saveServiceTicketInfo(
+          sharedPref, null, new Date().getTime(), requestResult.toString());
+      result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_BAD_AUTHENTICATION);
+      result.putString(AccountManager.KEY_ERROR_MESSAGE, requestResult.toString());
+      return result;
+    }
+
+    ServiceTicketInfo.saveServiceTicketInfo(sharedPref, serviceName, new Date().getTime(), null);
+    result.putString(AccountManager.KEY_ACCOUNT_NAME, account.getName());
+    result.putString(AccountManager.KEY_ACCOUNT_TYPE, Constants.KERBEROS_ACCOUNT_TYPE);
+    result.putString(AccountManager.KEY_AUTHTOKEN, serviceTicket);
+    result.putInt("spnegoResult", 0);
+    return result;
+  }
+
   @Override
   public String getAuthTokenLabel(String authTokenType) {
     return "Spnego" + authTokenType;
@@ -175,6 +313,12 @@ public class KerberosAuthenticator extends AbstractAccountAuthenticator {
   public Bundle hasFeatures(AccountAuthenticatorResponse response, Account account,
       String[] features) {
     Bundle result = new Bundle();
+    // Chrome refuses to authenticate if several accounts have the SPNEGO feature. Only the
+    // primary account reports it: requests made with it are served by the other accounts too.
+    if (getFromAccountConfiguration(config -> config.isAdditionalAccount(account.name))) {
+      result.putBoolean(AccountManager.KEY_BOOLEAN_RESULT, false);
+      return result;
+    }
     for (String feature : features) {
       if (!feature.equals("SPNEGO")) {
         result.putBoolean(AccountManager.KEY_BOOLEAN_RESULT, false);
@@ -201,16 +345,9 @@ public class KerberosAuthenticator extends AbstractAccountAuthenticator {
     T operate(AccountConfiguration config);
   }
 
-  // Runs the provided operator on an AccountConfiguration instance, unregistering it when
-  // done.
+  // Runs the provided operator on the process-wide AccountConfiguration.
   private <T> T getFromAccountConfiguration(AccountConfigurationOperator<T> operator) {
-    AccountConfiguration config = null;
-    try {
-      config = new AccountConfiguration(context);
-      return operator.operate(config);
-    } finally {
-      config.unregisterReceiver(context);
-    }
+    return operator.operate(AccountConfiguration.getInstance(context));
   }
 
   private boolean hasValidAccountConfiguration() {
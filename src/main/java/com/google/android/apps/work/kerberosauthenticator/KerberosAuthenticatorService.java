@@ -19,6 +19,10 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.KeyTabFiles;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * Kerberos authenticator service.
@@ -27,10 +31,24 @@ import android.support.annotation.Nullable;
  * Part of the requirement of being an authenticator is to have a service that, upon binding by
  * the AccountManager, returns the result of {@code getIBinder()} of an object that implements
  * the {@code AbstractAccountAuthenticator} class.
+ *
+ * The service's dumpsys output, e.g. from
+ * {@code adb shell dumpsys activity service KerberosAuthenticatorService}, lists the number and
+ * latency of Kerberos requests made so far, by result and by KDC.
+ *
+ * The service is created when the process starts for an AccountManager request, and then starts
+ * warming up the Kerberos stack in the background: see {@link KerberosWarmUp}.
  */
 public class KerberosAuthenticatorService extends Service {
   private KerberosAuthenticator authenticator;
 
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    KeyTabFiles.getInstance().initialize(this);
+    KerberosWarmUp.start(this);
+  }
+
   @Nullable
   @Override
   public IBinder onBind(Intent intent) {
@@ -39,4 +57,9 @@ public class KerberosAuthenticatorService extends Service {
     }
     return authenticator.getIBinder();
   }
+
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    KerberosMetrics.getInstance().dump(writer);
+  }
 }
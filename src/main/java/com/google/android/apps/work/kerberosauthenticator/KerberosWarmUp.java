@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KdcDiscovery;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosConfig;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.GssEngine;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.ServiceTicketCache;
+import com.sun.security.auth.module.Krb5LoginModule;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import org.ietf.jgss.GSSException;
+import sun.security.jgss.GSSUtil;
+import sun.security.jgss.krb5.Krb5Util;
+import sun.security.krb5.Config;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.KrbTgsReq;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * Warms up the Kerberos and GSS stack on a background thread when the process starts, so that the
+ * first {@code getAuthToken} request after Android started the app does not pay for it.
+ *
+ * <p>That request otherwise loads and initializes the Kerberos library, the GSS mechanisms and
+ * the crypto providers, reads the managed configuration and the accounts, writes krb5.conf and
+ * reads the service ticket store, all before talking to the KDC. Each step is independent: one
+ * that fails is logged and left to the first request, as before.
+ *
+ * <p>How long the warm-up took is recorded in {@link KerberosMetrics}.
+ */
+final class KerberosWarmUp {
+  private static final AtomicBoolean started = new AtomicBoolean();
+
+  private KerberosWarmUp() {}
+
+  /** Starts warming up on a background thread, unless it was started already in this process. */
+  static void start(Context context) {
+    if (!started.compareAndSet(false, true)) {
+      return;
+    }
+    Context applicationContext = context.getApplicationContext();
+    Thread thread = new Thread(() -> run(applicationContext), "KerberosWarmUp");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Warms up on the calling thread, and records how long it took.
+   *
+   * @return how long the warm-up took, in milliseconds.
+   */
+  @VisibleForTesting
+  static long run(Context context) {
+    long startMillis = SystemClock.elapsedRealtime();
+    initializeClasses();
+    initializeGss();
+    initializeCrypto();
+    loadConfiguration(context);
+    loadTickets(context);
+    long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+    KerberosMetrics.getInstance().recordWarmUp(durationMillis);
+    Log.i(TAG, String.format("Kerberos warm-up took %d ms.", durationMillis));
+    return durationMillis;
+  }
+
+  // Loads and statically initializes the classes used by every login and SPNEGO request.
+  private static void initializeClasses() {
+    Class<?>[] classes = {
+      Config.class,
+      Credentials.class,
+      PrincipalName.class,
+      KrbTgsReq.class,
+      Krb5LoginModule.class,
+      Krb5Util.class,
+      KerberosTicket.class,
+      GSSUtil.class,
+    };
+    for (Class<?> cls : classes) {
+      try {
+        Class.forName(cls.getName(), true /* initialize */, cls.getClassLoader());
+      } catch (ClassNotFoundException | LinkageError e) {
+        Log.w(TAG, String.format("Failed initializing %s", cls.getName()), e);
+      }
+    }
+  }
+
+  // Creates the GSS engine, which loads the Kerberos and SPNEGO mechanism factories.
+  private static void initializeGss() {
+    try {
+      GssEngine.getInstance().warmUp();
+    } catch (GSSException | RuntimeException e) {
+      Log.w(TAG, "Failed initializing the GSS mechanisms", e);
+    }
+  }
+
+  // Looks up the crypto algorithms used for the Kerberos AES encryption types and the service
+  // ticket store, and runs each once so that their providers are loaded.
+  private static void initializeCrypto() {
+    try {
+      new SecureRandom().nextInt();
+      byte[] key = new byte[16];
+      byte[] block = new byte[16];
+      Cipher cbc = Cipher.getInstance("AES/CBC/NoPadding");
+      cbc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(block));
+      cbc.doFinal(block);
+      Cipher.getInstance("AES/GCM/NoPadding");
+      for (String algorithm : new String[] {"HmacSHA1", "HmacSHA256"}) {
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(key, algorithm));
+        mac.doFinal(block);
+      }
+      MessageDigest.getInstance("MD5").digest(block);
+      SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1")
+          .generateSecret(new PBEKeySpec(new char[] {'x'}, block, 1, 128));
+    } catch (GeneralSecurityException | RuntimeException e) {
+      Log.w(TAG, "Failed initializing the crypto providers", e);
+    }
+  }
+
+  // Reads the managed configuration and writes krb5.conf for the primary account, whose domain
+  // controllers are then also raced if they were not yet.
+  private static void loadConfiguration(Context context) {
+    try {
+      KdcDiscovery.getInstance().initialize(context);
+      AccountConfiguration config = AccountConfiguration.getInstance(context);
+      KerberosAccountDetails details = config.getAccountDetails();
+      if (details == null || details.getActiveDirectoryDomain() == null
+          || KerberosContext.parseKdcs(details.getAdDomainController()).isEmpty()) {
+        // Discovering the domain controllers is left to the first request.
+        return;
+      }
+      KerberosConfig.getInstance()
+          .apply(
+              KerberosContext.forDomain(
+                  details.getActiveDirectoryDomain(),
+                  details.getAdDomainController(),
+                  null /* subject */,
+                  config.getDebugWithSensitiveData()));
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Failed writing the Kerberos configuration", e);
+    }
+  }
+
+  // Reads the accounts, decoding their TGTs, and the service ticket store.
+  private static void loadTickets(Context context) {
+    try {
+      for (KerberosAccount account : KerberosAccount.getAccounts(context)) {
+        account.getDecodedTicketGrantingTicket();
+      }
+      ServiceTicketCache ticketCache = ServiceTicketCache.getInstance();
+      ticketCache.initialize(context);
+      ticketCache.preload();
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed loading the stored tickets", e);
+    }
+  }
+}
@@ -29,10 +29,13 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosExecutor;
 import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
 import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.LongTermKeys;
 import com.google.android.apps.work.kerberosauthenticator.internal.kinit.UserAuthenticationResultListener;
 import com.google.android.apps.work.kerberosauthenticator.internal.kinit.UserAuthenticationTask;
+import java.util.concurrent.RejectedExecutionException;
 import javax.security.auth.Subject;
 
 /** Obtains a ticket granting ticket for the user, while displaying authentication status and
@@ -45,20 +48,36 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
 
   boolean isPasswordRetry = false;
 
-  /** Returns an intent that can be used to authenticate an account. */
+  /** Returns an intent that can be used to authenticate the primary account. */
   public static Intent getAuthenticateIntent(
       Context context, AccountAuthenticatorResponse response) {
-    return getAuthenticateIntent(context, response, null);
+    return getAuthenticateIntent(context, response, null, null, null);
   }
 
-  /** Returns an intent that can be used to authenticate an account. */
+  /**
+   * Returns an intent that can be used to authenticate an account.
+   *
+   * @param accountName the account to authenticate, or null for the primary account.
+   * @param serviceName the service to then obtain a ticket for, or null.
+   * @param serviceRealm the realm of that service, or null if it is not known.
+   */
   public static Intent getAuthenticateIntent(
-      Context context, AccountAuthenticatorResponse response, String serviceName) {
+      Context context,
+      AccountAuthenticatorResponse response,
+      String accountName,
+      String serviceName,
+      String serviceRealm) {
     Intent intent = new Intent(context, LoginActivity.class);
     intent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE, response);
+    if (accountName != null) {
+      intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, accountName);
+    }
     if (serviceName != null) {
       intent.putExtra(Constants.SERVICE_NAME, serviceName);
     }
+    if (serviceRealm != null) {
+      intent.putExtra(Constants.SERVICE_REALM, serviceRealm);
+    }
     return intent;
   }
 
@@ -79,7 +98,10 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
 
     Intent intent = getIntent();
     String serviceName = intent.getStringExtra(Constants.SERVICE_NAME);
-    boolean shouldAddAccount = TextUtils.isEmpty(serviceName);
+    // Additional accounts are only added once a service needs them.
+    boolean shouldAddAccount =
+        TextUtils.isEmpty(serviceName)
+            || accountConfiguration.isAdditionalAccount(getAccountName());
     Log.d(
         Constants.TAG,
         String.format(
@@ -106,13 +128,15 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
           ticketRequestResult, ticket != null));
     }
     Bundle result = new Bundle();
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    KerberosAccount account = getKerberosAccount();
     boolean successGettingTgt = ticketRequestResult.successful() && ticket != null;
 
     if (successGettingTgt && account != null) {
       TicketGrantingTicket tgt = new TicketGrantingTicket(ticket);
-      account.setTicketGrantingTicket(tgt.asSerialized());
+      account.setTicketGrantingTicket(tgt);
       account.save(this);
+      TicketRenewalJobService.scheduleRenewal(this, account.getName(), tgt);
+      ServiceTicketPrefetcher.prefetch(this, account, tgt);
       isPasswordRetry = false;
     } else {
       if (ticketRequestResult.isPasswordBad() && !isPasswordRetry) {
@@ -121,7 +145,7 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
             String.format(
                 "Bad password for user %s, removing and attempting re-authentication.",
                 account.getName()));
-        KerberosAccount.removeAccount(this);
+        KerberosAccount.removeAccount(this, getAccountName());
         isPasswordRetry = true;
         authenticateAccount(true /*shouldAddAccount*/);
       } else {
@@ -143,7 +167,12 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
       AccountAuthenticatorResponse response =
           getIntent().getParcelableExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE);
       Intent serviceTicketIntent =
-          ServiceTicketActivity.getServiceTicketIntent(this, serviceName, response);
+          ServiceTicketActivity.getServiceTicketIntent(
+              this,
+              account.getName(),
+              serviceName,
+              getIntent().getStringExtra(Constants.SERVICE_REALM),
+              response);
       serviceTicketIntent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE, response);
       startActivity(serviceTicketIntent);
       finish();
@@ -151,35 +180,38 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
   }
 
   private void authenticateAccount(boolean shouldAddAccount) {
-    KerberosAccountDetails accountDetails = accountConfiguration.getAccountDetails();
+    KerberosAccountDetails accountDetails = getAccountDetails();
     if (accountDetails == null) {
       Log.e(TAG, "Missing details for new account, erroring out.");
       setErrorResultAndFinish(AccountManager.ERROR_CODE_BAD_ARGUMENTS, "Account details missing");
       return;
     }
 
-    KerberosAccount account = KerberosAccount.getAccount(this);
-    // Remove the old account if the username in the from the managed configuration is different
-    // to the saved account.
-    if (account != null) {
-      boolean accountNameDiffers = !account.getName().equals(accountDetails.getUsername());
-      if (accountNameDiffers) {
+    // Remove the accounts of users that are no longer in the managed configuration.
+    for (KerberosAccount storedAccount : KerberosAccount.getAccounts(this)) {
+      if (accountConfiguration.getAccountDetails(storedAccount.getName()) == null) {
         Log.i(
             Constants.TAG,
-            String.format("Removing obsolete account for user" + " %s.", account.getName()));
-        KerberosAccount.removeAccount(this);
-        account = null;
-      }      // Fall through to the logic for creating and saving a new account as the old
-      // one was just removed.
-    } else if (!shouldAddAccount) {
+            String.format("Removing obsolete account for user %s.", storedAccount.getName()));
+        KerberosAccount.removeAccount(this, storedAccount.getName());
+      }
+    }
+
+    KerberosAccount account = getKerberosAccount();
+    if (account == null && !shouldAddAccount) {
       throw new IllegalStateException(
           "No account is defined and not in a flow for adding accounts.");
     }
 
     boolean hasUserPassword = account != null && !TextUtils.isEmpty(account.getPassword());
-    if (accountConfiguration.hasManagedConfigPassword() || hasUserPassword) {
-      // We have all data required to authenticate.
-      initiateUserAuthenticationTask(buildKerberosAccountDetails(accountDetails, account));
+    if (!TextUtils.isEmpty(accountDetails.getPassword()) || hasUserPassword) {
+      // We have all data required to authenticate. The keys of the account's current TGT, if
+      // any, spare deriving them from the password again.
+      TicketGrantingTicket currentTgt =
+          account == null ? null : account.getDecodedTicketGrantingTicket();
+      initiateUserAuthenticationTask(
+          buildKerberosAccountDetails(accountDetails, account),
+          currentTgt == null ? null : LongTermKeys.fromSubject(currentTgt.asSubject()));
     } else {
       showPasswordEntryPrompt(account);
     }
@@ -187,7 +219,7 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
 
   private void saveUserCredentials() {
     hideUserLoginUI();
-    KerberosAccountDetails detailsWithoutPassword = accountConfiguration.getAccountDetails();
+    KerberosAccountDetails detailsWithoutPassword = getAccountDetails();
     String password = ((TextView) findViewById(R.id.editTextPw)).getText().toString();
     KerberosAccountDetails detailsWithPassword =
         new KerberosAccountDetails(
@@ -195,12 +227,14 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
             password,
             detailsWithoutPassword.getActiveDirectoryDomain(),
             detailsWithoutPassword.getAdDomainController());
-    initiateUserAuthenticationTask(detailsWithPassword);
+    // The password was just entered: log in with it rather than with keys of an older one.
+    initiateUserAuthenticationTask(detailsWithPassword, null /* storedKeys */);
   }
 
-  private void initiateUserAuthenticationTask(KerberosAccountDetails accountDetails) {
+  private void initiateUserAuthenticationTask(
+      KerberosAccountDetails accountDetails, LongTermKeys storedKeys) {
     setRefreshingStatus(getTGTTimestampTextViewId());
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    KerberosAccount account = getKerberosAccount();
     if (account == null) {
       account = new KerberosAccount(accountDetails);
     }
@@ -214,8 +248,15 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
                 account.getPassword(),
                 account.getDomain(),
                 account.getDomainController()),
+            storedKeys,
             accountConfiguration.getDebugWithSensitiveData());
-    kinit.execute();
+    try {
+      kinit.executeOnExecutor(KerberosExecutor.getInstance());
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Too many pending requests, rejecting login.");
+      setErrorResultAndFinish(
+          AccountManager.ERROR_CODE_REMOTE_EXCEPTION, "Too many pending requests");
+    }
   }
 
   private void showUserLoginUI() {
@@ -238,7 +279,10 @@ public class LoginActivity extends BaseAuthenticatorActivity implements
     // Activity was created to generate a TGT.
     // Prepare to check if we have the user password available.
     boolean missingAccountPassword = account == null || TextUtils.isEmpty(account.getPassword());
-    if (!accountConfiguration.hasManagedConfigPassword() && missingAccountPassword) {
+    KerberosAccountDetails accountDetails = getAccountDetails();
+    boolean missingConfiguredPassword =
+        accountDetails == null || TextUtils.isEmpty(accountDetails.getPassword());
+    if (missingConfiguredPassword && missingAccountPassword) {
       // User needs to log in if there is no managed config password and the Account Manager
       // does not hold any password.
       showUserLoginUI();
@@ -27,11 +27,13 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosExecutor;
 import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
 import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
 import com.google.android.apps.work.kerberosauthenticator.internal.spnego.GetSpnegoTicketTask;
 import com.google.android.apps.work.kerberosauthenticator.internal.spnego.ServiceTicketResultListener;
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Obtains a service ticket for the given service, while displaying details about the current
@@ -53,7 +55,7 @@ public class ServiceTicketActivity extends BaseAuthenticatorActivity
     initUI(false, serviceName);
     showOkBtn(false);
 
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    KerberosAccount account = getKerberosAccount();
 
     if (account == null) {
       setErrorResultAndFinish(
@@ -69,20 +71,27 @@ public class ServiceTicketActivity extends BaseAuthenticatorActivity
     // Activity was created to generate a service ticket.
     setRefreshingStatus(getServiceTimestampTextviewId());
     setOkStatus(getTGTTimestampTextViewId());
-    getServiceTicket(serviceName, account);
+    getServiceTicket(serviceName, intent.getStringExtra(Constants.SERVICE_REALM), account);
   }
 
-  private void getServiceTicket(String serviceName, KerberosAccount account) {
-    TicketGrantingTicket tgt =
-        TicketGrantingTicket.fromSerializedSubject(account.getTicketGrantingTicket());
+  private void getServiceTicket(
+      String serviceName, String serviceRealm, KerberosAccount account) {
+    TicketGrantingTicket tgt = account.getDecodedTicketGrantingTicket();
     GetSpnegoTicketTask spnego =
         new GetSpnegoTicketTask(
             tgt.asSubject(),
             account.getDomain(),
             account.getDomainController(),
             accountConfiguration.getDebugWithSensitiveData(),
+            serviceRealm,
             this);
-    spnego.execute(serviceName);
+    try {
+      spnego.executeOnExecutor(KerberosExecutor.getInstance(), serviceName);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Too many pending requests, rejecting service ticket request.");
+      setErrorResultAndFinish(
+          AccountManager.ERROR_CODE_REMOTE_EXCEPTION, "Too many pending requests");
+    }
   }
 
   @Override
@@ -103,7 +112,7 @@ public class ServiceTicketActivity extends BaseAuthenticatorActivity
     }
 
     Bundle result = new Bundle();
-    KerberosAccount account = KerberosAccount.getAccount(this);
+    KerberosAccount account = getKerberosAccount();
     if (account != null || service != null) {
       result.putString(AccountManager.KEY_ACCOUNT_NAME, account.getName());
       result.putString(AccountManager.KEY_ACCOUNT_TYPE, Constants.KERBEROS_ACCOUNT_TYPE);
@@ -129,11 +138,23 @@ public class ServiceTicketActivity extends BaseAuthenticatorActivity
     }
  }
 
-  /** Returns an intent that can be used to obtain a service ticket. */
+  /**
+   * Returns an intent that can be used to obtain a service ticket with the given account.
+   *
+   * @param serviceRealm the realm of the service, or null to let the KDC find it.
+   */
   public static Intent getServiceTicketIntent(
-      Context context, String serviceName, AccountAuthenticatorResponse response) {
+      Context context,
+      String accountName,
+      String serviceName,
+      String serviceRealm,
+      AccountAuthenticatorResponse response) {
     Intent intent = new Intent(context, ServiceTicketActivity.class);
+    intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, accountName);
     intent.putExtra(Constants.SERVICE_NAME, serviceName);
+    if (serviceRealm != null) {
+      intent.putExtra(Constants.SERVICE_REALM, serviceRealm);
+    }
     intent.putExtra(AccountManager.KEY_ACCOUNT_AUTHENTICATOR_RESPONSE, response);
     return intent;
   }
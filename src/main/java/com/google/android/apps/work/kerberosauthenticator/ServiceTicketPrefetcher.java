@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosExecutor;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.SpnegoTicketRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import javax.security.auth.Subject;
+
+/**
+ * Obtains service tickets for the hosts listed in the prefetchServices managed configuration as
+ * soon as a ticket-granting-ticket is available, so that the first request Chrome makes to each
+ * of them does not have to wait for a TGS exchange.
+ *
+ * <p>The tickets are obtained concurrently on the {@link KerberosExecutor} and kept in the
+ * service ticket cache, where requests from Chrome find them.
+ */
+final class ServiceTicketPrefetcher {
+  // The auth token type Chrome asks for when authenticating to a host.
+  private static final String AUTH_TOKEN_TYPE_FORMAT = "SPNEGO:HOSTBASED:HTTP@%s";
+
+  private ServiceTicketPrefetcher() {}
+
+  /**
+   * Starts obtaining tickets with the account's new TGT, for the configured services that are
+   * authenticated to with this account.
+   */
+  static void prefetch(Context context, KerberosAccount account, TicketGrantingTicket tgt) {
+    AccountConfiguration config = AccountConfiguration.getInstance(context);
+    List<String> hosts = new ArrayList<>();
+    for (String host : config.getPrefetchServices()) {
+      KerberosAccountDetails hostAccount = config.getAccountDetailsForHost(host);
+      if (hostAccount != null && hostAccount.getUsername().equals(account.getName())) {
+        hosts.add(host);
+      }
+    }
+    prefetch(
+        hosts,
+        account,
+        tgt,
+        config::getRealmForHost,
+        config.getDebugWithSensitiveData(),
+        KerberosExecutor.getInstance());
+  }
+
+  /**
+   * Starts obtaining tickets for the services on the given hosts on {@code executor}, in the
+   * realm {@code realmForHost} gives for each host, or in the one the KDC finds if it gives null.
+   *
+   * @return how many requests were started.
+   */
+  @VisibleForTesting
+  static int prefetch(
+      List<String> hosts,
+      KerberosAccount account,
+      TicketGrantingTicket tgt,
+      Function<String, String> realmForHost,
+      boolean debugWithSensitiveData,
+      Executor executor) {
+    if (hosts.isEmpty()) {
+      return 0;
+    }
+    // Name the services the way requests from Chrome do, so that they find the tickets.
+    // The realm of each service.
+    Map<String, String> services = new LinkedHashMap<>();
+    for (String host : hosts) {
+      String realm = realmForHost.apply(host);
+      String service =
+          KerberosAuthenticator.getService(String.format(AUTH_TOKEN_TYPE_FORMAT, host), realm);
+      if (service == null) {
+        Log.w(TAG, String.format("Not prefetching a service ticket for invalid host %s.", host));
+        continue;
+      }
+      services.putIfAbsent(service, realm);
+    }
+
+    Subject subject = tgt.asSubject();
+    int started = 0;
+    for (Map.Entry<String, String> serviceRealm : services.entrySet()) {
+      String service = serviceRealm.getKey();
+      String realm = serviceRealm.getValue();
+      Runnable prefetchServiceTicket =
+          () -> {
+            SpnegoTicketRequest request =
+                new SpnegoTicketRequest(
+                    subject,
+                    account.getDomain(),
+                    account.getDomainController(),
+                    debugWithSensitiveData);
+            boolean cached = request.prefetchServiceTicket(service, realm);
+            Log.d(TAG, String.format("Prefetched service ticket for %s? %s", service, cached));
+          };
+      try {
+        executor.execute(prefetchServiceTicket);
+        started++;
+      } catch (RejectedExecutionException e) {
+        // Chrome's own requests take precedence; the ticket is obtained when first needed.
+        Log.w(TAG, String.format("Too many Kerberos requests, not prefetching %s.", service));
+      }
+    }
+    return started;
+  }
+}
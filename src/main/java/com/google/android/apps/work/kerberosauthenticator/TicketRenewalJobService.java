@@ -0,0 +1,249 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KdcDiscovery;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosExecutor;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.KeyTabFiles;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.LongTermKeys;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.TicketRenewalRequest;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.UserAuthenticationRequest;
+import com.google.android.apps.work.kerberosauthenticator.internal.spnego.ServiceTicketCache;
+import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+
+/**
+ * Renews the ticket-granting-ticket in the background some time before it expires, so that
+ * requests for service tickets do not have to wait for the user to be logged in again.
+ *
+ * <p>The job is scheduled whenever a new TGT is stored. Renewable tickets are renewed with the
+ * KDC directly; otherwise the user is logged in again with the keys kept with the TGT, or the
+ * password kept in the AccountManager, and accounts without either are renewed interactively, as
+ * before. Failed renewals are retried with exponential backoff.
+ *
+ * <p>Each account has its own job, which names the account in its extras.
+ */
+public class TicketRenewalJobService extends JobService {
+  // The job scheduled before each account had its own: it renews every account.
+  private static final int ALL_ACCOUNTS_JOB_ID = 1;
+  // The IDs of the per-account jobs are derived from the account name, from this one on.
+  private static final int FIRST_ACCOUNT_JOB_ID = ALL_ACCOUNTS_JOB_ID + 1;
+  private static final String EXTRA_ACCOUNT_NAME = "account_name";
+  // How long before the TGT expires it is renewed. Tickets with a short lifetime are renewed
+  // half-way through it instead.
+  @VisibleForTesting static final long RENEWAL_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  // How late the job may run past its scheduled time, e.g. while the device is dozing.
+  private static final long RENEWAL_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  /**
+   * Schedules the renewal of the given account's TGT, replacing any renewal previously scheduled
+   * for the account.
+   */
+  static void scheduleRenewal(Context context, String accountName, TicketGrantingTicket tgt) {
+    if (tgt == null || tgt.getExpiryDate() == null) {
+      return;
+    }
+    long delayMillis =
+        getRenewalDelayMillis(
+            tgt.getIssuanceDate(), tgt.getExpiryDate(), System.currentTimeMillis());
+    PersistableBundle extras = new PersistableBundle();
+    extras.putString(EXTRA_ACCOUNT_NAME, accountName);
+    JobInfo job =
+        new JobInfo.Builder(
+                getRenewalJobId(accountName),
+                new ComponentName(context, TicketRenewalJobService.class))
+            .setExtras(extras)
+            .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+            .setMinimumLatency(delayMillis)
+            .setOverrideDeadline(delayMillis + RENEWAL_WINDOW_MILLIS)
+            .setBackoffCriteria(INITIAL_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+            .setPersisted(true)
+            .build();
+    JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+    if (jobScheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+      Log.w(TAG, String.format("Failed scheduling ticket-granting-ticket renewal for %s.",
+          accountName));
+      return;
+    }
+    Log.d(TAG, String.format("Ticket-granting-ticket renewal for %s in %d seconds.",
+        accountName, TimeUnit.MILLISECONDS.toSeconds(delayMillis)));
+  }
+
+  /** Cancels the renewal scheduled for an account, e.g. because the account was removed. */
+  static void cancelRenewal(Context context, String accountName) {
+    context.getSystemService(JobScheduler.class).cancel(getRenewalJobId(accountName));
+  }
+
+  @VisibleForTesting
+  static int getRenewalJobId(String accountName) {
+    return FIRST_ACCOUNT_JOB_ID
+        + Math.floorMod(accountName.hashCode(), Integer.MAX_VALUE - FIRST_ACCOUNT_JOB_ID);
+  }
+
+  /** Returns how long to wait, from {@code nowMillis}, before renewing a ticket. */
+  @VisibleForTesting
+  static long getRenewalDelayMillis(Date issuanceDate, Date expiryDate, long nowMillis) {
+    long margin = RENEWAL_MARGIN_MILLIS;
+    if (issuanceDate != null) {
+      margin = Math.min(margin, (expiryDate.getTime() - issuanceDate.getTime()) / 2);
+    }
+    return Math.max(0, expiryDate.getTime() - margin - nowMillis);
+  }
+
+  @Override
+  public boolean onStartJob(JobParameters params) {
+    KdcDiscovery.getInstance().initialize(this);
+    // Applies the managed configuration, e.g. whether KDCs are discovered, in this process too.
+    AccountConfiguration.getInstance(this);
+    ServiceTicketCache.getInstance().initialize(this);
+    KeyTabFiles.getInstance().initialize(this);
+    String accountName = params.getExtras().getString(EXTRA_ACCOUNT_NAME);
+    try {
+      KerberosExecutor.getInstance()
+          .execute(
+              () -> {
+                boolean renewed = renewTicketGrantingTickets(accountName);
+                // The process may be stopped once the job finished: store the renewed TGTs and
+                // service tickets first.
+                KerberosAccount.flushWrites();
+                ServiceTicketCache.getInstance().flushWrites();
+                jobFinished(params, !renewed);
+              });
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Too many Kerberos requests, retrying renewal later.");
+      jobFinished(params, true /* wantsReschedule */);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean onStopJob(JobParameters params) {
+    // Retry if the job was interrupted.
+    return true;
+  }
+
+  /**
+   * Renews the TGT of the account with the given name, or of every account if the name is null.
+   *
+   * @return false if a renewal failed and should be retried later.
+   */
+  private boolean renewTicketGrantingTickets(String accountName) {
+    if (accountName != null) {
+      KerberosAccount account = KerberosAccount.getAccount(this, accountName);
+      if (account == null) {
+        Log.i(TAG, String.format("No account %s to renew the ticket-granting-ticket for.",
+            accountName));
+        return true;
+      }
+      return renewTicketGrantingTicket(account);
+    }
+    boolean renewed = true;
+    for (KerberosAccount account : KerberosAccount.getAccounts(this)) {
+      renewed &= renewTicketGrantingTicket(account);
+    }
+    return renewed;
+  }
+
+  /**
+   * Obtains and stores a new TGT for the account: renews the current one if it is renewable, and
+   * logs in with the stored password otherwise.
+   *
+   * @return false if renewal failed and should be retried later.
+   */
+  private boolean renewTicketGrantingTicket(KerberosAccount account) {
+    TicketGrantingTicket currentTgt = account.getDecodedTicketGrantingTicket();
+    long now = System.currentTimeMillis();
+    if (currentTgt != null && currentTgt.getExpiryDate() != null
+        && getRenewalDelayMillis(currentTgt.getIssuanceDate(), currentTgt.getExpiryDate(), now)
+            > 0) {
+      // The TGT was renewed since this job was scheduled.
+      scheduleRenewal(this, account.getName(), currentTgt);
+      return true;
+    }
+
+    if (TicketRenewalRequest.canRenew(currentTgt, now)) {
+      Log.i(TAG, String.format("Renewing ticket-granting-ticket for %s.", account.getName()));
+      TicketRenewalRequest request =
+          new TicketRenewalRequest(
+              currentTgt,
+              account.getDomain(),
+              account.getDomainController(),
+              false /* debugWithCredentials */);
+      TicketRequestResult result = request.execute();
+      if (result.successful()) {
+        storeTicketGrantingTicket(account, request.getSubject());
+        return true;
+      }
+      Log.w(TAG, String.format("Failed renewing ticket-granting-ticket: %s", result));
+    }
+
+    // Keys of the current TGT spare deriving them from the password again.
+    LongTermKeys storedKeys =
+        currentTgt == null ? null : LongTermKeys.fromSubject(currentTgt.asSubject());
+    if (TextUtils.isEmpty(account.getPassword()) && storedKeys == null) {
+      Log.i(TAG, String.format("No password stored for %s, renewal needs the user.",
+          account.getName()));
+      return true;
+    }
+
+    Log.i(TAG, String.format("Obtaining new ticket-granting-ticket for %s.", account.getName()));
+    UserAuthenticationRequest request =
+        new UserAuthenticationRequest(
+            new KerberosAccountDetails(
+                account.getName(),
+                account.getPassword(),
+                account.getDomain(),
+                account.getDomainController()),
+            storedKeys,
+            false /* debugWithCredentials */);
+    TicketRequestResult result = request.execute();
+    if (!result.successful() || request.getSubject() == null) {
+      Log.w(TAG, String.format("Failed obtaining ticket-granting-ticket: %s", result));
+      // A bad password will not get better by retrying; the user is asked for a new one on the
+      // next request.
+      return result.isPasswordBad();
+    }
+
+    storeTicketGrantingTicket(account, request.getSubject());
+    return true;
+  }
+
+  private void storeTicketGrantingTicket(KerberosAccount account, Subject subject) {
+    TicketGrantingTicket tgt = new TicketGrantingTicket(subject);
+    account.setTicketGrantingTicket(tgt);
+    account.save(this);
+    scheduleRenewal(this, account.getName(), tgt);
+    ServiceTicketPrefetcher.prefetch(this, account, tgt);
+  }
+}
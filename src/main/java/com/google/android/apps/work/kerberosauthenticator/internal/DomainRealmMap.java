@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.util.Log;
+import com.google.common.base.Ascii;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps host names to realms, the way the [domain_realm] section of krb5.conf does: an entry for
+ * {@code .example.com} maps every host in the example.com domain, and an entry for {@code
+ * example.com} maps that host only. The most specific entry for a host wins.
+ *
+ * <p>The entries are compiled into a trie of the labels of the names, starting from the last
+ * label, so that looking a host up takes time proportional to the length of its name however
+ * many entries there are.
+ */
+public final class DomainRealmMap {
+  private static final Splitter ENTRY_SPLITTER =
+      Splitter.onPattern("[,\n]").trimResults().omitEmptyStrings();
+  private static final Splitter MAPPING_SPLITTER = Splitter.on('=').trimResults();
+
+  private final Node root = new Node();
+  private int size = 0;
+
+  /**
+   * Parses entries of the form {@code domain = REALM}, separated by commas or new lines. Invalid
+   * entries are skipped.
+   */
+  public static DomainRealmMap parse(String entries) {
+    DomainRealmMap map = new DomainRealmMap();
+    for (String entry : ENTRY_SPLITTER.split(Strings.nullToEmpty(entries))) {
+      List<String> mapping = MAPPING_SPLITTER.splitToList(entry);
+      if (mapping.size() != 2
+          || mapping.get(0).isEmpty()
+          || mapping.get(0).equals(".")
+          || mapping.get(1).isEmpty()) {
+        Log.w(TAG, String.format("Ignoring invalid domain to realm mapping %s.", entry));
+        continue;
+      }
+      map.putIfAbsent(mapping.get(0), mapping.get(1));
+    }
+    return map;
+  }
+
+  /**
+   * Maps the given domain, if it starts with a dot, or host otherwise, to the realm, unless it
+   * is mapped already.
+   */
+  public void putIfAbsent(String name, String realm) {
+    String lowerCaseName = Ascii.toLowerCase(name);
+    boolean isDomain = lowerCaseName.startsWith(".");
+    Node node = root;
+    int end = lowerCaseName.length();
+    int first = isDomain ? 1 : 0;
+    while (end > first) {
+      int start = Math.max(lowerCaseName.lastIndexOf('.', end - 1) + 1, first);
+      node = node.getOrAddChild(lowerCaseName.substring(start, end));
+      end = start - 1;
+    }
+    if (isDomain && node.domainRealm == null) {
+      node.domainRealm = realm;
+      size++;
+    } else if (!isDomain && node.hostRealm == null) {
+      node.hostRealm = realm;
+      size++;
+    }
+  }
+
+  /** Returns the realm of the given host, or null if no entry maps it. */
+  public String getRealm(String host) {
+    String name = Ascii.toLowerCase(host);
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    String realm = null;
+    Node node = root;
+    int end = name.length();
+    while (end > 0) {
+      // The host is in the domain of the labels matched so far.
+      if (node.domainRealm != null) {
+        realm = node.domainRealm;
+      }
+      int start = name.lastIndexOf('.', end - 1) + 1;
+      node = node.getChild(name.substring(start, end));
+      if (node == null) {
+        return realm;
+      }
+      end = start - 1;
+    }
+    return node.hostRealm != null ? node.hostRealm : realm;
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** A label of the trie, with the realms of the domain and of the host it names. */
+  private static final class Node {
+    private Map<String, Node> children = null;
+    private String domainRealm = null;
+    private String hostRealm = null;
+
+    Node getChild(String label) {
+      return children != null ? children.get(label) : null;
+    }
+
+    Node getOrAddChild(String label) {
+      if (children == null) {
+        children = new HashMap<>();
+      }
+      return children.computeIfAbsent(label, unused -> new Node());
+    }
+  }
+}
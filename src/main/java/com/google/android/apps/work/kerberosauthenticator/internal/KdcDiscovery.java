@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.SrvResolver.SrvRecord;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Finds the KDCs of a realm through the {@code _kerberos._udp} and {@code _kerberos._tcp} SRV
+ * records of the realm, asking the DNS servers of the active network.
+ *
+ * <p>KDCs are returned as addresses rather than host names where the DNS servers provide them,
+ * so that the Kerberos library does not have to look them up again for each request. Answers
+ * are cached by {@link SrvResolver} for as long as their TTL allows.
+ */
+public final class KdcDiscovery {
+  private static final int DNS_PORT = 53;
+  private static final int DNS_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(2);
+  private static final String[] SRV_PREFIXES = {"_kerberos._udp.", "_kerberos._tcp."};
+
+  private static final KdcDiscovery INSTANCE =
+      new KdcDiscovery(new SrvResolver(System::currentTimeMillis, DNS_TIMEOUT_MILLIS), null);
+
+  private final SrvResolver resolver;
+  private volatile Supplier<List<InetSocketAddress>> dnsServers;
+  // Whether the discoverDomainControllers managed configuration is set.
+  private volatile boolean enabled = false;
+
+  public static KdcDiscovery getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  KdcDiscovery(SrvResolver resolver, Supplier<List<InetSocketAddress>> dnsServers) {
+    this.resolver = resolver;
+    this.dnsServers = dnsServers;
+  }
+
+  /** Makes discovery use the DNS servers of the device's active network. */
+  public void initialize(Context context) {
+    if (dnsServers != null) {
+      return;
+    }
+    ConnectivityManager connectivityManager =
+        context.getApplicationContext().getSystemService(ConnectivityManager.class);
+    dnsServers = () -> getDnsServers(connectivityManager);
+  }
+
+  /** Sets whether KDCs are discovered for realms none is configured for. */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the KDCs of the realm, most preferred first, or an empty list if it publishes none.
+   *
+   * @throws IOException if the DNS servers could not be asked.
+   */
+  public List<String> discover(String realm) throws IOException {
+    Supplier<List<InetSocketAddress>> dnsServerSupplier = dnsServers;
+    List<InetSocketAddress> servers =
+        dnsServerSupplier == null ? Collections.emptyList() : dnsServerSupplier.get();
+    if (servers.isEmpty()) {
+      throw new IOException("No DNS server to discover KDCs with");
+    }
+
+    Set<String> kdcs = new LinkedHashSet<>();
+    IOException failure = null;
+    for (String prefix : SRV_PREFIXES) {
+      List<SrvRecord> records;
+      try {
+        records = resolver.resolveSrv(prefix + realm, servers);
+      } catch (IOException e) {
+        failure = e;
+        continue;
+      }
+      for (SrvRecord record : records) {
+        kdcs.addAll(toKdcs(record, servers));
+      }
+    }
+    if (kdcs.isEmpty() && failure != null) {
+      throw failure;
+    }
+    Log.d(TAG, String.format("KDCs discovered for %s: %s", realm, kdcs));
+    return new ArrayList<>(kdcs);
+  }
+
+  // Returns the addresses of the record's target with the record's port, or the target itself
+  // if its addresses are not known.
+  private List<String> toKdcs(SrvRecord record, List<InetSocketAddress> servers) {
+    List<InetAddress> addresses;
+    try {
+      addresses = resolver.resolveAddresses(record.target, servers);
+    } catch (IOException e) {
+      addresses = Collections.emptyList();
+    }
+    if (addresses.isEmpty()) {
+      return Collections.singletonList(record.target + ":" + record.port);
+    }
+    List<String> kdcs = new ArrayList<>(addresses.size());
+    for (InetAddress address : addresses) {
+      String host = address.getHostAddress();
+      if (address instanceof Inet6Address) {
+        host = "[" + host + "]";
+      }
+      kdcs.add(host + ":" + record.port);
+    }
+    return kdcs;
+  }
+
+  private static List<InetSocketAddress> getDnsServers(ConnectivityManager connectivityManager) {
+    Network network = connectivityManager.getActiveNetwork();
+    LinkProperties linkProperties =
+        network == null ? null : connectivityManager.getLinkProperties(network);
+    if (linkProperties == null) {
+      return Collections.emptyList();
+    }
+    List<InetSocketAddress> servers = new ArrayList<>();
+    for (InetAddress address : linkProperties.getDnsServers()) {
+      servers.add(new InetSocketAddress(address, DNS_PORT));
+    }
+    return servers;
+  }
+}
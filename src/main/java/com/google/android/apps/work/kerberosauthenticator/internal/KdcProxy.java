@@ -0,0 +1,493 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Relays the Kerberos library's requests to the KDCs over persistent TCP connections.
+ *
+ * <p>The library opens a new connection to the KDC for every exchange, which costs a round trip
+ * per service ticket; over a high-latency VPN that is a good part of the time it takes. Instead,
+ * the library is configured to talk TCP to a listener on the loopback interface, one per realm.
+ * The proxy forwards each length-prefixed request over a connection to the KDC that is kept open
+ * for a short idle window. A connection carries one request at a time: a KDC need not answer
+ * several requests on a connection in the order they were sent (RFC 4120, section 7.2.2), and
+ * the replies could not be told apart. Concurrent requests are sent on connections of their own,
+ * a few of which are kept open per KDC.
+ *
+ * <p>KDCs that close a kept connection before answering the next request on it are assumed not
+ * to keep connections open: the request is sent again, and the KDC is given one connection per
+ * request for a while. The proxy tries the KDCs in the order preferred by the {@link
+ * KdcSelector} and records the outcome of each exchange, as the library would have.
+ *
+ * <p>The listeners only accept connections this app opened, as told by the kernel's connection
+ * tables: other apps could otherwise have their requests sent to the KDCs over this app's network
+ * or VPN. Where those tables cannot be read, e.g. by apps on Android 10 and later, the proxy
+ * cannot tell its clients apart and is not started; see {@link #canIdentifyClients}.
+ */
+public final class KdcProxy {
+  private static final int DEFAULT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  // How long a KDC that closed a kept connection gets one connection per request.
+  private static final long CLOSING_KDC_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  // How many idle connections are kept open per KDC; further ones are closed once answered.
+  private static final int MAX_IDLE_CONNECTIONS = 4;
+  // Kerberos messages are a few kilobytes; anything much larger is not a Kerberos message.
+  private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+  // The TCP connections of all apps, with the user ID of the app that owns each.
+  private static final String[] CONNECTION_TABLES = {"/proc/net/tcp6", "/proc/net/tcp"};
+
+  private static final KdcProxy INSTANCE =
+      new KdcProxy(
+          KdcSelector.getInstance(),
+          KerberosMetrics.getInstance(),
+          DEFAULT_TIMEOUT_MILLIS,
+          DEFAULT_IDLE_TIMEOUT_MILLIS,
+          KdcProxy::isOwnConnection);
+
+  private final KdcSelector kdcSelector;
+  private final KerberosMetrics metrics;
+  private final int timeoutMillis;
+  private final long idleTimeoutMillis;
+  // Whether a connection to a listener may be relayed.
+  private final Predicate<Socket> clientFilter;
+  private final ExecutorService relayExecutor;
+  // Closes the connections that stayed idle for the idle timeout.
+  private final ScheduledExecutorService idleCloser;
+  // Listener of each realm, guarded by this.
+  private final Map<String, ServerSocket> listeners = new HashMap<>();
+  private final Map<String, List<String>> realmKdcs = new ConcurrentHashMap<>();
+  // Connections to each KDC that no request is using, most recently used first.
+  private final Map<String, Deque<Connection>> idleConnections = new ConcurrentHashMap<>();
+  // When each KDC last closed a kept connection.
+  private final Map<String, Long> closingKdcs = new ConcurrentHashMap<>();
+  // Whether the client filter accepts this app's own connections, guarded by this. Null until
+  // checked.
+  private Boolean clientsIdentifiable = null;
+
+  public static KdcProxy getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  KdcProxy(
+      KdcSelector kdcSelector,
+      KerberosMetrics metrics,
+      int timeoutMillis,
+      long idleTimeoutMillis,
+      Predicate<Socket> clientFilter) {
+    this.kdcSelector = kdcSelector;
+    this.metrics = metrics;
+    this.timeoutMillis = timeoutMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.clientFilter = clientFilter;
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.relayExecutor =
+        Executors.newCachedThreadPool(
+            runnable ->
+                daemonThread(runnable, "KDC proxy #" + threadNumber.incrementAndGet()));
+    this.idleCloser =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> daemonThread(runnable, "KDC proxy idle connections"));
+  }
+
+  /**
+   * Returns whether the proxy can tell the connections this app opens to its listeners from those
+   * of other apps. If not, the proxy must not be used: it would relay any app's requests. Checked
+   * once, by connecting to a listener of its own.
+   */
+  public synchronized boolean canIdentifyClients() {
+    if (clientsIdentifiable == null) {
+      clientsIdentifiable = acceptsOwnConnection();
+      if (!clientsIdentifiable) {
+        Log.w(TAG, "Cannot tell which app connects to the KDC proxy, not using it.");
+      }
+    }
+    return clientsIdentifiable;
+  }
+
+  /**
+   * Relays requests for the realm to the given KDCs, replacing the KDCs given before.
+   *
+   * @return the address of the realm's listener, on the loopback interface.
+   * @throws IOException if the listener could not be started, or the proxy {@link
+   *     #canIdentifyClients cannot tell its clients apart}.
+   */
+  public synchronized InetSocketAddress serve(String realm, List<String> kdcs)
+      throws IOException {
+    if (!canIdentifyClients()) {
+      throw new IOException("Cannot tell which app connects to the KDC proxy");
+    }
+    realmKdcs.put(realm, kdcs);
+    ServerSocket listener = listeners.get(realm);
+    if (listener == null) {
+      listener = new ServerSocket(0, 0 /* default backlog */, InetAddress.getLoopbackAddress());
+      listeners.put(realm, listener);
+      ServerSocket acceptingListener = listener;
+      daemonThread(() -> accept(acceptingListener, realm), "KDC proxy " + realm).start();
+      Log.d(TAG, String.format("Relaying requests for %s through port %d.",
+          realm, listener.getLocalPort()));
+    }
+    return (InetSocketAddress) listener.getLocalSocketAddress();
+  }
+
+  /** Stops the listeners and closes the connections to the KDCs. */
+  @VisibleForTesting
+  synchronized void close() {
+    for (ServerSocket listener : listeners.values()) {
+      closeQuietly(listener);
+    }
+    listeners.clear();
+    relayExecutor.shutdownNow();
+    idleCloser.shutdownNow();
+    for (Deque<Connection> connections : idleConnections.values()) {
+      Connection connection;
+      while ((connection = connections.pollFirst()) != null) {
+        connection.close();
+      }
+    }
+  }
+
+  private boolean acceptsOwnConnection() {
+    try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        Socket accepted = listener.accept()) {
+      return clientFilter.test(accepted);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed checking connections to the KDC proxy", e);
+      return false;
+    }
+  }
+
+  private void accept(ServerSocket listener, String realm) {
+    while (!listener.isClosed()) {
+      try {
+        Socket client = listener.accept();
+        if (!clientFilter.test(client)) {
+          Log.w(TAG, String.format("Refused Kerberos request for %s from another app.", realm));
+          closeQuietly(client);
+          continue;
+        }
+        relayExecutor.execute(() -> relay(client, realm));
+      } catch (IOException e) {
+        if (!listener.isClosed()) {
+          Log.w(TAG, String.format("Failed accepting Kerberos request for %s.", realm), e);
+        }
+      }
+    }
+  }
+
+  // Relays the requests the library sends on the client connection until it closes it. If no
+  // KDC answers, the client connection is closed without a reply, as an unreachable KDC would.
+  private void relay(Socket client, String realm) {
+    try (Socket socket = client) {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      byte[] request;
+      while ((request = readMessage(in)) != null) {
+        writeMessage(out, exchange(realmKdcs.get(realm), request));
+      }
+    } catch (IOException e) {
+      Log.i(TAG, String.format("Failed relaying Kerberos request for %s: %s", realm, e));
+    }
+  }
+
+  @VisibleForTesting
+  byte[] exchange(List<String> kdcs, byte[] request) throws IOException {
+    IOException failure = new IOException("No KDC to send the request to");
+    for (String kdc : kdcSelector.order(kdcs)) {
+      long start = System.currentTimeMillis();
+      try {
+        byte[] reply = exchange(kdc, request);
+        long latencyMillis = System.currentTimeMillis() - start;
+        kdcSelector.recordSuccess(kdc, latencyMillis);
+        metrics.recordKdcRequest(kdc, latencyMillis, false /* unreachable */);
+        return reply;
+      } catch (IOException e) {
+        kdcSelector.recordFailure(kdc);
+        metrics.recordKdcRequest(
+            kdc, System.currentTimeMillis() - start, true /* unreachable */);
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  private byte[] exchange(String kdc, byte[] request) throws IOException {
+    Long closedMillis = closingKdcs.get(kdc);
+    if (closedMillis == null || System.currentTimeMillis() - closedMillis > CLOSING_KDC_MILLIS) {
+      Connection connection = takeIdleConnection(kdc);
+      if (connection == null) {
+        // Connected without holding any lock, so that an unreachable KDC only holds up the
+        // requests sent to it.
+        return exchange(new Connection(kdc, connect(kdc)), request);
+      }
+      try {
+        return exchange(connection, request);
+      } catch (ConnectionClosedException e) {
+        Log.i(TAG, String.format("%s closed the connection, using one per request.", kdc));
+        closingKdcs.put(kdc, System.currentTimeMillis());
+      }
+    }
+    Connection connection = new Connection(kdc, connect(kdc));
+    try {
+      return connection.exchange(request);
+    } finally {
+      connection.close();
+    }
+  }
+
+  // Sends the request on the connection, which is kept for further requests once answered.
+  private byte[] exchange(Connection connection, byte[] request) throws IOException {
+    byte[] reply;
+    try {
+      reply = connection.exchange(request);
+    } catch (IOException e) {
+      // Also after a timeout, so that a late reply is not taken for that of the next request.
+      connection.close();
+      throw e;
+    }
+    keepIdle(connection);
+    return reply;
+  }
+
+  // Returns the most recently used idle connection to the KDC, or null if there is none.
+  private Connection takeIdleConnection(String kdc) {
+    Deque<Connection> connections = idleConnections.get(kdc);
+    return connections != null ? connections.pollFirst() : null;
+  }
+
+  private void keepIdle(Connection connection) {
+    Deque<Connection> connections =
+        idleConnections.computeIfAbsent(connection.kdc, unused -> new ConcurrentLinkedDeque<>());
+    if (connections.size() >= MAX_IDLE_CONNECTIONS) {
+      connection.close();
+      return;
+    }
+    connections.addFirst(connection);
+    int uses = connection.uses;
+    try {
+      idleCloser.schedule(
+          () -> closeIfIdle(connections, connection, uses),
+          idleTimeoutMillis,
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The proxy was closed.
+      connections.remove(connection);
+      connection.close();
+    }
+  }
+
+  // Closes the connection if it was not used since it was last kept.
+  private static void closeIfIdle(
+      Deque<Connection> connections, Connection connection, int uses) {
+    if (connection.uses == uses && connections.remove(connection)) {
+      connection.close();
+    }
+  }
+
+  private Socket connect(String kdc) throws IOException {
+    InetSocketAddress address = KdcSelector.toSocketAddress(kdc);
+    Socket socket = new Socket();
+    try {
+      socket.connect(
+          new InetSocketAddress(address.getHostString(), address.getPort()), timeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      socket.setTcpNoDelay(true);
+      return socket;
+    } catch (IOException | IllegalArgumentException e) {
+      closeQuietly(socket);
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+  }
+
+  /** A connection to a KDC, used by one request at a time. */
+  private static final class Connection {
+    private final String kdc;
+    private final Socket socket;
+    // How many requests were answered on the connection.
+    private volatile int uses = 0;
+
+    private Connection(String kdc, Socket socket) {
+      this.kdc = kdc;
+      this.socket = socket;
+    }
+
+    /**
+     * Sends the request and reads its reply, waiting for the timeout set on the socket.
+     *
+     * @throws ConnectionClosedException if the KDC closed the connection before answering.
+     */
+    byte[] exchange(byte[] request) throws IOException {
+      byte[] reply;
+      try {
+        writeMessage(socket.getOutputStream(), request);
+        reply = readMessage(socket.getInputStream());
+      } catch (SocketException | EOFException e) {
+        throw new ConnectionClosedException(kdc, e);
+      }
+      if (reply == null) {
+        throw new ConnectionClosedException(kdc, null);
+      }
+      uses++;
+      return reply;
+    }
+
+    void close() {
+      closeQuietly(socket);
+    }
+  }
+
+  // Whether the client connection was opened by this app, as the Kerberos library does.
+  private static boolean isOwnConnection(Socket client) {
+    // The client's end of the connection is at the remote port of the accepted socket.
+    Integer uid = findConnectionOwner(client.getPort(), client.getLocalPort());
+    // Refused if the platform does not tell which app owns the connection.
+    return uid != null && uid == Process.myUid();
+  }
+
+  private static Integer findConnectionOwner(int localPort, int remotePort) {
+    for (String table : CONNECTION_TABLES) {
+      try (BufferedReader reader = new BufferedReader(new FileReader(table))) {
+        Integer uid = findConnectionOwner(reader, localPort, remotePort);
+        if (uid != null) {
+          return uid;
+        }
+      } catch (IOException e) {
+        Log.d(TAG, String.format("Failed reading %s: %s", table, e));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the user ID of the app that owns the TCP connection between the given ports, from a
+   * connection table in the format of {@code /proc/net/tcp}, or null if it is not listed.
+   */
+  @VisibleForTesting
+  static Integer findConnectionOwner(BufferedReader table, int localPort, int remotePort)
+      throws IOException {
+    // Skip the header.
+    String line = table.readLine();
+    while ((line = table.readLine()) != null) {
+      // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ...
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length > 7
+          && getPort(fields[1]) == localPort
+          && getPort(fields[2]) == remotePort) {
+        try {
+          return Integer.parseInt(fields[7]);
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  // Returns the port of an address in a connection table, e.g. 0100007F:1F90, or -1.
+  private static int getPort(String address) {
+    try {
+      return Integer.parseInt(address.substring(address.indexOf(':') + 1), 16);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** The KDC closed the connection before answering the request. */
+  private static final class ConnectionClosedException extends IOException {
+    ConnectionClosedException(String kdc, IOException cause) {
+      super(String.format("%s closed the connection", kdc), cause);
+    }
+  }
+
+  /**
+   * Reads a request or reply prefixed by its length, as sent over TCP (RFC 4120, section
+   * 7.2.2).
+   *
+   * @return the message, or null if the connection was closed before it started.
+   */
+  @VisibleForTesting
+  static byte[] readMessage(InputStream in) throws IOException {
+    int first = in.read();
+    if (first < 0) {
+      return null;
+    }
+    DataInputStream dataIn = new DataInputStream(in);
+    int length = (first << 24) | (dataIn.readUnsignedByte() << 16) | dataIn.readUnsignedShort();
+    // The high bit is reserved for extensions, which are not used.
+    if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+      throw new IOException(String.format("Unexpected message length %d", length));
+    }
+    byte[] message = new byte[length];
+    dataIn.readFully(message);
+    return message;
+  }
+
+  @VisibleForTesting
+  static void writeMessage(OutputStream out, byte[] message) throws IOException {
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(message.length);
+    dataOut.write(message);
+    dataOut.flush();
+  }
+
+  private static Thread daemonThread(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+}
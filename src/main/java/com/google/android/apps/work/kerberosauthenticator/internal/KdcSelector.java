@@ -0,0 +1,303 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of how fast and how reliable each KDC is, and orders the KDCs of a realm so that
+ * the fastest healthy one is tried first. The Kerberos library contacts the KDCs of a realm in
+ * the order they are configured, moving on to the next one when a KDC does not answer.
+ *
+ * <p>A KDC that failed to answer is moved to the end of the list for a while, backing off
+ * exponentially with consecutive failures. When none of several KDCs has been measured yet, the
+ * first two are raced against each other by connecting to them in parallel.
+ */
+public final class KdcSelector {
+  private static final int KERBEROS_PORT = 88;
+  private static final int RACED_KDC_COUNT = 2;
+  private static final long DEFAULT_PROBE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  // Weight of the newest sample in the moving average of a KDC's latency.
+  private static final double LATENCY_SMOOTHING = 0.3;
+
+  private static final KdcSelector INSTANCE =
+      new KdcSelector(System::currentTimeMillis, DEFAULT_PROBE_TIMEOUT_MILLIS);
+
+  private final LongSupplier clock;
+  private final long probeTimeoutMillis;
+  private final Map<String, KdcStats> stats = new ConcurrentHashMap<>();
+  // The race running for each list of KDCs, completed once one of them accepted a connection or
+  // all failed.
+  private final Map<List<String>, CompletableFuture<Void>> races = new ConcurrentHashMap<>();
+
+  public static KdcSelector getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param probeTimeoutMillis how long to wait for KDCs to accept a connection when racing them,
+   *     or 0 not to race them.
+   */
+  @VisibleForTesting
+  KdcSelector(LongSupplier clock, long probeTimeoutMillis) {
+    this.clock = clock;
+    this.probeTimeoutMillis = probeTimeoutMillis;
+  }
+
+  /**
+   * Returns the KDCs in the order they should be tried: healthy KDCs by increasing latency, then
+   * healthy KDCs that were not measured yet in the given order, then KDCs that recently failed.
+   */
+  public List<String> order(List<String> kdcs) {
+    long now = clock.getAsLong();
+    List<Rank> ranks = new ArrayList<>(kdcs.size());
+    for (String kdc : kdcs) {
+      ranks.add(rank(kdc, now));
+    }
+    // The sort is stable, so KDCs that rank equal keep their configured order.
+    ranks.sort(
+        Comparator.<Rank>comparingInt(rank -> rank.tier)
+            .thenComparingDouble(rank -> rank.value));
+    List<String> ordered = new ArrayList<>(kdcs.size());
+    for (Rank rank : ranks) {
+      ordered.add(rank.kdc);
+    }
+    return ordered;
+  }
+
+  /**
+   * Races the first KDCs of the list against each other if none of the KDCs was measured yet,
+   * so that the first request goes to the one that answers faster. Blocks until the first of
+   * them accepted a connection, all of them failed, or a short timeout elapsed. Concurrent calls
+   * for the same KDCs wait for the same race.
+   */
+  public void raceIfUnmeasured(List<String> kdcs) {
+    if (probeTimeoutMillis > 0 && kdcs.size() > 1 && !anyMeasured(kdcs)) {
+      race(kdcs.subList(0, Math.min(RACED_KDC_COUNT, kdcs.size())));
+    }
+  }
+
+  /** Records that the KDC answered a request after the given time. */
+  public void recordSuccess(String kdc, long latencyMillis) {
+    KdcStats kdcStats = stats.computeIfAbsent(kdc, unused -> new KdcStats());
+    synchronized (kdcStats) {
+      kdcStats.consecutiveFailures = 0;
+      kdcStats.latencyMillis =
+          kdcStats.latencyMillis < 0
+              ? latencyMillis
+              : LATENCY_SMOOTHING * latencyMillis
+                  + (1 - LATENCY_SMOOTHING) * kdcStats.latencyMillis;
+    }
+  }
+
+  /** Records that the KDC could not be reached. */
+  public void recordFailure(String kdc) {
+    KdcStats kdcStats = stats.computeIfAbsent(kdc, unused -> new KdcStats());
+    synchronized (kdcStats) {
+      kdcStats.consecutiveFailures++;
+      kdcStats.lastFailureMillis = clock.getAsLong();
+    }
+    Log.w(TAG, String.format("KDC %s could not be reached.", kdc));
+  }
+
+  /**
+   * Records the outcome of a request the library sent to the given KDCs, as far as it is known
+   * which KDC it reached. The library only gives up once it tried every KDC, so a request that
+   * reached none is recorded as a failure of each; an answer, which may have come from any of
+   * them, is only recorded if there was a single KDC to give it. A request that failed with an
+   * error from the KDC, such as a bad password, still counts as an answer.
+   *
+   * @param failure why the request failed, or null if it succeeded.
+   * @return the KDCs the request was attributed to, possibly none.
+   */
+  public List<String> recordRequest(List<String> kdcs, long latencyMillis, Throwable failure) {
+    if (failure != null && isUnreachable(failure)) {
+      for (String kdc : kdcs) {
+        recordFailure(kdc);
+      }
+      return kdcs;
+    }
+    if (kdcs.size() != 1) {
+      return Collections.emptyList();
+    }
+    recordSuccess(kdcs.get(0), latencyMillis);
+    return kdcs;
+  }
+
+  /** Returns true if the failure, or one of its causes, is a failure to reach the KDC. */
+  public static boolean isUnreachable(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SocketTimeoutException
+          || cause instanceof SocketException
+          || cause instanceof UnknownHostException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Forgets everything recorded so far. */
+  public void clear() {
+    stats.clear();
+  }
+
+  private boolean anyMeasured(List<String> kdcs) {
+    for (String kdc : kdcs) {
+      if (stats.containsKey(kdc)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Connects to the KDCs in parallel, recording how long each took to accept the connection.
+  // Returns once the first one did; the others still record their outcome.
+  private void race(List<String> kdcs) {
+    List<String> racedKdcs = new ArrayList<>(kdcs);
+    CompletableFuture<Void> newRace = new CompletableFuture<>();
+    CompletableFuture<Void> race = races.putIfAbsent(racedKdcs, newRace);
+    if (race == null) {
+      race = newRace;
+      // Later calls find the KDCs measured, and do not race them again.
+      newRace.whenComplete((unused, e) -> races.remove(racedKdcs, newRace));
+      AtomicInteger remainingProbes = new AtomicInteger(racedKdcs.size());
+      for (String kdc : racedKdcs) {
+        Thread probe =
+            new Thread(
+                () -> {
+                  if (probe(kdc) || remainingProbes.decrementAndGet() == 0) {
+                    newRace.complete(null);
+                  }
+                },
+                "KDC probe " + kdc);
+        probe.setDaemon(true);
+        probe.start();
+      }
+    }
+    try {
+      race.get(probeTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // The KDCs are tried in their configured order.
+    }
+  }
+
+  // Returns whether the KDC accepted a connection.
+  private boolean probe(String kdc) {
+    long start = clock.getAsLong();
+    try (Socket socket = new Socket()) {
+      InetSocketAddress address = toSocketAddress(kdc);
+      socket.connect(
+          new InetSocketAddress(address.getHostString(), address.getPort()),
+          (int) probeTimeoutMillis);
+      recordSuccess(kdc, clock.getAsLong() - start);
+      return true;
+    } catch (IOException | IllegalArgumentException e) {
+      recordFailure(kdc);
+      return false;
+    }
+  }
+
+  private Rank rank(String kdc, long now) {
+    KdcStats kdcStats = stats.get(kdc);
+    if (kdcStats == null) {
+      return new Rank(kdc, Rank.TIER_UNMEASURED, 0);
+    }
+    synchronized (kdcStats) {
+      if (kdcStats.consecutiveFailures > 0) {
+        long backoff =
+            Math.min(
+                MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(kdcStats.consecutiveFailures - 1, 16));
+        if (now - kdcStats.lastFailureMillis < backoff) {
+          return new Rank(kdc, Rank.TIER_FAILED, kdcStats.lastFailureMillis);
+        }
+      }
+      if (kdcStats.latencyMillis < 0) {
+        return new Rank(kdc, Rank.TIER_UNMEASURED, 0);
+      }
+      return new Rank(kdc, Rank.TIER_HEALTHY, kdcStats.latencyMillis);
+    }
+  }
+
+  /** Returns the unresolved address of the KDC, on the Kerberos port unless it names one. */
+  @VisibleForTesting
+  static InetSocketAddress toSocketAddress(String kdc) {
+    int portSeparator = kdc.lastIndexOf(':');
+    // More than one colon without brackets is an IPv6 address without a port.
+    if (portSeparator < 0 || kdc.indexOf(':') != portSeparator && !kdc.startsWith("[")) {
+      return InetSocketAddress.createUnresolved(kdc, KERBEROS_PORT);
+    }
+    if (kdc.startsWith("[") && kdc.lastIndexOf(']') > portSeparator) {
+      return InetSocketAddress.createUnresolved(
+          kdc.substring(1, kdc.length() - 1), KERBEROS_PORT);
+    }
+    String host = kdc.substring(0, portSeparator).replace("[", "").replace("]", "");
+    return InetSocketAddress.createUnresolved(
+        host, Integer.parseInt(kdc.substring(portSeparator + 1)));
+  }
+
+  private static final class KdcStats {
+    // Moving average of the KDC's latency, or -1 if it never answered.
+    private double latencyMillis = -1;
+    private int consecutiveFailures = 0;
+    private long lastFailureMillis = 0;
+  }
+
+  /** Where a KDC goes in the order: by tier, then by increasing value within the tier. */
+  private static final class Rank {
+    // Answered recently; ranked by latency.
+    private static final int TIER_HEALTHY = 0;
+    // Never answered, but did not fail recently either.
+    private static final int TIER_UNMEASURED = 1;
+    // Failed recently; ranked by the time of the failure, the least recent first.
+    private static final int TIER_FAILED = 2;
+
+    private final String kdc;
+    private final int tier;
+    private final double value;
+
+    private Rank(String kdc, int tier, double value) {
+      this.kdc = kdc;
+      this.tier = tier;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.common.base.Ascii;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import sun.security.krb5.Config;
+import sun.security.krb5.KrbException;
+
+/**
+ * The Kerberos library's configuration, shared by all requests in the process.
+ *
+ * <p>The library reads its configuration once from a krb5.conf file. Every realm a request was
+ * made for is written to that file, with its KDCs, so that requests for one realm do not change
+ * the configuration seen by requests for another. The file is only rewritten, and the library's
+ * configuration only reloaded, when a request brings a realm or KDCs that are not known yet.
+ *
+ * <p>Unless the {@link KdcProxy} could not be started, or cannot tell this app's connections from
+ * those of other apps, the library talks TCP to the proxy's loopback listener for each realm,
+ * which relays the requests to the realm's KDCs over persistent connections.
+ */
+public final class KerberosConfig {
+  private static final String KRB5_CONF_PROPERTY = "java.security.krb5.conf";
+  // Overrides of the KDC and realm that take precedence over the configuration file.
+  private static final String KRB5_KDC_PROPERTY = "java.security.krb5.kdc";
+  private static final String KRB5_REALM_PROPERTY = "java.security.krb5.realm";
+  private static final String JGSS_DEBUG_PROPERTY = "sun.security.jgss.debug";
+
+  // How long to wait for a KDC to answer before trying the next one, and how many times to try
+  // each. A KDC that does not answer is then moved to the end of the list by the KdcSelector.
+  private static final long KDC_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final int KDC_MAX_RETRIES = 1;
+
+  private static final KerberosConfig INSTANCE =
+      new KerberosConfig(
+          new File(System.getProperty("java.io.tmpdir"), "krb5.conf"),
+          KdcSelector.getInstance(),
+          KdcDiscovery.getInstance(),
+          KerberosMetrics.getInstance(),
+          KdcProxy.getInstance());
+
+  private final File configFile;
+  private final KdcSelector kdcSelector;
+  private final KdcDiscovery kdcDiscovery;
+  private final KerberosMetrics metrics;
+  // Null if the library connects to the KDCs itself.
+  private final KdcProxy kdcProxy;
+  // Configured or discovered KDCs of each realm. The first realm added is the default realm.
+  private final Map<String, List<String>> realmKdcs = new LinkedHashMap<>();
+  // Address of the proxy listener of each realm whose requests go through the KdcProxy.
+  private final Map<String, InetSocketAddress> realmProxies = new HashMap<>();
+  // KDCs of each realm an account is configured with, for requests that name none.
+  private volatile Map<String, List<String>> configuredKdcs = Collections.emptyMap();
+  private String appliedConfig = null;
+
+  public static KerberosConfig getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  KerberosConfig(
+      File configFile,
+      KdcSelector kdcSelector,
+      KdcDiscovery kdcDiscovery,
+      KerberosMetrics metrics,
+      KdcProxy kdcProxy) {
+    this.configFile = configFile;
+    this.kdcSelector = kdcSelector;
+    this.kdcDiscovery = kdcDiscovery;
+    this.metrics = metrics;
+    this.kdcProxy = kdcProxy;
+  }
+
+  /**
+   * Sets the KDCs configured for each realm, e.g. with the additional account of that realm, to
+   * use for requests that name none, such as those a KDC referred to another realm.
+   */
+  public void setConfiguredKdcs(Map<String, List<String>> configuredKdcs) {
+    this.configuredKdcs = Collections.unmodifiableMap(new HashMap<>(configuredKdcs));
+  }
+
+  /**
+   * Turns the library's debug output on or off. The setting is global to the process, so it
+   * follows the managed configuration rather than the context of any one request.
+   */
+  public void setDebug(boolean debug) {
+    System.setProperty(JGSS_DEBUG_PROPERTY, Boolean.toString(debug));
+  }
+
+  /**
+   * Makes sure the realm and KDCs of the context are part of the library's configuration, with
+   * the KDCs in the order preferred by the {@link KdcSelector}. If the context names no KDC, those
+   * {@link #setConfiguredKdcs configured} for the realm are used, or else discovered through DNS
+   * if {@link KdcDiscovery} is enabled. Cheap when the configuration is up to date.
+   *
+   * @return true if the configuration had to be reloaded.
+   * @throws IOException if no KDC is known for the realm, or the configuration could not be
+   *     written or loaded.
+   */
+  public boolean apply(KerberosContext context) throws IOException {
+    String realm = context.getRealm();
+    List<String> kdcs = context.getKdcs();
+    if (kdcs.isEmpty()) {
+      kdcs = configuredKdcs.getOrDefault(realm, Collections.emptyList());
+    }
+    if (kdcs.isEmpty()) {
+      if (!kdcDiscovery.isEnabled()) {
+        throw new IOException(String.format("No KDC configured for realm %s", realm));
+      }
+      kdcs = kdcDiscovery.discover(realm);
+      if (kdcs.isEmpty()) {
+        throw new IOException(String.format("No KDC found for realm %s", realm));
+      }
+    }
+    kdcSelector.raceIfUnmeasured(kdcs);
+    return update(realm, kdcs);
+  }
+
+  /**
+   * Makes sure the realm of the context is part of the library's configuration, e.g. because a
+   * KDC referred a request to it. Unlike {@link #apply}, keeps the KDCs already known for the
+   * realm, and only looks up the configured ones, or discovers them, if there are none.
+   */
+  public void applyRealm(KerberosContext context) throws IOException {
+    synchronized (this) {
+      if (realmKdcs.containsKey(context.getRealm())) {
+        return;
+      }
+    }
+    apply(context);
+  }
+
+  /**
+   * Records the outcome of a request made with the context, for the {@link KdcSelector} and the
+   * per-KDC {@link KerberosMetrics}; see {@link KdcSelector#recordRequest}. Requests relayed by
+   * the {@link KdcProxy} are recorded by the proxy, which knows which KDC answered.
+   */
+  public void recordRequest(KerberosContext context, long latencyMillis, Throwable failure) {
+    List<String> kdcs;
+    synchronized (this) {
+      if (realmProxies.containsKey(context.getRealm())) {
+        return;
+      }
+      kdcs = realmKdcs.get(context.getRealm());
+    }
+    if (kdcs == null) {
+      return;
+    }
+    boolean unreachable = failure != null && KdcSelector.isUnreachable(failure);
+    for (String kdc : kdcSelector.recordRequest(kdcs, latencyMillis, failure)) {
+      metrics.recordKdcRequest(kdc, latencyMillis, unreachable);
+    }
+  }
+
+  private synchronized boolean update(String realm, List<String> kdcs) throws IOException {
+    realmKdcs.put(realm, kdcs);
+    if (kdcProxy != null && kdcProxy.canIdentifyClients()) {
+      try {
+        realmProxies.put(realm, kdcProxy.serve(realm, kdcs));
+      } catch (IOException e) {
+        Log.w(TAG, String.format("Failed starting KDC proxy for %s, connecting directly.", realm),
+            e);
+        realmProxies.remove(realm);
+      }
+    }
+    String config = render();
+    if (config.equals(appliedConfig)) {
+      return false;
+    }
+
+    try (OutputStream out = new FileOutputStream(configFile)) {
+      out.write(config.getBytes(StandardCharsets.UTF_8));
+    }
+    System.clearProperty(KRB5_KDC_PROPERTY);
+    System.clearProperty(KRB5_REALM_PROPERTY);
+    System.setProperty(KRB5_CONF_PROPERTY, configFile.getAbsolutePath());
+    try {
+      Config.refresh();
+    } catch (KrbException e) {
+      throw new IOException("Failed loading Kerberos configuration", e);
+    }
+    appliedConfig = config;
+    Log.d(TAG, String.format("Kerberos configuration updated for realms %s.",
+        realmKdcs.keySet()));
+    return true;
+  }
+
+  /** Returns the contents of the krb5.conf file for the realms added so far. */
+  @VisibleForTesting
+  synchronized String render() {
+    StringBuilder config = new StringBuilder();
+    config.append("[libdefaults]\n");
+    if (!realmKdcs.isEmpty()) {
+      config
+          .append("  default_realm = ")
+          .append(realmKdcs.keySet().iterator().next())
+          .append('\n');
+    }
+    // The KDCs are listed below; there is nothing to discover.
+    config.append("  dns_lookup_kdc = false\n");
+    config.append("  dns_lookup_realm = false\n");
+    config.append("  kdc_timeout = ").append(getKdcTimeoutMillis()).append('\n');
+    config.append("  max_retries = ").append(KDC_MAX_RETRIES).append('\n');
+    if (!realmProxies.isEmpty()) {
+      // The proxy listeners only speak TCP.
+      config.append("  udp_preference_limit = 1\n");
+    }
+
+    config.append("[realms]\n");
+    for (Map.Entry<String, List<String>> realm : realmKdcs.entrySet()) {
+      config.append("  ").append(realm.getKey()).append(" = {\n");
+      InetSocketAddress proxy = realmProxies.get(realm.getKey());
+      if (proxy != null) {
+        config
+            .append("    kdc = ")
+            .append(proxy.getAddress().getHostAddress())
+            .append(':')
+            .append(proxy.getPort())
+            .append('\n');
+      } else {
+        for (String kdc : kdcSelector.order(realm.getValue())) {
+          config.append("    kdc = ").append(kdc).append('\n');
+        }
+      }
+      config.append("  }\n");
+    }
+
+    config.append("[domain_realm]\n");
+    for (String realm : realmKdcs.keySet()) {
+      String domain = Ascii.toLowerCase(realm);
+      config.append("  .").append(domain).append(" = ").append(realm).append('\n');
+      config.append("  ").append(domain).append(" = ").append(realm).append('\n');
+    }
+    return config.toString();
+  }
+
+  // The proxy tries the KDCs of a realm one after the other within a single request of the
+  // library, which must wait for all of them.
+  private long getKdcTimeoutMillis() {
+    int attemptedKdcs = 1;
+    for (String realm : realmProxies.keySet()) {
+      attemptedKdcs = Math.max(attemptedKdcs, realmKdcs.get(realm).size());
+    }
+    return KDC_TIMEOUT_MILLIS * attemptedKdcs;
+  }
+}
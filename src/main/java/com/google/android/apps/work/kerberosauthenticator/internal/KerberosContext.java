@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.security.auth.Subject;
+
+/**
+ * Everything a single ticket request needs to know about the Kerberos environment: the realm,
+ * the KDCs serving it, the subject holding the user's credentials and whether to log debug
+ * information.
+ *
+ * <p>Instances are immutable and are passed to each request, rather than the requests setting
+ * process-wide system properties, so that requests for different realms can run side by side.
+ */
+public final class KerberosContext {
+  private static final Splitter KDC_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+  private final String realm;
+  private final List<String> kdcs;
+  private final Subject subject;
+  private final boolean debug;
+
+  /**
+   * @param kdcs the KDCs of the realm, or an empty list to discover them through DNS (see {@link
+   *     KdcDiscovery}).
+   */
+  public KerberosContext(String realm, List<String> kdcs, Subject subject, boolean debug) {
+    this.realm = realm;
+    this.kdcs = Collections.unmodifiableList(new ArrayList<>(kdcs));
+    this.subject = subject;
+    this.debug = debug;
+  }
+
+  /**
+   * Returns the context for an Active Directory domain, served by the given domain controllers.
+   * The realm is the domain name in upper case.
+   *
+   * @param domainControllers one or more domain controllers, separated by commas, or an empty
+   *     string to discover them.
+   */
+  public static KerberosContext forDomain(
+      String adDomain, String domainControllers, Subject subject, boolean debug) {
+    //NOTE: Realm MUST be upper-case.
+    return new KerberosContext(
+        Ascii.toUpperCase(adDomain), parseKdcs(domainControllers), subject, debug);
+  }
+
+  /** Splits a comma-separated list of KDCs. */
+  public static List<String> parseKdcs(String kdcs) {
+    return Strings.isNullOrEmpty(kdcs)
+        ? Collections.emptyList()
+        : KDC_SPLITTER.splitToList(kdcs);
+  }
+
+  /** Returns a context for the same realm and KDCs, holding the given subject. */
+  public KerberosContext withSubject(Subject subject) {
+    return new KerberosContext(realm, kdcs, subject, debug);
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  /**
+   * Returns the KDCs of the realm, in the order they should be tried, or an empty list if they
+   * are to be discovered.
+   */
+  public List<String> getKdcs() {
+    return kdcs;
+  }
+
+  /** Returns the subject holding the user's credentials, or null if it has none yet. */
+  public Subject getSubject() {
+    return subject;
+  }
+
+  public boolean isDebug() {
+    return debug;
+  }
+
+  /** Returns the principal name qualified with the realm, unless it already names one. */
+  public String qualifyPrincipal(String principal) {
+    return principal.indexOf('@') >= 0 ? principal : principal + "@" + realm;
+  }
+}
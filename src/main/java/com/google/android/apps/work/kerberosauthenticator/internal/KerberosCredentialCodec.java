@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Date;
+import krb.javax.security.auth.kerberos.KerberosKey;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+
+/**
+ * Writes and reads Kerberos credentials in a compact binary layout: only the fields needed to
+ * rebuild the credential are written, in a fixed order, without any class metadata.
+ *
+ * <p>Byte arrays are written as their length followed by their contents (a length of -1 stands
+ * for null), and dates as milliseconds since the epoch.
+ */
+public final class KerberosCredentialCodec {
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  private KerberosCredentialCodec() {}
+
+  public static void writePrincipal(DataOutputStream out, KerberosPrincipal principal)
+      throws IOException {
+    out.writeUTF(principal.getName());
+    out.writeInt(principal.getNameType());
+  }
+
+  public static KerberosPrincipal readPrincipal(DataInputStream in) throws IOException {
+    String name = in.readUTF();
+    int nameType = in.readInt();
+    return new KerberosPrincipal(name, nameType);
+  }
+
+  public static void writeTicket(DataOutputStream out, KerberosTicket ticket)
+      throws IOException {
+    writeBytes(out, ticket.getEncoded());
+    writePrincipal(out, ticket.getClient());
+    writePrincipal(out, ticket.getServer());
+    out.writeInt(ticket.getSessionKeyType());
+    writeBytes(out, ticket.getSessionKey().getEncoded());
+    writeFlags(out, ticket.getFlags());
+    writeDate(out, ticket.getAuthTime());
+    writeDate(out, ticket.getStartTime());
+    writeDate(out, ticket.getEndTime());
+    writeDate(out, ticket.getRenewTill());
+    InetAddress[] clientAddresses = ticket.getClientAddresses();
+    if (clientAddresses == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(clientAddresses.length);
+      for (InetAddress address : clientAddresses) {
+        writeBytes(out, address.getAddress());
+      }
+    }
+  }
+
+  public static KerberosTicket readTicket(DataInputStream in) throws IOException {
+    byte[] asn1Encoding = readBytes(in);
+    KerberosPrincipal client = readPrincipal(in);
+    KerberosPrincipal server = readPrincipal(in);
+    int sessionKeyType = in.readInt();
+    byte[] sessionKey = readBytes(in);
+    boolean[] flags = readFlags(in);
+    Date authTime = readDate(in);
+    Date startTime = readDate(in);
+    Date endTime = readDate(in);
+    Date renewTill = readDate(in);
+    InetAddress[] clientAddresses = null;
+    int addressCount = in.readInt();
+    if (addressCount >= 0) {
+      clientAddresses = new InetAddress[addressCount];
+      for (int i = 0; i < addressCount; i++) {
+        clientAddresses[i] = InetAddress.getByAddress(readBytes(in));
+      }
+    }
+    return new KerberosTicket(
+        asn1Encoding,
+        client,
+        server,
+        sessionKey,
+        sessionKeyType,
+        flags,
+        authTime,
+        startTime,
+        endTime,
+        renewTill,
+        clientAddresses);
+  }
+
+  public static void writeKey(DataOutputStream out, KerberosKey key) throws IOException {
+    writePrincipal(out, key.getPrincipal());
+    out.writeInt(key.getKeyType());
+    out.writeInt(key.getVersionNumber());
+    writeBytes(out, key.getEncoded());
+  }
+
+  public static KerberosKey readKey(DataInputStream in) throws IOException {
+    KerberosPrincipal principal = readPrincipal(in);
+    int keyType = in.readInt();
+    int versionNumber = in.readInt();
+    byte[] keyBytes = readBytes(in);
+    return new KerberosKey(principal, keyBytes, keyType, versionNumber);
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > in.available()) {
+      throw new IOException(String.format("Truncated credential: %d bytes expected", length));
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeFlags(DataOutputStream out, boolean[] flags) throws IOException {
+    if (flags == null) {
+      out.writeByte(-1);
+      return;
+    }
+    out.writeByte(flags.length);
+    byte[] packed = new byte[(flags.length + 7) / 8];
+    for (int i = 0; i < flags.length; i++) {
+      if (flags[i]) {
+        packed[i / 8] |= (byte) (0x80 >>> (i % 8));
+      }
+    }
+    out.write(packed);
+  }
+
+  private static boolean[] readFlags(DataInputStream in) throws IOException {
+    int length = in.readByte();
+    if (length < 0) {
+      return null;
+    }
+    byte[] packed = new byte[(length + 7) / 8];
+    in.readFully(packed);
+    boolean[] flags = new boolean[length];
+    for (int i = 0; i < length; i++) {
+      flags[i] = (packed[i / 8] & (0x80 >>> (i % 8))) != 0;
+    }
+    return flags;
+  }
+
+  private static void writeDate(DataOutputStream out, Date date) throws IOException {
+    out.writeLong(date == null ? NO_DATE : date.getTime());
+  }
+
+  private static Date readDate(DataInputStream in) throws IOException {
+    long millis = in.readLong();
+    return millis == NO_DATE ? null : new Date(millis);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor all requests to the KDC run on. Requests for different services run in parallel,
+ * on a bounded number of threads; requests beyond what the queue holds are rejected rather than
+ * piling up while the KDC is unreachable.
+ */
+public final class KerberosExecutor {
+  private static final int THREAD_COUNT = 4;
+  private static final int QUEUE_CAPACITY = 64;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final Executor INSTANCE = createExecutor();
+
+  private KerberosExecutor() {}
+
+  public static Executor getInstance() {
+    return INSTANCE;
+  }
+
+  private static Executor createExecutor() {
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadFactory threadFactory =
+        runnable -> new Thread(runnable, "Kerberos #" + threadNumber.incrementAndGet());
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            THREAD_COUNT,
+            THREAD_COUNT,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(QUEUE_CAPACITY),
+            threadFactory);
+    // Do not keep idle threads around between bursts of requests.
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
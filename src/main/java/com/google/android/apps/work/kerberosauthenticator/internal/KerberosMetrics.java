@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import android.support.annotation.VisibleForTesting;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult.ResultCode;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts Kerberos requests and how long they take, so that slow or unreachable KDCs show up in
+ * {@code adb shell dumpsys activity service KerberosAuthenticatorService}.
+ *
+ * <p>Requests record into striped counters ({@link LongAdder}), so concurrent requests do not
+ * contend on them; the counters are only summed when dumped. Nothing is persisted: the numbers
+ * cover the lifetime of the process.
+ */
+public final class KerberosMetrics {
+  /** The kinds of request that are measured. */
+  public enum Operation {
+    // Logging in with the password: an AS exchange.
+    LOGIN,
+    // Renewing the ticket-granting-ticket.
+    RENEWAL,
+    // Obtaining a SPNEGO token, including the TGS exchange unless the service ticket is cached.
+    SPNEGO
+  }
+
+  // Upper bounds, in milliseconds, of the latency histogram buckets. The last bucket is open.
+  @VisibleForTesting
+  static final long[] BUCKET_BOUNDS_MILLIS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+  private static final KerberosMetrics INSTANCE = new KerberosMetrics();
+
+  private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+  private final Map<String, KdcMetrics> kdcs = new ConcurrentHashMap<>();
+  // How long warming up the Kerberos stack took when the process started, or -1 if it did not.
+  private volatile long warmUpMillis = -1;
+
+  public static KerberosMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  KerberosMetrics() {
+    for (Operation operation : Operation.values()) {
+      operations.put(operation, new OperationMetrics());
+    }
+  }
+
+  /** Records a request that completed, successfully or not, after {@code latencyMillis}. */
+  public void recordRequest(Operation operation, TicketRequestResult result, long latencyMillis) {
+    OperationMetrics metrics = operations.get(operation);
+    metrics.latency.record(latencyMillis);
+    metrics.results[result.getResultCode().ordinal()].increment();
+  }
+
+  /**
+   * Records an exchange with the given KDC.
+   *
+   * @param unreachable whether the KDC did not answer at all.
+   */
+  public void recordKdcRequest(String kdc, long latencyMillis, boolean unreachable) {
+    KdcMetrics metrics = kdcs.computeIfAbsent(kdc, unused -> new KdcMetrics());
+    if (unreachable) {
+      metrics.unreachable.increment();
+    } else {
+      metrics.latency.record(latencyMillis);
+    }
+  }
+
+  /** Returns how many exchanges with the KDC were recorded, whether it answered or not. */
+  @VisibleForTesting
+  public long getKdcRequestCount(String kdc) {
+    KdcMetrics metrics = kdcs.get(kdc);
+    if (metrics == null) {
+      return 0;
+    }
+    long count = metrics.unreachable.sum();
+    for (long bucketCount : metrics.latency.getBuckets()) {
+      count += bucketCount;
+    }
+    return count;
+  }
+
+  /** Records that warming up the Kerberos stack took {@code durationMillis}. */
+  public void recordWarmUp(long durationMillis) {
+    warmUpMillis = durationMillis;
+  }
+
+  /** Returns how long warming up the Kerberos stack took, or -1 if it was not warmed up. */
+  public long getWarmUpMillis() {
+    return warmUpMillis;
+  }
+
+  @VisibleForTesting
+  long getResultCount(Operation operation, ResultCode resultCode) {
+    return operations.get(operation).results[resultCode.ordinal()].sum();
+  }
+
+  @VisibleForTesting
+  long[] getLatencyBuckets(Operation operation) {
+    return operations.get(operation).latency.getBuckets();
+  }
+
+  /** Forgets everything recorded so far. */
+  public void clear() {
+    for (OperationMetrics metrics : operations.values()) {
+      metrics.latency.reset();
+      for (LongAdder count : metrics.results) {
+        count.reset();
+      }
+    }
+    kdcs.clear();
+    warmUpMillis = -1;
+  }
+
+  /** Writes the metrics in a human-readable form, as part of the service's dumpsys output. */
+  public void dump(PrintWriter writer) {
+    if (warmUpMillis >= 0) {
+      writer.printf("Warm-up: %dms%n", warmUpMillis);
+    }
+    writer.println("Kerberos requests:");
+    for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+      OperationMetrics metrics = entry.getValue();
+      writer.printf("  %s: %s%n", entry.getKey(), metrics.latency.summarize());
+      StringBuilder results = new StringBuilder();
+      for (ResultCode resultCode : ResultCode.values()) {
+        long count = metrics.results[resultCode.ordinal()].sum();
+        if (count > 0) {
+          results.append(String.format(" %s=%d", resultCode, count));
+        }
+      }
+      if (results.length() > 0) {
+        writer.printf("    results:%s%n", results);
+      }
+      String histogram = metrics.latency.formatBuckets();
+      if (!histogram.isEmpty()) {
+        writer.printf("    latency:%s%n", histogram);
+      }
+    }
+
+    writer.println("KDCs:");
+    // Sorted, so that the output of successive dumps can be compared.
+    for (Map.Entry<String, KdcMetrics> entry : new TreeMap<>(kdcs).entrySet()) {
+      KdcMetrics metrics = entry.getValue();
+      writer.printf(
+          "  %s: %s unreachable=%d%n",
+          entry.getKey(), metrics.latency.summarize(), metrics.unreachable.sum());
+      String histogram = metrics.latency.formatBuckets();
+      if (!histogram.isEmpty()) {
+        writer.printf("    latency:%s%n", histogram);
+      }
+    }
+  }
+
+  private static final class OperationMetrics {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder[] results = newAdders(ResultCode.values().length);
+  }
+
+  private static final class KdcMetrics {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder unreachable = new LongAdder();
+  }
+
+  private static final class LatencyHistogram {
+    private final LongAdder[] buckets = newAdders(BUCKET_BOUNDS_MILLIS.length + 1);
+    private final LongAdder totalMillis = new LongAdder();
+    private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+
+    void record(long latencyMillis) {
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MILLIS.length && latencyMillis > BUCKET_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      totalMillis.add(latencyMillis);
+      maxMillis.accumulate(latencyMillis);
+    }
+
+    long[] getBuckets() {
+      long[] counts = new long[buckets.length];
+      for (int i = 0; i < buckets.length; i++) {
+        counts[i] = buckets[i].sum();
+      }
+      return counts;
+    }
+
+    String summarize() {
+      long count = 0;
+      for (long bucketCount : getBuckets()) {
+        count += bucketCount;
+      }
+      if (count == 0) {
+        return "count=0";
+      }
+      return String.format(
+          "count=%d mean=%dms max=%dms", count, totalMillis.sum() / count, maxMillis.get());
+    }
+
+    // Lists the non-empty buckets by their upper bound.
+    String formatBuckets() {
+      StringBuilder builder = new StringBuilder();
+      long[] counts = getBuckets();
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == 0) {
+          continue;
+        }
+        if (i < BUCKET_BOUNDS_MILLIS.length) {
+          builder.append(String.format(" <=%dms:%d", BUCKET_BOUNDS_MILLIS[i], counts[i]));
+        } else {
+          builder.append(
+              String.format(" >%dms:%d", BUCKET_BOUNDS_MILLIS[i - 1], counts[i]));
+        }
+      }
+      return builder.toString();
+    }
+
+    void reset() {
+      for (LongAdder bucket : buckets) {
+        bucket.reset();
+      }
+      totalMillis.reset();
+      maxMillis.reset();
+    }
+  }
+
+  private static LongAdder[] newAdders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+}
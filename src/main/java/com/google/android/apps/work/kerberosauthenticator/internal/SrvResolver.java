@@ -0,0 +1,395 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.common.base.Ascii;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A minimal DNS client, looking up SRV records over UDP and the addresses of the hosts they
+ * point to. Answers are cached for as long as their TTL allows.
+ *
+ * <p>Only what KDC discovery needs is implemented: a single question per query, no recursion on
+ * the client side and no TCP fallback for truncated answers, whose records are used as far as
+ * they go.
+ */
+public final class SrvResolver {
+  @VisibleForTesting static final int TYPE_A = 1;
+  @VisibleForTesting static final int TYPE_AAAA = 28;
+  @VisibleForTesting static final int TYPE_SRV = 33;
+  private static final int CLASS_IN = 1;
+  private static final int FLAG_RESPONSE = 0x8000;
+  private static final int FLAG_TRUNCATED = 0x0200;
+  private static final int FLAG_RECURSION_DESIRED = 0x0100;
+  private static final int RCODE_MASK = 0x000F;
+  private static final int RCODE_NAME_ERROR = 3;
+  private static final int MAX_UDP_MESSAGE_SIZE = 512;
+  private static final int MAX_COMPRESSION_POINTERS = 32;
+  // Bounds how long an answer is cached, whatever its TTL, and how long a name that does not
+  // exist is remembered.
+  private static final long MAX_TTL_SECONDS = TimeUnit.HOURS.toSeconds(1);
+  private static final long NEGATIVE_TTL_SECONDS = TimeUnit.MINUTES.toSeconds(1);
+
+  /** A service location, as published in an SRV record. */
+  public static final class SrvRecord {
+    public final int priority;
+    public final int weight;
+    public final int port;
+    public final String target;
+
+    public SrvRecord(int priority, int weight, int port, String target) {
+      this.priority = priority;
+      this.weight = weight;
+      this.port = port;
+      this.target = target;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d %d %d %s", priority, weight, port, target);
+    }
+  }
+
+  private final LongSupplier clock;
+  private final int timeoutMillis;
+  private final Random random = new SecureRandom();
+  private final Map<String, Cached<List<SrvRecord>>> srvCache = new ConcurrentHashMap<>();
+  private final Map<String, Cached<List<InetAddress>>> addressCache = new ConcurrentHashMap<>();
+
+  public SrvResolver(LongSupplier clock, int timeoutMillis) {
+    this.clock = clock;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns the SRV records of the name, by increasing priority and then decreasing weight, or
+   * an empty list if there are none.
+   *
+   * @throws IOException if none of the DNS servers answered.
+   */
+  public List<SrvRecord> resolveSrv(String name, List<InetSocketAddress> dnsServers)
+      throws IOException {
+    Cached<List<SrvRecord>> cached = srvCache.get(name);
+    if (cached != null && cached.isFresh(clock.getAsLong())) {
+      return cached.value;
+    }
+
+    Response response = query(name, TYPE_SRV, dnsServers);
+    List<SrvRecord> records = new ArrayList<>();
+    long ttlSeconds = MAX_TTL_SECONDS;
+    for (ResourceRecord record : response.answers) {
+      if (record.type == TYPE_SRV && record.srvRecord != null) {
+        records.add(record.srvRecord);
+        ttlSeconds = Math.min(ttlSeconds, record.ttlSeconds);
+      }
+    }
+    // Whether the name does not exist or has no SRV records, e.g. not published yet.
+    if (records.isEmpty()) {
+      ttlSeconds = NEGATIVE_TTL_SECONDS;
+    }
+    records.sort(
+        Comparator.<SrvRecord>comparingInt(record -> record.priority)
+            .thenComparing(Comparator.<SrvRecord>comparingInt(record -> record.weight).reversed()));
+    records = Collections.unmodifiableList(records);
+    srvCache.put(name, new Cached<>(records, clock.getAsLong(), ttlSeconds));
+    // Servers usually send the addresses of the targets along; keep them for resolveAddresses.
+    cacheAddresses(response.additional);
+    return records;
+  }
+
+  /**
+   * Returns the IPv4 and IPv6 addresses of the host, or an empty list if it has none.
+   *
+   * @throws IOException if none of the DNS servers answered.
+   */
+  public List<InetAddress> resolveAddresses(String host, List<InetSocketAddress> dnsServers)
+      throws IOException {
+    String key = Ascii.toLowerCase(host);
+    Cached<List<InetAddress>> cached = addressCache.get(key);
+    if (cached != null && cached.isFresh(clock.getAsLong())) {
+      return cached.value;
+    }
+
+    List<ResourceRecord> records = new ArrayList<>(query(host, TYPE_A, dnsServers).answers);
+    records.addAll(query(host, TYPE_AAAA, dnsServers).answers);
+    List<InetAddress> addresses = new ArrayList<>();
+    long ttlSeconds = MAX_TTL_SECONDS;
+    for (ResourceRecord record : records) {
+      if (record.address != null && host.equalsIgnoreCase(record.name)) {
+        addresses.add(record.address);
+        ttlSeconds = Math.min(ttlSeconds, record.ttlSeconds);
+      }
+    }
+    if (addresses.isEmpty()) {
+      ttlSeconds = NEGATIVE_TTL_SECONDS;
+    }
+    addresses = Collections.unmodifiableList(addresses);
+    addressCache.put(key, new Cached<>(addresses, clock.getAsLong(), ttlSeconds));
+    return addresses;
+  }
+
+  /** Drops every cached answer. */
+  public void clear() {
+    srvCache.clear();
+    addressCache.clear();
+  }
+
+  private void cacheAddresses(List<ResourceRecord> records) {
+    Map<String, List<InetAddress>> addresses = new HashMap<>();
+    Map<String, Long> ttls = new HashMap<>();
+    for (ResourceRecord record : records) {
+      if (record.address == null) {
+        continue;
+      }
+      String host = Ascii.toLowerCase(record.name);
+      addresses.computeIfAbsent(host, unused -> new ArrayList<>()).add(record.address);
+      ttls.merge(host, record.ttlSeconds, Math::min);
+    }
+    long now = clock.getAsLong();
+    for (Map.Entry<String, List<InetAddress>> entry : addresses.entrySet()) {
+      addressCache.put(
+          entry.getKey(),
+          new Cached<>(
+              Collections.unmodifiableList(entry.getValue()), now, ttls.get(entry.getKey())));
+    }
+  }
+
+  // Sends the question to each DNS server in turn, until one answers.
+  private Response query(String name, int type, List<InetSocketAddress> dnsServers)
+      throws IOException {
+    IOException lastFailure = new IOException("No DNS server to query");
+    for (InetSocketAddress dnsServer : dnsServers) {
+      int id = random.nextInt(0x10000);
+      byte[] question = buildQuery(id, name, type);
+      try (DatagramSocket socket = new DatagramSocket()) {
+        socket.setSoTimeout(timeoutMillis);
+        socket.send(new DatagramPacket(question, question.length, dnsServer));
+        byte[] buffer = new byte[MAX_UDP_MESSAGE_SIZE];
+        // Skip stray packets, e.g. late answers to an earlier query.
+        while (true) {
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          socket.receive(packet);
+          Response response = parseResponse(buffer, packet.getLength(), id);
+          if (response != null) {
+            return response;
+          }
+        }
+      } catch (SocketTimeoutException e) {
+        Log.w(TAG, String.format("DNS server %s did not answer for %s.", dnsServer, name));
+        lastFailure = e;
+      } catch (IOException e) {
+        Log.w(TAG, String.format("Failed querying DNS server %s for %s.", dnsServer, name), e);
+        lastFailure = e;
+      }
+    }
+    throw lastFailure;
+  }
+
+  @VisibleForTesting
+  static byte[] buildQuery(int id, String name, int type) {
+    ByteBuffer query = ByteBuffer.allocate(MAX_UDP_MESSAGE_SIZE);
+    query.putShort((short) id);
+    query.putShort((short) FLAG_RECURSION_DESIRED);
+    query.putShort((short) 1); // Questions.
+    query.putShort((short) 0); // Answers.
+    query.putShort((short) 0); // Authority records.
+    query.putShort((short) 0); // Additional records.
+    writeName(query, name);
+    query.putShort((short) type);
+    query.putShort((short) CLASS_IN);
+    byte[] bytes = new byte[query.position()];
+    query.flip();
+    query.get(bytes);
+    return bytes;
+  }
+
+  @VisibleForTesting
+  static void writeName(ByteBuffer buffer, String name) {
+    for (String label : name.split("\\.")) {
+      if (label.isEmpty()) {
+        continue;
+      }
+      byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+      if (bytes.length > 63) {
+        throw new IllegalArgumentException(String.format("DNS label too long in %s", name));
+      }
+      buffer.put((byte) bytes.length);
+      buffer.put(bytes);
+    }
+    buffer.put((byte) 0);
+  }
+
+  // Returns the parsed response, or null if the message is not the answer to the query.
+  private static Response parseResponse(byte[] message, int length, int expectedId)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(message, 0, length);
+    try {
+      int id = buffer.getShort() & 0xFFFF;
+      int flags = buffer.getShort() & 0xFFFF;
+      if (id != expectedId || (flags & FLAG_RESPONSE) == 0) {
+        return null;
+      }
+      int questionCount = buffer.getShort() & 0xFFFF;
+      int answerCount = buffer.getShort() & 0xFFFF;
+      int authorityCount = buffer.getShort() & 0xFFFF;
+      int additionalCount = buffer.getShort() & 0xFFFF;
+
+      Response response = new Response();
+      int rcode = flags & RCODE_MASK;
+      if (rcode == RCODE_NAME_ERROR) {
+        // The name does not exist: no records.
+        return response;
+      } else if (rcode != 0) {
+        throw new IOException(String.format("DNS query failed with code %d", rcode));
+      }
+      boolean truncated = (flags & FLAG_TRUNCATED) != 0;
+
+      for (int i = 0; i < questionCount; i++) {
+        readName(buffer);
+        buffer.position(buffer.position() + 4); // Type and class.
+      }
+      try {
+        for (int i = 0; i < answerCount; i++) {
+          response.answers.add(readRecord(buffer));
+        }
+        for (int i = 0; i < authorityCount; i++) {
+          readRecord(buffer);
+        }
+        for (int i = 0; i < additionalCount; i++) {
+          response.additional.add(readRecord(buffer));
+        }
+      } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+        if (!truncated) {
+          throw e;
+        }
+        // Use the records that made it into the truncated message.
+      }
+      return response;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new IOException("Malformed DNS response", e);
+    }
+  }
+
+  private static ResourceRecord readRecord(ByteBuffer buffer) throws IOException {
+    ResourceRecord record = new ResourceRecord();
+    record.name = readName(buffer);
+    record.type = buffer.getShort() & 0xFFFF;
+    buffer.getShort(); // Class.
+    record.ttlSeconds = Math.min(MAX_TTL_SECONDS, buffer.getInt() & 0xFFFFFFFFL);
+    int dataLength = buffer.getShort() & 0xFFFF;
+    int dataEnd = buffer.position() + dataLength;
+    if (record.type == TYPE_SRV) {
+      int priority = buffer.getShort() & 0xFFFF;
+      int weight = buffer.getShort() & 0xFFFF;
+      int port = buffer.getShort() & 0xFFFF;
+      String target = readName(buffer);
+      // A target of "." means the service is not available at this name.
+      if (!target.isEmpty()) {
+        record.srvRecord = new SrvRecord(priority, weight, port, target);
+      }
+    } else if ((record.type == TYPE_A && dataLength == 4)
+        || (record.type == TYPE_AAAA && dataLength == 16)) {
+      byte[] address = new byte[dataLength];
+      buffer.get(address);
+      record.address = InetAddress.getByAddress(record.name, address);
+    }
+    buffer.position(dataEnd);
+    return record;
+  }
+
+  // Reads a possibly compressed name, leaving the buffer after it.
+  private static String readName(ByteBuffer buffer) {
+    StringBuilder name = new StringBuilder();
+    int position = buffer.position();
+    int endOfName = -1;
+    for (int pointers = 0; ; ) {
+      int length = buffer.get(position) & 0xFF;
+      if (length == 0) {
+        position++;
+        break;
+      }
+      if ((length & 0xC0) == 0xC0) {
+        if (++pointers > MAX_COMPRESSION_POINTERS) {
+          throw new IllegalArgumentException("DNS name compression loop");
+        }
+        if (endOfName < 0) {
+          endOfName = position + 2;
+        }
+        position = ((length & 0x3F) << 8) | (buffer.get(position + 1) & 0xFF);
+        continue;
+      }
+      if (name.length() > 0) {
+        name.append('.');
+      }
+      for (int i = 0; i < length; i++) {
+        name.append((char) (buffer.get(position + 1 + i) & 0xFF));
+      }
+      position += 1 + length;
+    }
+    buffer.position(endOfName < 0 ? position : endOfName);
+    return name.toString();
+  }
+
+  private static final class Response {
+    private final List<ResourceRecord> answers = new ArrayList<>();
+    private final List<ResourceRecord> additional = new ArrayList<>();
+  }
+
+  private static final class ResourceRecord {
+    private String name;
+    private int type;
+    private long ttlSeconds;
+    private SrvRecord srvRecord;
+    private InetAddress address;
+  }
+
+  private static final class Cached<T> {
+    private final T value;
+    private final long expiryMillis;
+
+    private Cached(T value, long nowMillis, long ttlSeconds) {
+      this.value = value;
+      this.expiryMillis = nowMillis + TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    private boolean isFresh(long nowMillis) {
+      return nowMillis < expiryMillis;
+    }
+  }
+}
@@ -20,16 +20,33 @@ import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
 import android.util.Log;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosKey;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
 import krb.javax.security.auth.kerberos.KerberosTicket;
 
-/** Represents a Ticket Granting Ticket */
+/**
+ * Represents a Ticket Granting Ticket.
+ *
+ * <p>The ticket is serialized in a compact, versioned format holding the user principals, tickets
+ * and keys of the subject, written with {@link KerberosCredentialCodec}. Tickets stored with Java
+ * serialization by earlier versions of the app are still read, and are written in the compact
+ * format the next time the ticket is stored.
+ */
 public final class TicketGrantingTicket {
+  // Leading bytes of the compact format, followed by the format version. Java serialization
+  // streams start with 0xACED, so the two cannot be confused.
+  private static final byte[] MAGIC = {'K', 'T'};
+  private static final byte FORMAT_VERSION = 1;
+
   private final Subject subject;
 
   public TicketGrantingTicket(Subject subject) {
@@ -38,39 +55,102 @@ public final class TicketGrantingTicket {
 
   public static TicketGrantingTicket fromSerializedSubject(byte[] serializedSubject) {
     try {
-      ByteArrayInputStream bis = new ByteArrayInputStream(serializedSubject);
-      ObjectInputStream ois = new ObjectInputStream(bis);
-      Subject bareSubject = (Subject) ois.readObject();
-      Set<?> privateCredentials = (Set<?>) ois.readObject();
-      Set<?> publicCredentials = (Set<?>) ois.readObject();
-
-      Subject subject =
-          new Subject(
-              bareSubject.isReadOnly(),
-              bareSubject.getPrincipals(),
-              publicCredentials,
-              privateCredentials);
-      return new TicketGrantingTicket(subject);
-
-    } catch (ClassNotFoundException | IOException e) {
+      if (isCompactFormat(serializedSubject)) {
+        return fromCompactFormat(serializedSubject);
+      }
+      return fromJavaSerialization(serializedSubject);
+    } catch (ClassNotFoundException | IOException | IllegalArgumentException e) {
       Log.w(TAG, "Failed reading ticket", e);
     }
 
     return null;
   }
 
+  private static boolean isCompactFormat(byte[] serialized) {
+    return serialized.length > MAGIC.length
+        && serialized[0] == MAGIC[0]
+        && serialized[1] == MAGIC[1];
+  }
+
+  private static TicketGrantingTicket fromCompactFormat(byte[] serialized) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+    in.skipBytes(MAGIC.length);
+    byte version = in.readByte();
+    if (version != FORMAT_VERSION) {
+      throw new IOException(String.format("Unsupported ticket format version %d", version));
+    }
+    boolean readOnly = in.readBoolean();
+
+    Set<KerberosPrincipal> principals = new LinkedHashSet<>();
+    int principalCount = in.readInt();
+    for (int i = 0; i < principalCount; i++) {
+      principals.add(KerberosCredentialCodec.readPrincipal(in));
+    }
+
+    Set<Object> privateCredentials = new LinkedHashSet<>();
+    int ticketCount = in.readInt();
+    for (int i = 0; i < ticketCount; i++) {
+      privateCredentials.add(KerberosCredentialCodec.readTicket(in));
+    }
+    int keyCount = in.readInt();
+    for (int i = 0; i < keyCount; i++) {
+      privateCredentials.add(KerberosCredentialCodec.readKey(in));
+    }
+
+    return new TicketGrantingTicket(
+        new Subject(readOnly, principals, new HashSet<>(), privateCredentials));
+  }
+
+  private static TicketGrantingTicket fromJavaSerialization(byte[] serializedSubject)
+      throws ClassNotFoundException, IOException {
+    ByteArrayInputStream bis = new ByteArrayInputStream(serializedSubject);
+    ObjectInputStream ois = new ObjectInputStream(bis);
+    Subject bareSubject = (Subject) ois.readObject();
+    Set<?> privateCredentials = (Set<?>) ois.readObject();
+    Set<?> publicCredentials = (Set<?>) ois.readObject();
+
+    Subject subject =
+        new Subject(
+            bareSubject.isReadOnly(),
+            bareSubject.getPrincipals(),
+            publicCredentials,
+            privateCredentials);
+    return new TicketGrantingTicket(subject);
+  }
+
   public Subject asSubject() {
     return subject;
   }
 
+  /**
+   * Returns the ticket in the compact format read by {@link #fromSerializedSubject}. Only the
+   * Kerberos principals, tickets and keys of the subject are kept.
+   */
   public byte[] asSerialized() {
     try {
       ByteArrayOutputStream bos = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(bos);
-      oos.writeObject(subject);
-      oos.writeObject(subject.getPrivateCredentials());
-      oos.writeObject(subject.getPublicCredentials());
-      oos.close();
+      DataOutputStream out = new DataOutputStream(bos);
+      out.write(MAGIC);
+      out.writeByte(FORMAT_VERSION);
+      out.writeBoolean(subject.isReadOnly());
+
+      Set<KerberosPrincipal> principals = subject.getPrincipals(KerberosPrincipal.class);
+      out.writeInt(principals.size());
+      for (KerberosPrincipal principal : principals) {
+        KerberosCredentialCodec.writePrincipal(out, principal);
+      }
+
+      Set<KerberosTicket> tickets = subject.getPrivateCredentials(KerberosTicket.class);
+      out.writeInt(tickets.size());
+      for (KerberosTicket ticket : tickets) {
+        KerberosCredentialCodec.writeTicket(out, ticket);
+      }
+      Set<KerberosKey> keys = subject.getPrivateCredentials(KerberosKey.class);
+      out.writeInt(keys.size());
+      for (KerberosKey key : keys) {
+        KerberosCredentialCodec.writeKey(out, key);
+      }
+      out.close();
       return bos.toByteArray();
     } catch (IOException e) {
       Log.w(TAG, "Failed serializing subject", e);
@@ -79,24 +159,23 @@ public final class TicketGrantingTicket {
     return null;
   }
 
-  public Date getExpiryDate() {
-    Set<Object> privateCreds = subject.getPrivateCredentials();
-    for (Object cred : privateCreds) {
+  /** Returns the ticket-granting-ticket held by the subject, or null if it holds none. */
+  public KerberosTicket getTicket() {
+    for (Object cred : subject.getPrivateCredentials()) {
       if (cred instanceof KerberosTicket) {
-        return ((KerberosTicket) cred).getEndTime();
+        return (KerberosTicket) cred;
       }
     }
     return null;
   }
 
-  public Date getIssuanceDate() {
-    Set<Object> privateCreds = subject.getPrivateCredentials();
+  public Date getExpiryDate() {
+    KerberosTicket ticket = getTicket();
+    return ticket == null ? null : ticket.getEndTime();
+  }
 
-    for (Object cred : privateCreds) {
-      if (cred instanceof KerberosTicket) {
-        return ((KerberosTicket) cred).getAuthTime();
-      }
-    }
-    return null;
+  public Date getIssuanceDate() {
+    KerberosTicket ticket = getTicket();
+    return ticket == null ? null : ticket.getAuthTime();
   }
 }
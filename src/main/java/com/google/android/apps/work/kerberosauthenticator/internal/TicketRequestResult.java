@@ -28,7 +28,8 @@ public class TicketRequestResult {
     ERROR_BAD_PASSWORD,
     ERROR_LOGIN_FAILED,
     ERROR_COMMIT_FAILED,
-    ERROR_GSS_FAILURE
+    ERROR_GSS_FAILURE,
+    ERROR_RENEWAL_FAILED
   };
 
   private final ResultCode resultCode;
@@ -39,6 +40,10 @@ public class TicketRequestResult {
     this.message = message;
   }
 
+  public ResultCode getResultCode() {
+    return resultCode;
+  }
+
   public boolean successful() {
     return resultCode == ResultCode.SUCCESS;
   }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The keytab files stored {@link LongTermKeys} are written to for Krb5LoginModule to log in
+ * with, one per account, in the app's private storage.
+ *
+ * <p>Each account always uses the same file, overwritten for every login and deleted after it:
+ * the library keeps the keytabs it read by path for the life of the process, so a new path per
+ * login would keep the keys of every login in memory. Files a crashed process left behind, which
+ * hold keys as good as the password, are deleted once the next process starts.
+ */
+public final class KeyTabFiles {
+  private static final String DIRECTORY_NAME = "keytabs";
+
+  private static final KeyTabFiles INSTANCE = new KeyTabFiles();
+
+  // Guards the file of each account, so that concurrent logins do not overwrite each other's.
+  private final Map<String, Object> locks = new ConcurrentHashMap<>();
+  // Null until initialized, e.g. in tests, which use the temporary directory instead.
+  private File directory = null;
+
+  public static KeyTabFiles getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Keeps the files in the app's private storage, which is not backed up, deleting those left by
+   * an earlier process.
+   */
+  public synchronized void initialize(Context context) {
+    if (directory == null) {
+      setDirectory(new File(context.getNoBackupFilesDir(), DIRECTORY_NAME));
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setDirectory(File directory) {
+    this.directory = directory;
+    File[] leftovers = directory.listFiles();
+    if (leftovers != null) {
+      for (File leftover : leftovers) {
+        if (!leftover.delete()) {
+          Log.w(TAG, String.format("Failed deleting %s", leftover));
+        }
+      }
+    }
+  }
+
+  /** Returns the keytab file of the given principal, creating its directory if needed. */
+  synchronized File getFile(String principal) {
+    File fileDirectory =
+        directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+    if (!fileDirectory.isDirectory() && !fileDirectory.mkdirs()) {
+      Log.w(TAG, String.format("Failed creating %s", fileDirectory));
+    }
+    // Principals may hold characters that are not allowed in file names.
+    return new File(fileDirectory, principal.replaceAll("[^\\w.@-]", "_") + ".keytab");
+  }
+
+  /** Returns the lock to hold while the keytab file of the given principal is in use. */
+  Object getLock(String principal) {
+    return locks.computeIfAbsent(principal, unused -> new Object());
+  }
+}
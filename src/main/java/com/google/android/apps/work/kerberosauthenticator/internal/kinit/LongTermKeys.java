@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosKey;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.RealmException;
+
+/**
+ * The long-term keys of a user, derived from the password by an earlier login and kept with the
+ * ticket-granting-ticket, with which the user is logged in again without deriving them anew: for
+ * the AES encryption types, that takes 4096 iterations of PBKDF2.
+ *
+ * <p>Keys are kept by encryption type, salt and key version number (kvno). A key only applies to
+ * the principal whose salt it was derived with. Once the password changed, the KDC refuses the
+ * keys of the old kvno, and the user is logged in with the password again, which derives new
+ * keys.
+ */
+public final class LongTermKeys {
+  // Version 0x502 of the MIT keytab format, the one Krb5LoginModule reads.
+  private static final int KEYTAB_VERSION = 0x0502;
+
+  private final String salt;
+  // The keys, by encryption type and kvno.
+  private final Map<String, KerberosKey> keys;
+
+  private LongTermKeys(String salt, Map<String, KerberosKey> keys) {
+    this.salt = salt;
+    this.keys = keys;
+  }
+
+  /**
+   * Returns the long-term keys held by the subject, e.g. of a stored ticket-granting-ticket, or
+   * null if it holds none.
+   */
+  public static LongTermKeys fromSubject(Subject subject) {
+    if (subject == null) {
+      return null;
+    }
+    String salt = null;
+    Map<String, KerberosKey> keys = new LinkedHashMap<>();
+    for (KerberosKey key : subject.getPrivateCredentials(KerberosKey.class)) {
+      String keySalt = getSalt(key.getPrincipal().getName());
+      if (keySalt == null || (salt != null && !salt.equals(keySalt)) || key.isDestroyed()) {
+        continue;
+      }
+      salt = keySalt;
+      keys.put(key.getKeyType() + "/" + key.getVersionNumber(), key);
+    }
+    return keys.isEmpty() ? null : new LongTermKeys(salt, keys);
+  }
+
+  /** Returns true if the keys were derived for the given principal, with its salt. */
+  public boolean appliesTo(String principal) {
+    return Objects.equals(salt, getSalt(principal));
+  }
+
+  /** Returns the keys, one per encryption type and kvno. */
+  public List<KerberosKey> getKeys() {
+    return Collections.unmodifiableList(new ArrayList<>(keys.values()));
+  }
+
+  /** Adds the keys to the subject, so that they are stored again with its ticket. */
+  void addTo(Subject subject) {
+    subject.getPrivateCredentials().addAll(keys.values());
+  }
+
+  /** Writes the keys to a keytab file, for Krb5LoginModule to log in with. */
+  void writeKeyTab(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      out.writeShort(KEYTAB_VERSION);
+      for (KerberosKey key : keys.values()) {
+        byte[] entry = encodeKeyTabEntry(key);
+        out.writeInt(entry.length);
+        out.write(entry);
+      }
+    }
+  }
+
+  private static byte[] encodeKeyTabEntry(KerberosKey key) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    String name = key.getPrincipal().getName();
+    int realmStart = name.lastIndexOf('@');
+    String[] components = name.substring(0, realmStart).split("/");
+    out.writeShort(components.length);
+    writeString(out, key.getPrincipal().getRealm());
+    for (String component : components) {
+      writeString(out, component);
+    }
+    out.writeInt(key.getPrincipal().getNameType());
+    out.writeInt((int) (System.currentTimeMillis() / 1000));
+    out.writeByte(key.getVersionNumber());
+    out.writeShort(key.getKeyType());
+    byte[] keyBytes = key.getEncoded();
+    out.writeShort(keyBytes.length);
+    out.write(keyBytes);
+    // The full kvno, of which the byte above only holds the low bits.
+    out.writeInt(key.getVersionNumber());
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  // Returns the default salt of the principal: its realm followed by its name components.
+  private static String getSalt(String principal) {
+    try {
+      return new PrincipalName(principal, PrincipalName.KRB_NT_PRINCIPAL).getSalt();
+    } catch (RealmException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
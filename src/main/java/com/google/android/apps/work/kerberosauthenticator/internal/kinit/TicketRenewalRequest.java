@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosConfig;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics.Operation;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult.ResultCode;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import javax.security.auth.RefreshFailedException;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+
+/**
+ * Renews a ticket-granting-ticket by sending the KDC a TGS request with the RENEW option, which
+ * does not need the user's password. This is a single round trip to the KDC, whereas logging in
+ * again takes pre-authentication and deriving the key from the password.
+ *
+ * <p>Only tickets that are renewable, not yet expired and still within their renewable lifetime
+ * can be renewed; see {@link #canRenew}.
+ */
+public class TicketRenewalRequest {
+  private final TicketGrantingTicket tgt;
+  private final KerberosContext kerberosContext;
+  private Subject subject = null;
+
+  public TicketRenewalRequest(
+      TicketGrantingTicket tgt,
+      String adDomain,
+      String domainController,
+      boolean debugWithCredentials) {
+    this(
+        tgt,
+        KerberosContext.forDomain(
+            adDomain, domainController, tgt.asSubject(), debugWithCredentials));
+  }
+
+  public TicketRenewalRequest(TicketGrantingTicket tgt, KerberosContext kerberosContext) {
+    this.tgt = tgt;
+    this.kerberosContext = kerberosContext;
+  }
+
+  /** Returns true if the KDC can be asked to renew the given TGT at {@code nowMillis}. */
+  public static boolean canRenew(TicketGrantingTicket tgt, long nowMillis) {
+    KerberosTicket ticket = tgt == null ? null : tgt.getTicket();
+    if (ticket == null || ticket.isDestroyed() || !ticket.isRenewable()) {
+      return false;
+    }
+    Date endTime = ticket.getEndTime();
+    Date renewTill = ticket.getRenewTill();
+    // An expired ticket cannot be renewed, even within its renewable lifetime.
+    return endTime != null
+        && endTime.getTime() > nowMillis
+        && renewTill != null
+        && renewTill.getTime() > nowMillis;
+  }
+
+  /**
+   * Renews the ticket-granting-ticket. Blocks while talking to the KDC, so must not be called on
+   * the main thread.
+   */
+  public TicketRequestResult execute() {
+    long startMillis = SystemClock.elapsedRealtime();
+    TicketRequestResult result = renew();
+    KerberosMetrics.getInstance()
+        .recordRequest(Operation.RENEWAL, result, SystemClock.elapsedRealtime() - startMillis);
+    return result;
+  }
+
+  private TicketRequestResult renew() {
+    if (!canRenew(tgt, System.currentTimeMillis())) {
+      return new TicketRequestResult(
+          ResultCode.ERROR_RENEWAL_FAILED, "Ticket-granting-ticket is not renewable");
+    }
+
+    Log.i(TAG, String.format("Renewing ticket-granting-ticket to realm %s via %s",
+        kerberosContext.getRealm(), kerberosContext.getKdcs()));
+    KerberosTicket current = tgt.getTicket();
+    // Renewal replaces the contents of the ticket, so renew a copy: the current ticket may be in
+    // use by other requests.
+    KerberosTicket renewed = copyTicket(current);
+    try {
+      KerberosConfig.getInstance().apply(kerberosContext);
+    } catch (IOException e) {
+      Log.w(TAG, "Failure configuring Kerberos", e);
+      return new TicketRequestResult(ResultCode.ERROR_RENEWAL_FAILED, e.getMessage());
+    }
+    long startMillis = SystemClock.elapsedRealtime();
+    try {
+      renewed.refresh();
+      KerberosConfig.getInstance()
+          .recordRequest(kerberosContext, SystemClock.elapsedRealtime() - startMillis, null);
+    } catch (RefreshFailedException e) {
+      Log.w(TAG, "Failure renewing ticket-granting-ticket", e);
+      KerberosConfig.getInstance()
+          .recordRequest(kerberosContext, SystemClock.elapsedRealtime() - startMillis, e);
+      return new TicketRequestResult(ResultCode.ERROR_RENEWAL_FAILED, e.getMessage());
+    }
+
+    Subject currentSubject = tgt.asSubject();
+    Set<Object> privateCredentials = new HashSet<>(currentSubject.getPrivateCredentials());
+    privateCredentials.remove(current);
+    privateCredentials.add(renewed);
+    subject =
+        new Subject(
+            false,
+            currentSubject.getPrincipals(),
+            currentSubject.getPublicCredentials(),
+            privateCredentials);
+    Log.i(TAG, String.format("Renewed ticket-granting-ticket until %s", renewed.getEndTime()));
+    if (kerberosContext.isDebug()) {
+      Log.i(TAG, String.format("Subject: %s", subject));
+    }
+    return new TicketRequestResult(ResultCode.SUCCESS, "Ticket-granting-ticket renewed");
+  }
+
+  /** Returns the subject holding the renewed ticket, once {@link #execute} succeeded. */
+  public Subject getSubject() {
+    return subject;
+  }
+
+  private static KerberosTicket copyTicket(KerberosTicket ticket) {
+    return new KerberosTicket(
+        ticket.getEncoded(),
+        ticket.getClient(),
+        ticket.getServer(),
+        ticket.getSessionKey().getEncoded(),
+        ticket.getSessionKeyType(),
+        ticket.getFlags(),
+        ticket.getAuthTime(),
+        ticket.getStartTime(),
+        ticket.getEndTime(),
+        ticket.getRenewTill(),
+        ticket.getClientAddresses());
+  }
+}
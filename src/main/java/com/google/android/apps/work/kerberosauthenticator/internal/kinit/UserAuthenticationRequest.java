@@ -0,0 +1,266 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosAccountDetails;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosConfig;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics.Operation;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult.ResultCode;
+import com.sun.security.auth.module.Krb5LoginModule;
+import java.io.File;
+import java.io.IOException;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.LoginException;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.internal.Krb5;
+
+/**
+ * Performs the equivalent of kinit synchronously, on the calling thread. Used by
+ * {@link UserAuthenticationTask} and by callers that already run in the background.
+ *
+ * <p>Given the {@link LongTermKeys} of an earlier login, logs in with those, and only falls back
+ * to the password if the KDC refuses them, e.g. because the password was changed since. Other
+ * failures, such as an unreachable KDC, would fail with the password as well.
+ */
+public class UserAuthenticationRequest {
+  private static final String STORE_KEY = "storeKey";
+  private static final String USE_FIRST_PASS = "useFirstPass";
+  private static final String DEBUG = "debug";
+  private static final String USE_KEY_TAB = "useKeyTab";
+  private static final String KEY_TAB = "keyTab";
+  private static final String PRINCIPAL = "principal";
+  private static final String DO_NOT_PROMPT = "doNotPrompt";
+
+  private final String username;
+  private final String password;
+  private final KerberosContext kerberosContext;
+  // Keys of an earlier login to try before the password, or null.
+  private final LongTermKeys storedKeys;
+  private Subject subject = null;
+  // Why the last login attempt failed, or null.
+  private LoginException loginFailure = null;
+
+  public UserAuthenticationRequest(
+      KerberosAccountDetails accountDetails, boolean debugWithCredentials) {
+    this(accountDetails, null /* storedKeys */, debugWithCredentials);
+  }
+
+  /**
+   * Logs the user in with the given stored keys if they still apply, and with the password of the
+   * account details otherwise. The password may then be empty, if the keys are all there is.
+   */
+  public UserAuthenticationRequest(
+      KerberosAccountDetails accountDetails,
+      LongTermKeys storedKeys,
+      boolean debugWithCredentials) {
+    this(
+        accountDetails.getUsername(),
+        accountDetails.getPassword(),
+        KerberosContext.forDomain(
+            accountDetails.getActiveDirectoryDomain(),
+            accountDetails.getAdDomainController(),
+            null /* subject */,
+            debugWithCredentials),
+        storedKeys);
+  }
+
+  public UserAuthenticationRequest(
+      String username, String password, KerberosContext kerberosContext) {
+    this(username, password, kerberosContext, null /* storedKeys */);
+  }
+
+  public UserAuthenticationRequest(
+      String username, String password, KerberosContext kerberosContext, LongTermKeys storedKeys) {
+    this.username = username;
+    this.password = password;
+    this.kerberosContext = kerberosContext;
+    this.storedKeys = storedKeys;
+  }
+
+  /**
+   * Logs the user in, obtaining a ticket-granting-ticket. Blocks while talking to the KDC, so must
+   * not be called on the main thread.
+   */
+  public TicketRequestResult execute() {
+    long startMillis = SystemClock.elapsedRealtime();
+    TicketRequestResult result = login();
+    KerberosMetrics.getInstance()
+        .recordRequest(Operation.LOGIN, result, SystemClock.elapsedRealtime() - startMillis);
+    return result;
+  }
+
+  private TicketRequestResult login() {
+    Log.i(TAG, String.format("Authenticating user %s to realm %s via %s",
+        username, kerberosContext.getRealm(), kerberosContext.getKdcs()));
+    try {
+      KerberosConfig.getInstance().apply(kerberosContext);
+    } catch (IOException e) {
+      Log.w(TAG, "Failure configuring Kerberos", e);
+      return new TicketRequestResult(ResultCode.ERROR_LOGIN_FAILED, e.getMessage());
+    }
+
+    // Name the realm explicitly, rather than relying on the default realm of the configuration.
+    String principal = kerberosContext.qualifyPrincipal(username);
+    if (storedKeys != null && storedKeys.appliesTo(principal)) {
+      TicketRequestResult result = loginWithStoredKeys(principal);
+      // Without a login failure, the keys could not even be written, let alone tried.
+      boolean keysUnusable = loginFailure == null || isKeyRefused(loginFailure);
+      if (result.successful() || TextUtils.isEmpty(password) || !keysUnusable) {
+        return result;
+      }
+      // E.g. the password was changed, and the keys are of its old version.
+      Log.i(TAG, String.format("Stored keys refused (%s), logging in with the password.",
+          result));
+    }
+    return loginWithPassword(principal);
+  }
+
+  private TicketRequestResult loginWithPassword(String principal) {
+    CallbackHandler handler = new UsernamePasswordCallbackHandler(principal, password);
+    Map<String, String> sharedState = new HashMap<>();
+    sharedState.put(USE_FIRST_PASS, "true");
+    sharedState.put(DEBUG, Boolean.toString(kerberosContext.isDebug()));
+
+    Map<String, Object> options = new HashMap<>();
+    // Keep the keys derived from the password in the subject, to log in with them next time.
+    options.put(STORE_KEY, "true");
+
+    return runLoginModule(handler, sharedState, options);
+  }
+
+  // Logs in with a keytab holding the stored keys, which only lives for the login. If it cannot
+  // be written, the keys are not tried at all.
+  private TicketRequestResult loginWithStoredKeys(String principal) {
+    KeyTabFiles keyTabFiles = KeyTabFiles.getInstance();
+    synchronized (keyTabFiles.getLock(principal)) {
+      return loginWithKeyTab(principal, keyTabFiles.getFile(principal));
+    }
+  }
+
+  private TicketRequestResult loginWithKeyTab(String principal, File keyTab) {
+    try {
+      storedKeys.writeKeyTab(keyTab);
+      Map<String, Object> options = new HashMap<>();
+      options.put(USE_KEY_TAB, "true");
+      options.put(KEY_TAB, keyTab.getPath());
+      options.put(PRINCIPAL, principal);
+      options.put(DO_NOT_PROMPT, "true");
+      TicketRequestResult result =
+          runLoginModule(null /* callbackHandler */, new HashMap<>(), options);
+      if (result.successful()) {
+        // The keys are still valid: keep them with the new ticket.
+        storedKeys.addTo(subject);
+      }
+      return result;
+    } catch (IOException e) {
+      Log.w(TAG, "Failure writing stored keys", e);
+      return new TicketRequestResult(ResultCode.ERROR_LOGIN_FAILED, e.getMessage());
+    } finally {
+      if (keyTab.exists() && !keyTab.delete()) {
+        Log.w(TAG, String.format("Failed deleting %s", keyTab));
+      }
+    }
+  }
+
+  private TicketRequestResult runLoginModule(
+      CallbackHandler handler, Map<String, ?> sharedState, Map<String, ?> options) {
+    boolean debugWithCredentials = kerberosContext.isDebug();
+    Krb5LoginModule lm = new Krb5LoginModule();
+    subject = new Subject();
+    loginFailure = null;
+    lm.initialize(subject, handler, sharedState, options);
+    long startMillis = SystemClock.elapsedRealtime();
+    try {
+      boolean loggedIn = lm.login();
+      KerberosConfig.getInstance()
+          .recordRequest(kerberosContext, SystemClock.elapsedRealtime() - startMillis, null);
+      if (!loggedIn) {
+        return new TicketRequestResult(ResultCode.ERROR_LOGIN_FAILED, "Login failed");
+      }
+
+      if (!lm.commit()) {
+        return new TicketRequestResult(ResultCode.ERROR_COMMIT_FAILED, "Commit failed");
+      }
+
+      Log.i(TAG, String.format("Successfully authenticated %s to %s", username,
+          kerberosContext.getRealm()));
+      if (debugWithCredentials) {
+        Log.i(TAG, String.format("Subject: %s", subject));
+      }
+    } catch (LoginException e) {
+      Log.w(TAG, "Failure logging in", e);
+      loginFailure = e;
+      KerberosConfig.getInstance()
+          .recordRequest(kerberosContext, SystemClock.elapsedRealtime() - startMillis, e);
+      if (e.getMessage().contains("Pre-authentication information was invalid")) {
+        return new TicketRequestResult(ResultCode.ERROR_BAD_PASSWORD, e.getMessage());
+      } else {
+        return new TicketRequestResult(ResultCode.ERROR_LOGIN_FAILED, e.getMessage());
+      }
+    }
+
+    StringBuilder infoBuilder = new StringBuilder();
+
+    for (Principal principal : subject.getPrincipals()) {
+      infoBuilder.append("Principal: ").append(principal.getName()).append("\n");
+    }
+
+    for (Object credential : subject.getPrivateCredentials()) {
+      infoBuilder.append("Credential type: ").append(credential.getClass()).append("\n");
+    }
+
+    return new TicketRequestResult(ResultCode.SUCCESS, infoBuilder.toString());
+  }
+
+  /**
+   * Returns true if the login failed because the KDC refused the keys, e.g. those of a password
+   * that was changed since: it refused the pre-authentication they encrypted, or holds no key of
+   * their encryption types any more. Without pre-authentication, the reply then cannot be
+   * decrypted with them.
+   */
+  @VisibleForTesting
+  static boolean isKeyRefused(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof KrbException) {
+        int code = ((KrbException) cause).returnCode();
+        return code == Krb5.KDC_ERR_PREAUTH_FAILED
+            || code == Krb5.KDC_ERR_ETYPE_NOSUPP
+            || code == Krb5.KRB_AP_ERR_BAD_INTEGRITY;
+      }
+    }
+    // Krb5LoginModule may only keep the message.
+    return failure.getMessage() != null
+        && failure.getMessage().contains("Pre-authentication information was invalid");
+  }
+
+  /** Returns the subject holding the ticket-granting-ticket, once {@link #execute} succeeded. */
+  public Subject getSubject() {
+    return subject;
+  }
+}
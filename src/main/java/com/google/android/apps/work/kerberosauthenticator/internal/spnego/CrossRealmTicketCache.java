@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+import static sun.security.krb5.PrincipalName.TGS_DEFAULT_SRV_NAME;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import sun.security.krb5.KrbException;
+
+/**
+ * Process-wide cache of the cross-realm ticket-granting-tickets a client obtained to reach
+ * services in other realms, e.g. in a trusted forest, and of the realms each target realm was
+ * reached through.
+ *
+ * <p>Getting a ticket to a service in another realm takes a TGS exchange with the KDC of each
+ * realm on the way, each referring the client to the next one. Once the TGT for the target realm
+ * is cached, further tickets to services in that realm take a single exchange with its KDC.
+ * After that TGT expired, the walk resumes from the last realm on the path whose TGT is still
+ * valid. Entries are kept until shortly before the tickets' end times, and paths until none of
+ * their TGTs is usable any more.
+ */
+public final class CrossRealmTicketCache {
+  // Tickets this close to their end time are not handed out, as in ServiceTicketCache.
+  private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  // Bounds the walk, in case KDCs refer the client round in circles.
+  private static final int MAX_REFERRALS = 10;
+
+  private static final CrossRealmTicketCache INSTANCE = new CrossRealmTicketCache();
+
+  /** A TGS exchange with the KDC of the realm a ticket-granting-ticket is for. */
+  public interface TgsExchange {
+    /** Asks for a ticket to the given service principal, e.g. {@code krbtgt/REALM@OTHER}. */
+    KerberosTicket requestTicket(KerberosTicket tgt, String servicePrincipal)
+        throws KrbException, IOException;
+  }
+
+  // TGT of each client for each realm other than its own.
+  private final Map<String, KerberosTicket> tickets = new ConcurrentHashMap<>();
+  // Realms each client went through to reach each target realm, the target realm last.
+  private final Map<String, List<String>> paths = new ConcurrentHashMap<>();
+
+  public static CrossRealmTicketCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns a ticket-granting-ticket of the client for the target realm, following the
+   * referrals of the KDCs from the realm of {@code tgt} with {@code exchange} unless one is
+   * cached. The TGTs obtained on the way are cached.
+   *
+   * @throws KrbException if a KDC refused a referral, or referred the client back to a realm
+   *     already on the way.
+   */
+  public KerberosTicket getTicketGrantingTicket(
+      String clientPrincipal, KerberosTicket tgt, String targetRealm, TgsExchange exchange)
+      throws KrbException, IOException {
+    KerberosTicket ticket = get(clientPrincipal, targetRealm);
+    if (ticket != null) {
+      return ticket;
+    }
+
+    removeUnusablePaths();
+    String realm = getTicketRealm(tgt);
+    Set<String> visitedRealms = new HashSet<>();
+    visitedRealms.add(realm);
+    List<String> path = new ArrayList<>();
+    ticket = tgt;
+    // Resume from the furthest realm on the known way to the target realm that a TGT is still
+    // held for.
+    String key = makeKey(clientPrincipal, targetRealm);
+    List<String> knownPath = paths.get(key);
+    if (knownPath != null) {
+      for (int i = knownPath.size() - 1; i >= 0; i--) {
+        KerberosTicket knownTicket = get(clientPrincipal, knownPath.get(i));
+        if (knownTicket != null) {
+          ticket = knownTicket;
+          realm = knownPath.get(i);
+          path.addAll(knownPath.subList(0, i + 1));
+          visitedRealms.addAll(path);
+          break;
+        }
+      }
+    }
+
+    while (!realm.equals(targetRealm)) {
+      if (path.size() >= MAX_REFERRALS) {
+        throw new KrbException(String.format("Too many referrals to realm %s", targetRealm));
+      }
+      // The KDC answers with a TGT for the target realm if its realm trusts it directly, and
+      // with one for the next realm on the way otherwise.
+      KerberosTicket referral =
+          exchange.requestTicket(ticket, TGS_DEFAULT_SRV_NAME + "/" + targetRealm + "@" + realm);
+      String referredRealm = getTicketRealm(referral);
+      if (referredRealm == null || !visitedRealms.add(referredRealm)) {
+        throw new KrbException(
+            String.format("Unexpected referral from realm %s to %s", realm, referredRealm));
+      }
+      Log.d(TAG, String.format("Referred from realm %s to %s.", realm, referredRealm));
+      put(clientPrincipal, referredRealm, referral);
+      path.add(referredRealm);
+      ticket = referral;
+      realm = referredRealm;
+    }
+    if (hasUsableTicket(clientPrincipal, path)) {
+      paths.put(key, Collections.unmodifiableList(path));
+    } else {
+      // Too short-lived to be resumed from.
+      paths.remove(key);
+    }
+    return ticket;
+  }
+
+  /** Drops the client's TGT for the given realm, e.g. because its KDC rejected it. */
+  public void evict(String clientPrincipal, String realm) {
+    tickets.remove(makeKey(clientPrincipal, realm));
+  }
+
+  /** Drops every cached ticket and path. */
+  public void clear() {
+    tickets.clear();
+    paths.clear();
+  }
+
+  /** Drops the tickets and paths of the given client, e.g. because its account was removed. */
+  public void clearClient(String clientPrincipal) {
+    String keyPrefix = makeKey(clientPrincipal, "");
+    tickets.keySet().removeIf(key -> key.startsWith(keyPrefix));
+    paths.keySet().removeIf(key -> key.startsWith(keyPrefix));
+  }
+
+  /** Returns the known realms on the client's way to the target realm, the target realm last. */
+  List<String> getPath(String clientPrincipal, String targetRealm) {
+    return paths.get(makeKey(clientPrincipal, targetRealm));
+  }
+
+  // Drops the expired TGTs, and the paths none of whose TGTs is cached any more: resuming from
+  // them would take as many exchanges as starting over.
+  private void removeUnusablePaths() {
+    long nowMillis = System.currentTimeMillis();
+    tickets.values().removeIf(ticket -> !isUsable(ticket, nowMillis));
+    for (Map.Entry<String, List<String>> entry : paths.entrySet()) {
+      List<String> path = entry.getValue();
+      // The key is that of the client's TGT for the target realm, the last on the path.
+      String key = entry.getKey();
+      String keyPrefix = key.substring(0, key.length() - path.get(path.size() - 1).length());
+      if (path.stream().noneMatch(realm -> tickets.containsKey(keyPrefix + realm))) {
+        paths.remove(key, path);
+      }
+    }
+  }
+
+  private boolean hasUsableTicket(String clientPrincipal, List<String> path) {
+    for (String realm : path) {
+      if (get(clientPrincipal, realm) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private KerberosTicket get(String clientPrincipal, String realm) {
+    String key = makeKey(clientPrincipal, realm);
+    KerberosTicket ticket = tickets.get(key);
+    if (ticket != null && !isUsable(ticket, System.currentTimeMillis())) {
+      tickets.remove(key, ticket);
+      return null;
+    }
+    return ticket;
+  }
+
+  private void put(String clientPrincipal, String realm, KerberosTicket ticket) {
+    if (isUsable(ticket, System.currentTimeMillis())) {
+      tickets.put(makeKey(clientPrincipal, realm), ticket);
+    }
+  }
+
+  /** Returns the realm a ticket-granting-ticket is for, or null if it is not a TGT. */
+  static String getTicketRealm(KerberosTicket ticket) {
+    String server = ticket.getServer().getName();
+    String prefix = TGS_DEFAULT_SRV_NAME + "/";
+    if (!server.startsWith(prefix)) {
+      return null;
+    }
+    int at = server.indexOf('@', prefix.length());
+    return server.substring(prefix.length(), at < 0 ? server.length() : at);
+  }
+
+  private static boolean isUsable(KerberosTicket ticket, long nowMillis) {
+    Date endTime = ticket.getEndTime();
+    return !ticket.isDestroyed()
+        && endTime != null
+        && endTime.getTime() - EXPIRY_MARGIN_MILLIS > nowMillis;
+  }
+
+  private static String makeKey(String clientPrincipal, String realm) {
+    return clientPrincipal + " " + realm;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+import sun.security.jgss.GSSCaller;
+import sun.security.jgss.GSSManagerImpl;
+import sun.security.jgss.GSSUtil;
+
+/**
+ * Process-wide entry point to the GSS layer for initiating SPNEGO contexts.
+ *
+ * <p>Owns a single {@link GSSManager}, whose provider list loads each mechanism factory once and
+ * then keeps it, and the mechanism OIDs, so that naming the service and creating the security
+ * context are the only allocations left to each request. The manager synchronizes its provider
+ * lookups, so the engine may be used from several threads at once.
+ */
+public final class GssEngine {
+  /** The SPNEGO mechanism, which wraps the Kerberos one. */
+  public static final Oid SPNEGO_MECHANISM = GSSUtil.GSS_SPNEGO_MECH_OID;
+  /** The Kerberos 5 mechanism. */
+  public static final Oid KRB5_MECHANISM = GSSUtil.GSS_KRB5_MECH_OID;
+
+  private static final GssEngine INSTANCE = new GssEngine();
+
+  private final GSSManager manager = new GSSManagerImpl(GSSCaller.CALLER_INITIATE, false);
+  // The supported mechanisms, listed the first time they are logged.
+  private volatile String mechanisms = null;
+
+  public static GssEngine getInstance() {
+    return INSTANCE;
+  }
+
+  private GssEngine() {}
+
+  /**
+   * Loads the SPNEGO and Kerberos mechanism factories now, rather than on the first request.
+   *
+   * @throws GSSException if a mechanism is not available.
+   */
+  public void warmUp() throws GSSException {
+    manager.getNamesForMech(KRB5_MECHANISM);
+    manager.getNamesForMech(SPNEGO_MECHANISM);
+  }
+
+  /** Names a service, in the given name type, for the SPNEGO mechanism. */
+  public GSSName createServiceName(String name, Oid nameType) throws GSSException {
+    return manager.createName(name, nameType, SPNEGO_MECHANISM);
+  }
+
+  /**
+   * Creates a SPNEGO security context to the given service, with the default credentials of the
+   * GSS layer's global subject.
+   */
+  public GSSContext createContext(GSSName serviceName) throws GSSException {
+    return manager.createContext(
+        serviceName, SPNEGO_MECHANISM, null /* credentials */, GSSContext.DEFAULT_LIFETIME);
+  }
+
+  /** Returns the supported mechanisms, separated by spaces, e.g. for debug logs. */
+  public String getMechanisms() {
+    String supported = mechanisms;
+    if (supported == null) {
+      StringBuilder builder = new StringBuilder();
+      for (Oid oid : manager.getMechs()) {
+        builder.append(oid).append("   ");
+      }
+      supported = builder.toString();
+      mechanisms = supported;
+    }
+    return supported;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+
+/**
+ * Process-wide cache of service tickets, keyed by the client principal and the service principal
+ * (e.g. {@code HTTP@host}) the ticket was obtained for.
+ *
+ * <p>A cached ticket is handed back to the GSS layer, which then only has to build a new AP-REQ
+ * authenticator locally instead of doing a TGS exchange with the domain controller. Entries are
+ * kept until shortly before the ticket's end time.
+ *
+ * <p>Concurrent requests for a ticket that is not cached yet share a single TGS exchange: see
+ * {@link #getOrAcquire}.
+ *
+ * <p>Once {@link #initialize initialized}, the cache also keeps its tickets in a {@link
+ * ServiceTicketStore}, from which a ticket is read back the first time it is asked for after the
+ * process was restarted. Tickets are written to the store on a thread of its own, so that the
+ * request which obtained a ticket does not wait for the file to be appended to or compacted.
+ */
+public final class ServiceTicketCache {
+  // Tickets this close to their end time are not handed out, so that they do not expire before
+  // the service had a chance to validate them.
+  private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final ServiceTicketCache INSTANCE = new ServiceTicketCache();
+
+  private final Map<String, KerberosTicket> tickets = new ConcurrentHashMap<>();
+  // Tickets being obtained from the KDC, completed with null if that failed.
+  private final Map<String, CompletableFuture<KerberosTicket>> pendingTickets =
+      new ConcurrentHashMap<>();
+  // Null until initialized, e.g. in tests.
+  private volatile ServiceTicketStore store = null;
+  // Applies changes to the store in the order they were made to the cache.
+  private final ExecutorService storeWriter =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "Service ticket store"));
+
+  public static ServiceTicketCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Makes the cache keep its tickets in the app's private storage, so that they outlive it. */
+  public synchronized void initialize(Context context) {
+    if (store == null) {
+      store = ServiceTicketStore.create(context.getApplicationContext());
+    }
+  }
+
+  /** Reads the store now, so that the first request for a ticket does not have to. */
+  public void preload() {
+    ServiceTicketStore ticketStore = store;
+    if (ticketStore != null) {
+      ticketStore.preload();
+    }
+  }
+
+  @VisibleForTesting
+  void setStore(ServiceTicketStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Waits until the tickets cached so far were written to the store, e.g. before the process may
+   * be stopped.
+   */
+  public void flushWrites() {
+    try {
+      storeWriter.submit(() -> {}).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // The empty task queued behind the writes cannot fail.
+      Log.w(TAG, "Failed waiting for service ticket store writes", e);
+    }
+  }
+
+  /**
+   * Returns a still-valid ticket for the given client to the given service, or null if none is
+   * cached.
+   */
+  public KerberosTicket get(String clientPrincipal, String servicePrincipal) {
+    String key = makeKey(clientPrincipal, servicePrincipal);
+    KerberosTicket ticket = tickets.get(key);
+    if (ticket == null) {
+      ticket = loadStoredTicket(clientPrincipal, servicePrincipal, key);
+      if (ticket == null) {
+        return null;
+      }
+    }
+    if (!isUsable(ticket, System.currentTimeMillis())) {
+      tickets.remove(key, ticket);
+      return null;
+    }
+    return ticket;
+  }
+
+  /**
+   * Returns a still-valid ticket for the given client to the given service, obtaining it with
+   * {@code acquirer} if none is cached. If the ticket is already being obtained by another
+   * thread, waits for that thread instead of asking the KDC again.
+   *
+   * @return the ticket, or null if {@code acquirer} failed to obtain one.
+   */
+  public KerberosTicket getOrAcquire(
+      String clientPrincipal, String servicePrincipal, Supplier<KerberosTicket> acquirer) {
+    KerberosTicket ticket = get(clientPrincipal, servicePrincipal);
+    if (ticket != null) {
+      return ticket;
+    }
+
+    String key = makeKey(clientPrincipal, servicePrincipal);
+    CompletableFuture<KerberosTicket> pendingTicket = new CompletableFuture<>();
+    CompletableFuture<KerberosTicket> otherPendingTicket =
+        pendingTickets.putIfAbsent(key, pendingTicket);
+    if (otherPendingTicket != null) {
+      return otherPendingTicket.join();
+    }
+
+    try {
+      // Another thread may have cached the ticket right before this one started waiting for it.
+      ticket = get(clientPrincipal, servicePrincipal);
+      if (ticket == null) {
+        ticket = acquirer.get();
+        if (ticket != null) {
+          put(clientPrincipal, servicePrincipal, ticket);
+        }
+      }
+      return ticket;
+    } finally {
+      pendingTickets.remove(key, pendingTicket);
+      pendingTicket.complete(ticket);
+    }
+  }
+
+  /** Caches the ticket obtained by the given client for the given service. */
+  public void put(String clientPrincipal, String servicePrincipal, KerberosTicket ticket) {
+    if (!isUsable(ticket, System.currentTimeMillis())) {
+      return;
+    }
+    tickets.put(makeKey(clientPrincipal, servicePrincipal), ticket);
+    ServiceTicketStore ticketStore = store;
+    if (ticketStore != null) {
+      storeWriter.execute(() -> ticketStore.put(clientPrincipal, servicePrincipal, ticket));
+    }
+  }
+
+  /** Drops every cached ticket, e.g. because the account they were obtained for is gone. */
+  public void clear() {
+    tickets.clear();
+    ServiceTicketStore ticketStore = store;
+    if (ticketStore != null) {
+      storeWriter.execute(ticketStore::clear);
+    }
+  }
+
+  /** Drops the tickets of the given client, e.g. because its account was removed. */
+  public void clearClient(String clientPrincipal) {
+    String keyPrefix = makeKey(clientPrincipal, "");
+    tickets.keySet().removeIf(key -> key.startsWith(keyPrefix));
+    ServiceTicketStore ticketStore = store;
+    if (ticketStore != null) {
+      storeWriter.execute(() -> ticketStore.removeClient(clientPrincipal));
+    }
+  }
+
+  // Reads the ticket back from the store, the first time it is asked for in this process. The
+  // read is queued behind the pending writes, so that e.g. a ticket dropped since is not read back.
+  private KerberosTicket loadStoredTicket(
+      String clientPrincipal, String servicePrincipal, String key) {
+    ServiceTicketStore ticketStore = store;
+    if (ticketStore == null) {
+      return null;
+    }
+    KerberosTicket ticket;
+    try {
+      ticket =
+          storeWriter
+              .submit(
+                  () ->
+                      ticketStore.get(
+                          clientPrincipal, servicePrincipal, System.currentTimeMillis()))
+              .get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Failed reading stored service ticket", e);
+      return null;
+    }
+    if (ticket == null) {
+      return null;
+    }
+    KerberosTicket otherTicket = tickets.putIfAbsent(key, ticket);
+    return otherTicket != null ? otherTicket : ticket;
+  }
+
+  int size() {
+    return tickets.size();
+  }
+
+  private static boolean isUsable(KerberosTicket ticket, long nowMillis) {
+    Date endTime = ticket.getEndTime();
+    return !ticket.isDestroyed()
+        && endTime != null
+        && endTime.getTime() - EXPIRY_MARGIN_MILLIS > nowMillis;
+  }
+
+  private static String makeKey(String clientPrincipal, String servicePrincipal) {
+    return clientPrincipal + " " + servicePrincipal;
+  }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+
+import android.content.Context;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosCredentialCodec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+
+/**
+ * Keeps service tickets in the app's private storage, so that they outlive the process: the
+ * first request Chrome makes after the process was killed finds its ticket as it would have
+ * before, instead of waiting for a TGS exchange.
+ *
+ * <p>Tickets are encrypted with AES-GCM under a key of the store's own. That key is kept in a
+ * file as well, wrapped by a key that never leaves the Android Keystore, so that reading the
+ * store only takes one Keystore operation per process.
+ *
+ * <p>The store is a log to which a record is appended for every ticket obtained. A record starts
+ * with keyed hashes of the client and of the cache key, and with the end time of the ticket, in
+ * clear, followed by the encrypted ticket. The first use of the store only reads these headers;
+ * a ticket is read and decrypted the first time it is asked for. Once most records are
+ * superseded or expired, the live ones are copied, still encrypted, to a new log which replaces
+ * the old one.
+ */
+public final class ServiceTicketStore {
+  private static final String STORE_FILE_NAME = "service_tickets";
+  private static final String WRAPPED_KEYS_FILE_NAME = "service_tickets.key";
+  private static final String KEYSTORE_ALIAS = "service_ticket_store";
+  private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  // Leading bytes of the log, followed by the format version and a check value of the key.
+  private static final byte[] MAGIC = {'S', 'T'};
+  private static final byte FORMAT_VERSION = 1;
+  private static final int KEY_CHECK_LENGTH = 8;
+  private static final int FILE_HEADER_LENGTH = MAGIC.length + 1 + KEY_CHECK_LENGTH;
+  // The store's key material is an AES key followed by an HMAC key, of this length each.
+  private static final int KEY_LENGTH = 32;
+  private static final int HASH_LENGTH = 16;
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_LENGTH_BITS = 128;
+  // Client hash, key hash, end time and payload length.
+  private static final int RECORD_HEADER_LENGTH = 2 * HASH_LENGTH + 8 + 4;
+  // Bounds the payload length read from a record, in case the log is corrupt.
+  private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+  // The log is not compacted while it holds fewer dead records than this.
+  @VisibleForTesting static final int MIN_DEAD_RECORDS = 32;
+
+  /** Provides the key material of the store: an AES key followed by an HMAC key. */
+  @VisibleForTesting
+  interface KeySource {
+    byte[] getKeys() throws GeneralSecurityException, IOException;
+  }
+
+  private final File file;
+  private final KeySource keySource;
+  private final SecureRandom random = new SecureRandom();
+  // Set up on first use, or left null if the keys could not be obtained.
+  private SecretKey encryptionKey = null;
+  private Mac hasher = null;
+  private byte[] fileHeader = null;
+  private boolean unavailable = false;
+  // The live record of each cache key, by key hash, read on first use.
+  private Map<ByteBuffer, Record> index = null;
+  // Records of the log that were superseded since it was last compacted.
+  private int deadRecords = 0;
+
+  /** Returns a store in the app's private storage, which is not backed up. */
+  public static ServiceTicketStore create(Context context) {
+    File directory = context.getNoBackupFilesDir();
+    return new ServiceTicketStore(
+        new File(directory, STORE_FILE_NAME),
+        new KeystoreWrappedKeys(new File(directory, WRAPPED_KEYS_FILE_NAME)));
+  }
+
+  @VisibleForTesting
+  ServiceTicketStore(File file, KeySource keySource) {
+    this.file = file;
+    this.keySource = keySource;
+  }
+
+  /**
+   * Returns the ticket stored for the given client and service, or null if there is none or it
+   * ended before {@code nowMillis}.
+   */
+  public synchronized KerberosTicket get(
+      String clientPrincipal, String servicePrincipal, long nowMillis) {
+    if (!load()) {
+      return null;
+    }
+    ByteBuffer keyHash = hash(makeKey(clientPrincipal, servicePrincipal));
+    Record record = index.get(keyHash);
+    if (record == null) {
+      return null;
+    }
+    if (record.endTimeMillis <= nowMillis) {
+      index.remove(keyHash);
+      deadRecords++;
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      byte[] bytes = readRecord(in, record);
+      Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+      cipher.init(
+          Cipher.DECRYPT_MODE,
+          encryptionKey,
+          new GCMParameterSpec(TAG_LENGTH_BITS, bytes, RECORD_HEADER_LENGTH, IV_LENGTH));
+      cipher.updateAAD(bytes, 0, RECORD_HEADER_LENGTH - 4);
+      byte[] encodedTicket =
+          cipher.doFinal(
+              bytes,
+              RECORD_HEADER_LENGTH + IV_LENGTH,
+              bytes.length - RECORD_HEADER_LENGTH - IV_LENGTH);
+      return KerberosCredentialCodec.readTicket(
+          new DataInputStream(new ByteArrayInputStream(encodedTicket)));
+    } catch (IOException | GeneralSecurityException e) {
+      Log.w(TAG, "Dropping unreadable stored service ticket", e);
+      index.remove(keyHash);
+      deadRecords++;
+      return null;
+    }
+  }
+
+  /** Stores the ticket obtained by the given client for the given service. */
+  public synchronized void put(
+      String clientPrincipal, String servicePrincipal, KerberosTicket ticket) {
+    if (!load() || ticket.getEndTime() == null) {
+      return;
+    }
+    ByteBuffer clientHash = hash(clientPrincipal);
+    ByteBuffer keyHash = hash(makeKey(clientPrincipal, servicePrincipal));
+    long endTimeMillis = ticket.getEndTime().getTime();
+    try {
+      ByteArrayOutputStream encodedTicket = new ByteArrayOutputStream();
+      KerberosCredentialCodec.writeTicket(new DataOutputStream(encodedTicket), ticket);
+
+      byte[] iv = new byte[IV_LENGTH];
+      random.nextBytes(iv);
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+      header.put(clientHash.duplicate()).put(keyHash.duplicate()).putLong(endTimeMillis);
+      Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+      // The header is authenticated along with the ticket, so that records cannot be swapped.
+      cipher.updateAAD(header.array(), 0, header.position());
+      byte[] encryptedTicket = cipher.doFinal(encodedTicket.toByteArray());
+      header.putInt(IV_LENGTH + encryptedTicket.length);
+
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      long offset = file.length();
+      if (offset == 0) {
+        record.write(fileHeader);
+        offset = fileHeader.length;
+      }
+      record.write(header.array());
+      record.write(iv);
+      record.write(encryptedTicket);
+      try (OutputStream out = new FileOutputStream(file, true /* append */)) {
+        out.write(record.toByteArray());
+      }
+      if (index.put(keyHash, new Record(offset, clientHash, endTimeMillis)) != null) {
+        deadRecords++;
+      }
+    } catch (IOException | GeneralSecurityException e) {
+      Log.w(TAG, "Failed storing service ticket", e);
+      return;
+    }
+    compactIfNeeded(System.currentTimeMillis());
+  }
+
+  /** Drops the tickets of the given client, e.g. because its account was removed. */
+  public synchronized void removeClient(String clientPrincipal) {
+    if (!load()) {
+      return;
+    }
+    ByteBuffer clientHash = hash(clientPrincipal);
+    int removed = 0;
+    for (Iterator<Record> records = index.values().iterator(); records.hasNext(); ) {
+      if (records.next().clientHash.equals(clientHash)) {
+        records.remove();
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      deadRecords += removed;
+      // The tickets must not stay on disk until the log is compacted anyway.
+      compact(System.currentTimeMillis());
+    }
+  }
+
+  /** Drops every stored ticket. */
+  public synchronized void clear() {
+    if (index != null) {
+      index.clear();
+      deadRecords = 0;
+    }
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed deleting stored service tickets");
+    }
+  }
+
+  /**
+   * Obtains the keys and reads the record headers now, e.g. while the app starts, rather than on
+   * the first request for a ticket.
+   */
+  public synchronized void preload() {
+    load();
+  }
+
+  /** Returns the number of records in the log, live or not. */
+  @VisibleForTesting
+  synchronized int getRecordCount() {
+    return load() ? index.size() + deadRecords : 0;
+  }
+
+  /** Obtains the keys and reads the record headers on first use. */
+  private boolean load() {
+    if (index != null) {
+      return true;
+    }
+    if (unavailable) {
+      return false;
+    }
+    try {
+      byte[] keys = keySource.getKeys();
+      encryptionKey = new SecretKeySpec(keys, 0, KEY_LENGTH, "AES");
+      hasher = Mac.getInstance(MAC_ALGORITHM);
+      hasher.init(new SecretKeySpec(keys, KEY_LENGTH, KEY_LENGTH, MAC_ALGORITHM));
+    } catch (IOException | GeneralSecurityException e) {
+      Log.w(TAG, "Service tickets will not be stored", e);
+      unavailable = true;
+      return false;
+    }
+    // Logs written with other keys cannot be read, and are replaced.
+    fileHeader = new byte[FILE_HEADER_LENGTH];
+    System.arraycopy(MAGIC, 0, fileHeader, 0, MAGIC.length);
+    fileHeader[MAGIC.length] = FORMAT_VERSION;
+    byte[] keyCheck = hasher.doFinal("key check".getBytes(StandardCharsets.UTF_8));
+    System.arraycopy(keyCheck, 0, fileHeader, MAGIC.length + 1, KEY_CHECK_LENGTH);
+
+    index = new HashMap<>();
+    try {
+      readIndex();
+    } catch (IOException e) {
+      Log.w(TAG, "Discarding unreadable service ticket store", e);
+      clear();
+    }
+    return true;
+  }
+
+  private void readIndex() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "rw")) {
+      long length = in.length();
+      byte[] header = new byte[FILE_HEADER_LENGTH];
+      if (length < FILE_HEADER_LENGTH) {
+        throw new IOException("Truncated service ticket store");
+      }
+      in.readFully(header);
+      if (!Arrays.equals(header, fileHeader)) {
+        throw new IOException("Service ticket store of another version or key");
+      }
+      long offset = FILE_HEADER_LENGTH;
+      byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+      while (offset + RECORD_HEADER_LENGTH <= length) {
+        in.seek(offset);
+        in.readFully(recordHeader);
+        ByteBuffer fields = ByteBuffer.wrap(recordHeader);
+        ByteBuffer clientHash = ByteBuffer.wrap(recordHeader, 0, HASH_LENGTH).slice();
+        ByteBuffer keyHash = ByteBuffer.wrap(recordHeader, HASH_LENGTH, HASH_LENGTH).slice();
+        long endTimeMillis = fields.getLong(2 * HASH_LENGTH);
+        int payloadLength = fields.getInt(2 * HASH_LENGTH + 8);
+        if (payloadLength <= IV_LENGTH
+            || payloadLength > MAX_PAYLOAD_LENGTH
+            || offset + RECORD_HEADER_LENGTH + payloadLength > length) {
+          break;
+        }
+        Record record = new Record(offset, copy(clientHash), endTimeMillis);
+        if (index.put(copy(keyHash), record) != null) {
+          deadRecords++;
+        }
+        offset += RECORD_HEADER_LENGTH + payloadLength;
+      }
+      if (offset < length) {
+        // The process died while appending the last record.
+        Log.w(TAG, String.format("Dropping %d bytes of partial service ticket record.",
+            length - offset));
+        in.setLength(offset);
+      }
+    }
+  }
+
+  private void compactIfNeeded(long nowMillis) {
+    int expiredRecords = 0;
+    for (Record record : index.values()) {
+      if (record.endTimeMillis <= nowMillis) {
+        expiredRecords++;
+      }
+    }
+    int removableRecords = deadRecords + expiredRecords;
+    if (removableRecords >= MIN_DEAD_RECORDS && removableRecords > index.size() - expiredRecords) {
+      compact(nowMillis);
+    }
+  }
+
+  /** Replaces the log by one holding only its live records. */
+  private void compact(long nowMillis) {
+    File compactedFile = new File(file.getPath() + ".tmp");
+    Map<ByteBuffer, Record> compactedIndex = new HashMap<>();
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(compactedFile))) {
+      out.write(fileHeader);
+      long offset = fileHeader.length;
+      for (Map.Entry<ByteBuffer, Record> entry : index.entrySet()) {
+        Record record = entry.getValue();
+        if (record.endTimeMillis <= nowMillis) {
+          continue;
+        }
+        byte[] bytes = readRecord(in, record);
+        out.write(bytes);
+        compactedIndex.put(
+            entry.getKey(), new Record(offset, record.clientHash, record.endTimeMillis));
+        offset += bytes.length;
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed compacting stored service tickets", e);
+      compactedFile.delete();
+      return;
+    }
+    if (!compactedFile.renameTo(file)) {
+      Log.w(TAG, "Failed replacing stored service tickets");
+      compactedFile.delete();
+      return;
+    }
+    Log.d(TAG, String.format("Compacted stored service tickets from %d to %d records.",
+        index.size() + deadRecords, compactedIndex.size()));
+    index = compactedIndex;
+    deadRecords = 0;
+  }
+
+  private static byte[] readRecord(RandomAccessFile in, Record record) throws IOException {
+    in.seek(record.offset + RECORD_HEADER_LENGTH - 4);
+    int payloadLength = in.readInt();
+    if (payloadLength <= IV_LENGTH || payloadLength > MAX_PAYLOAD_LENGTH) {
+      throw new IOException("Corrupt service ticket record");
+    }
+    byte[] bytes = new byte[RECORD_HEADER_LENGTH + payloadLength];
+    in.seek(record.offset);
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private ByteBuffer hash(String value) {
+    byte[] mac = hasher.doFinal(value.getBytes(StandardCharsets.UTF_8));
+    return ByteBuffer.wrap(Arrays.copyOf(mac, HASH_LENGTH));
+  }
+
+  private static ByteBuffer copy(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static String makeKey(String clientPrincipal, String servicePrincipal) {
+    return clientPrincipal + " " + servicePrincipal;
+  }
+
+  /** Where the record of a cache key starts in the log. */
+  private static final class Record {
+    private final long offset;
+    private final ByteBuffer clientHash;
+    private final long endTimeMillis;
+
+    Record(long offset, ByteBuffer clientHash, long endTimeMillis) {
+      this.offset = offset;
+      this.clientHash = clientHash;
+      this.endTimeMillis = endTimeMillis;
+    }
+  }
+
+  /**
+   * Key material generated on first use and kept in a file, wrapped by an AES key that never
+   * leaves the Android Keystore. New key material is generated if it cannot be unwrapped, e.g.
+   * because the Keystore was reset, which makes the store start over.
+   */
+  private static final class KeystoreWrappedKeys implements KeySource {
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+
+    private final File wrappedKeysFile;
+
+    KeystoreWrappedKeys(File wrappedKeysFile) {
+      this.wrappedKeysFile = wrappedKeysFile;
+    }
+
+    @Override
+    public byte[] getKeys() throws GeneralSecurityException, IOException {
+      KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+      keyStore.load(null);
+      SecretKey wrappingKey = (SecretKey) keyStore.getKey(KEYSTORE_ALIAS, null);
+      if (wrappingKey != null && wrappedKeysFile.exists()) {
+        try {
+          return unwrap(wrappingKey);
+        } catch (IOException | GeneralSecurityException e) {
+          Log.w(TAG, "Failed unwrapping service ticket store key, replacing it", e);
+        }
+      }
+      if (wrappingKey == null) {
+        KeyGenerator keyGenerator =
+            KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+        keyGenerator.init(
+            new KeyGenParameterSpec.Builder(
+                    KEYSTORE_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        wrappingKey = keyGenerator.generateKey();
+      }
+
+      byte[] keys = new byte[2 * KEY_LENGTH];
+      new SecureRandom().nextBytes(keys);
+      // The Keystore chooses the IV.
+      Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+      cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+      byte[] iv = cipher.getIV();
+      byte[] wrappedKeys = cipher.doFinal(keys);
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(wrappedKeysFile))) {
+        out.writeByte(iv.length);
+        out.write(iv);
+        out.write(wrappedKeys);
+      }
+      return keys;
+    }
+
+    private byte[] unwrap(SecretKey wrappingKey) throws IOException, GeneralSecurityException {
+      byte[] iv;
+      byte[] wrappedKeys;
+      try (DataInputStream in = new DataInputStream(new FileInputStream(wrappedKeysFile))) {
+        iv = new byte[in.readUnsignedByte()];
+        in.readFully(iv);
+        wrappedKeys = new byte[(int) wrappedKeysFile.length() - 1 - iv.length];
+        in.readFully(wrappedKeys);
+      }
+      Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+      cipher.init(Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+      byte[] keys = cipher.doFinal(wrappedKeys);
+      if (keys.length != 2 * KEY_LENGTH) {
+        throw new IOException("Unexpected service ticket store key length");
+      }
+      return keys;
+    }
+  }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.Constants.TAG;
+import static sun.security.krb5.PrincipalName.TGS_DEFAULT_SRV_NAME;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Base64;
+import android.util.Log;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosConfig;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosExecutor;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics.Operation;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult.ResultCode;
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Iterator;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+import sun.security.jgss.GSSUtil;
+import sun.security.jgss.krb5.Krb5Util;
+import sun.security.krb5.Credentials;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.KrbTgsReq;
+import sun.security.krb5.PrincipalName;
+
+/**
+ * Gets a SPNEGO ticket for a service synchronously, on the calling thread. Used by
+ * {@link GetSpnegoTicketTask} and by callers that already run in the background.
+ *
+ * <p>Requests may run concurrently, e.g. on {@link KerberosExecutor}. The service ticket is
+ * obtained from the KDC without holding any lock; only building the SPNEGO token, which goes
+ * through the process-wide subject of the GSS layer but does not need the network, is
+ * serialized.
+ */
+public class SpnegoTicketRequest {
+  // Guards the GSS layer's global subject, from setting it until the security context using it
+  // is initialized.
+  private static final Object GSS_LOCK = new Object();
+  // The first call to initSecContext has no token from the service to process.
+  private static final byte[] NO_INPUT_TOKEN = new byte[0];
+
+  private final KerberosContext kerberosContext;
+  private final Subject subject;
+  private String serviceSpnegoTicket = null;
+
+  public SpnegoTicketRequest(
+      Subject subject, String domain, String domainController, boolean debugWithSensitiveData) {
+    this(KerberosContext.forDomain(domain, domainController, subject, debugWithSensitiveData));
+  }
+
+  public SpnegoTicketRequest(KerberosContext kerberosContext) {
+    this.kerberosContext = kerberosContext;
+    this.subject = kerberosContext.getSubject();
+  }
+
+  /**
+   * Obtains a SPNEGO token for the HTTP service on the given host. Blocks while talking to the
+   * KDC, so must not be called on the main thread.
+   */
+  public TicketRequestResult execute(String service) {
+    return execute(service, null);
+  }
+
+  /**
+   * Obtains a SPNEGO token for the HTTP service on the given host, in the given realm. Blocks
+   * while talking to the KDC, so must not be called on the main thread.
+   *
+   * @param service the first label of the host, or its full name if the realm is given: the
+   *     service is then named by its principal, {@code HTTP/host@REALM}, as is.
+   * @param serviceRealm the realm of the service, or null to let the KDC find it.
+   */
+  public TicketRequestResult execute(String service, String serviceRealm) {
+    long startMillis = SystemClock.elapsedRealtime();
+    TicketRequestResult result = getSpnegoToken(service, serviceRealm);
+    KerberosMetrics.getInstance()
+        .recordRequest(Operation.SPNEGO, result, SystemClock.elapsedRealtime() - startMillis);
+    return result;
+  }
+
+  private TicketRequestResult getSpnegoToken(String service, String serviceRealm) {
+    serviceSpnegoTicket = null;
+    boolean debugWithSensitiveData = kerberosContext.isDebug();
+    String servicePrincipal = getServicePrincipal(service, serviceRealm);
+    String clientPrincipal = getClientPrincipal(subject);
+    ServiceTicketCache ticketCache = ServiceTicketCache.getInstance();
+    try {
+      KerberosConfig.getInstance().apply(kerberosContext);
+    } catch (IOException e) {
+      Log.e(TAG, "Error while configuring Kerberos", e);
+      return new TicketRequestResult(ResultCode.ERROR_GSS_FAILURE, e.getMessage());
+    }
+
+    // Work on a copy of the subject: the GSS layer adds the service tickets it obtains to the
+    // subject's private credentials, and the caller's subject should not accumulate them.
+    Subject requestSubject =
+        new Subject(
+            false,
+            subject.getPrincipals(),
+            subject.getPublicCredentials(),
+            subject.getPrivateCredentials());
+    // Concurrent requests for the same service share the TGS exchange, but each builds its own
+    // SPNEGO token: services reject an authenticator they have seen before.
+    KerberosTicket serviceTicket =
+        ticketCache.getOrAcquire(
+            clientPrincipal,
+            servicePrincipal,
+            () -> acquireServiceTicket(service, serviceRealm));
+    if (serviceTicket != null) {
+      // The GSS layer picks up a matching service ticket from the subject rather than asking the
+      // KDC for one.
+      requestSubject.getPrivateCredentials().add(serviceTicket);
+    }
+
+    GssEngine gssEngine = GssEngine.getInstance();
+    if (debugWithSensitiveData) {
+      Log.i(TAG, "Mechanisms supported: " + gssEngine.getMechanisms());
+    }
+
+    GSSName serverName;
+    try {
+      // A service in a known realm is named by its Kerberos principal, so that the GSS layer does
+      // not have to guess the realm from the host name.
+      Oid nameType =
+          serviceRealm != null ? GSSUtil.NT_GSS_KRB5_PRINCIPAL : GSSName.NT_HOSTBASED_SERVICE;
+      serverName = gssEngine.createServiceName(servicePrincipal, nameType);
+
+      GSSContext context;
+      byte[] spnegoToken;
+      synchronized (GSS_LOCK) {
+        GSSUtil.setGlobalSubject(requestSubject);
+        context = gssEngine.createContext(serverName);
+        spnegoToken = context.initSecContext(NO_INPUT_TOKEN, 0, NO_INPUT_TOKEN.length);
+      }
+
+      Log.d(
+          TAG,
+          String.format(
+              "GSS context established? %s service ticket is null? %s",
+              context.isEstablished(), spnegoToken != null));
+
+      if (spnegoToken != null) {
+        serviceSpnegoTicket = Base64.encodeToString(spnegoToken, Base64.NO_WRAP);
+        if (serviceTicket == null) {
+          cacheNewServiceTicket(requestSubject, clientPrincipal, servicePrincipal);
+        }
+      }
+    } catch (GSSException e) {
+      Log.e(TAG, "Error while getting service ticket", e);
+      return new TicketRequestResult(ResultCode.ERROR_GSS_FAILURE, e.getMessage());
+    }
+
+    if (debugWithSensitiveData) {
+      Log.i(TAG, "Spnego ticket: " + serviceSpnegoTicket);
+    }
+
+    return new TicketRequestResult(ResultCode.SUCCESS, "HTTP ticket for " + serverName);
+  }
+
+  /**
+   * Makes sure a ticket to the HTTP service on the given host is cached, asking the KDC for one
+   * if needed, without building a SPNEGO token. Blocks while talking to the KDC, so must not be
+   * called on the main thread.
+   *
+   * @return whether a ticket is cached.
+   */
+  public boolean prefetchServiceTicket(String service) {
+    return prefetchServiceTicket(service, null);
+  }
+
+  /**
+   * Makes sure a ticket to the HTTP service on the given host, in the given realm, is cached. See
+   * {@link #prefetchServiceTicket(String)}.
+   *
+   * @param service the host, named as for {@link #execute(String, String)}.
+   * @param serviceRealm the realm of the service, or null to let the KDC find it.
+   */
+  public boolean prefetchServiceTicket(String service, String serviceRealm) {
+    try {
+      KerberosConfig.getInstance().apply(kerberosContext);
+    } catch (IOException e) {
+      Log.w(TAG, "Error while configuring Kerberos", e);
+      return false;
+    }
+    KerberosTicket serviceTicket =
+        ServiceTicketCache.getInstance()
+            .getOrAcquire(
+                getClientPrincipal(subject),
+                getServicePrincipal(service, serviceRealm),
+                () -> acquireServiceTicket(service, serviceRealm));
+    return serviceTicket != null;
+  }
+
+  /**
+   * Asks the KDC for a ticket to the HTTP service on the given host, in the given realm if it is
+   * not null, using the TGT of the subject.
+   *
+   * @return the ticket, or null if it could not be obtained. The GSS layer then tries again
+   *     itself, reporting any error.
+   */
+  private KerberosTicket acquireServiceTicket(String service, String serviceRealm) {
+    KerberosTicket tgt = getTicketGrantingTicket(subject);
+    if (tgt == null) {
+      return null;
+    }
+    // The same principal the ticket is cached under and the GSS layer names the service by.
+    String principal =
+        serviceRealm != null ? getServicePrincipal(service, serviceRealm) : "HTTP/" + service;
+    if (serviceRealm != null) {
+      if (!serviceRealm.equals(tgt.getClient().getRealm())) {
+        return acquireCrossRealmServiceTicket(tgt, principal, serviceRealm);
+      }
+    }
+    Log.d(TAG, String.format("Requesting service ticket for %s.", principal));
+    long startMillis = SystemClock.elapsedRealtime();
+    try {
+      Credentials serviceCredentials =
+          Credentials.acquireServiceCreds(principal, Krb5Util.ticketToCreds(tgt));
+      KerberosConfig.getInstance()
+          .recordRequest(kerberosContext, SystemClock.elapsedRealtime() - startMillis, null);
+      return Krb5Util.credsToTicket(serviceCredentials);
+    } catch (KrbException | IOException e) {
+      Log.w(TAG, String.format("Failed obtaining service ticket for %s", service), e);
+      KerberosConfig.getInstance()
+          .recordRequest(kerberosContext, SystemClock.elapsedRealtime() - startMillis, e);
+      return null;
+    }
+  }
+
+  /**
+   * Asks the KDC of the service's realm for a ticket to the service, with the client's TGT for
+   * that realm. That TGT is obtained by following the referrals from the client's realm, unless
+   * it is cached in the {@link CrossRealmTicketCache}.
+   *
+   * @return the ticket, or null if it could not be obtained.
+   */
+  private KerberosTicket acquireCrossRealmServiceTicket(
+      KerberosTicket tgt, String principal, String serviceRealm) {
+    String clientPrincipal = tgt.getClient().getName();
+    CrossRealmTicketCache crossRealmTickets = CrossRealmTicketCache.getInstance();
+    Log.d(TAG, String.format("Requesting cross-realm service ticket for %s.", principal));
+    try {
+      KerberosTicket crossRealmTgt =
+          crossRealmTickets.getTicketGrantingTicket(
+              clientPrincipal, tgt, serviceRealm, this::requestTicket);
+      try {
+        return requestTicket(crossRealmTgt, principal);
+      } catch (KrbException e) {
+        // The KDC may no longer accept the TGT, e.g. because the trust was reset: follow the
+        // referrals again next time.
+        crossRealmTickets.evict(clientPrincipal, serviceRealm);
+        throw e;
+      }
+    } catch (KrbException | IOException e) {
+      Log.w(TAG, String.format("Failed obtaining cross-realm service ticket for %s", principal),
+          e);
+      return null;
+    }
+  }
+
+  /**
+   * Does a TGS exchange with the KDC of the realm the TGT is for, which may be another realm
+   * than the client's: its KDCs are then those configured for it, e.g. with an additional
+   * account, or else discovered through DNS; see {@link KerberosConfig#apply}.
+   */
+  private KerberosTicket requestTicket(KerberosTicket tgt, String servicePrincipal)
+      throws KrbException, IOException {
+    KerberosContext realmContext =
+        new KerberosContext(
+            CrossRealmTicketCache.getTicketRealm(tgt),
+            Collections.emptyList(),
+            null,
+            kerberosContext.isDebug());
+    KerberosConfig.getInstance().applyRealm(realmContext);
+    long startMillis = SystemClock.elapsedRealtime();
+    try {
+      Credentials credentials =
+          new KrbTgsReq(Krb5Util.ticketToCreds(tgt), new PrincipalName(servicePrincipal))
+              .sendAndGetCreds();
+      KerberosConfig.getInstance()
+          .recordRequest(realmContext, SystemClock.elapsedRealtime() - startMillis, null);
+      return Krb5Util.credsToTicket(credentials);
+    } catch (KrbException | IOException e) {
+      KerberosConfig.getInstance()
+          .recordRequest(realmContext, SystemClock.elapsedRealtime() - startMillis, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the name of the HTTP service on the given host: its host-based name, or its Kerberos
+   * principal if the realm is known. Tickets are cached under this name.
+   */
+  @VisibleForTesting
+  static String getServicePrincipal(String service, String serviceRealm) {
+    return serviceRealm != null ? "HTTP/" + service + "@" + serviceRealm : "HTTP@" + service;
+  }
+
+  private static KerberosTicket getTicketGrantingTicket(Subject subject) {
+    for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+      if (ticket.getServer().getName().startsWith(TGS_DEFAULT_SRV_NAME + "/")) {
+        return ticket;
+      }
+    }
+    return null;
+  }
+
+  // Stores the service ticket the GSS layer added to the request subject, if any.
+  private void cacheNewServiceTicket(
+      Subject requestSubject, String clientPrincipal, String servicePrincipal) {
+    for (KerberosTicket ticket : requestSubject.getPrivateCredentials(KerberosTicket.class)) {
+      if (!subject.getPrivateCredentials().contains(ticket)) {
+        ServiceTicketCache.getInstance().put(clientPrincipal, servicePrincipal, ticket);
+        return;
+      }
+    }
+  }
+
+  private static String getClientPrincipal(Subject subject) {
+    Iterator<Principal> principals = subject.getPrincipals().iterator();
+    return principals.hasNext() ? principals.next().getName() : "";
+  }
+
+  /**
+   * Returns the SPNEGO ticket obtained by the last call to {@link #execute}, base64-encoded
+   * without line wraps, or null if it failed.
+   */
+  public String getSpnegoTicket() {
+    return serviceSpnegoTicket;
+  }
+}
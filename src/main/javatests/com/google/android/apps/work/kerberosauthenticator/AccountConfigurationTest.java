@@ -16,14 +16,19 @@
 package com.google.android.apps.work.kerberosauthenticator;
 
 import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.content.ContextWrapper;
+import android.content.Intent;
 import android.content.RestrictionsManager;
 import android.os.Bundle;
 import androidx.test.core.app.ApplicationProvider;
 import com.google.common.collect.Sets;
+import java.util.Arrays;
 import java.util.Set;
 import org.junit.Before;
 import org.junit.Test;
@@ -87,6 +92,128 @@ public class AccountConfigurationTest {
     assertFalse(accConfig.hasManagedConfigPassword());
   }
 
+  @Test
+  public void testGetInstanceIsShared() {
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = AccountConfiguration.getInstance(context);
+    assertSame(accConfig, AccountConfiguration.getInstance(context));
+  }
+
+  @Test
+  public void testConfigsOnlyReadAgainWhenChanged() {
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = AccountConfiguration.getInstance(context);
+    assertTrue(accConfig.hasManagedConfigs());
+
+    Bundle changedBundle = TestHelper.makeRestrictionsBundle();
+    changedBundle.remove(AccountConfiguration.USERNAME_KEY);
+    shadowOf(restrictionsManager).setApplicationRestrictions(changedBundle);
+    assertTrue(accConfig.hasManagedConfigs());
+
+    accConfig
+        .getReceiver()
+        .onReceive(context, new Intent(Intent.ACTION_APPLICATION_RESTRICTIONS_CHANGED));
+    assertFalse(accConfig.hasManagedConfigs());
+  }
+
+  @Test
+  public void testPrefetchServices() {
+    restrictionsBundle.putString(
+        AccountConfiguration.PREFETCH_SERVICES_KEY, " portal.example.com,,wiki.example.com ");
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = new AccountConfiguration(context);
+    assertEquals(
+        Arrays.asList("portal.example.com", "wiki.example.com"), accConfig.getPrefetchServices());
+  }
+
+  @Test
+  public void testNoPrefetchServicesByDefault() {
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = new AccountConfiguration(context);
+    assertTrue(accConfig.getPrefetchServices().isEmpty());
+  }
+
+  @Test
+  public void testAdditionalAccounts() {
+    restrictionsBundle.putParcelableArray(
+        AccountConfiguration.ADDITIONAL_ACCOUNTS_KEY,
+        new Bundle[] {
+          TestHelper.makeAccountBundle("other_user", "corp.example.com", "dc.corp.example.com")
+        });
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = new AccountConfiguration(context);
+
+    assertEquals(2, accConfig.getAllAccountDetails().size());
+    assertEquals(
+        TestHelper.TEST_USERNAME, accConfig.getAllAccountDetails().get(0).getUsername());
+    assertEquals(
+        "corp.example.com",
+        accConfig.getAccountDetails("other_user").getActiveDirectoryDomain());
+    assertNull(accConfig.getAccountDetails("unknown_user"));
+    assertTrue(accConfig.isAdditionalAccount("other_user"));
+    assertFalse(accConfig.isAdditionalAccount(TestHelper.TEST_USERNAME));
+  }
+
+  @Test
+  public void testIncompleteAdditionalAccountIsIgnored() {
+    restrictionsBundle.putParcelableArray(
+        AccountConfiguration.ADDITIONAL_ACCOUNTS_KEY,
+        new Bundle[] {TestHelper.makeAccountBundle("other_user", "corp.example.com", "")});
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = new AccountConfiguration(context);
+
+    assertTrue(accConfig.hasManagedConfigs());
+    assertNull(accConfig.getAccountDetails("other_user"));
+  }
+
+  @Test
+  public void testAccountDetailsForHost() {
+    restrictionsBundle.putParcelableArray(
+        AccountConfiguration.ADDITIONAL_ACCOUNTS_KEY,
+        new Bundle[] {
+          TestHelper.makeAccountBundle("corp_user", "corp.example.com", "dc.corp.example.com"),
+          TestHelper.makeAccountBundle("eu_user", "EU.corp.example.com", "dc.eu.corp.example.com")
+        });
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = new AccountConfiguration(context);
+
+    assertEquals(
+        "corp_user", accConfig.getAccountDetailsForHost("wiki.corp.example.com").getUsername());
+    // The longest domain the host belongs to wins.
+    assertEquals(
+        "eu_user", accConfig.getAccountDetailsForHost("wiki.eu.CORP.example.com").getUsername());
+    assertEquals("corp_user", accConfig.getAccountDetailsForHost("corp.example.com").getUsername());
+    // Hosts outside of the domains of the additional accounts use the primary account.
+    assertEquals(
+        TestHelper.TEST_USERNAME, accConfig.getAccountDetailsForHost("example.com").getUsername());
+  }
+
+  @Test
+  public void testDomainRealms() {
+    restrictionsBundle.putParcelableArray(
+        AccountConfiguration.ADDITIONAL_ACCOUNTS_KEY,
+        new Bundle[] {
+          TestHelper.makeAccountBundle("corp_user", "corp.example.com", "dc.corp.example.com")
+        });
+    restrictionsBundle.putString(
+        AccountConfiguration.DOMAIN_REALMS_KEY,
+        ".apps.example.org = CORP.EXAMPLE.COM,\nlegacy.corp.example.com = OTHER.EXAMPLE.COM");
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+    accConfig = new AccountConfiguration(context);
+
+    assertEquals("CORP.EXAMPLE.COM", accConfig.getRealmForHost("wiki.apps.example.org"));
+    assertEquals(
+        "corp_user", accConfig.getAccountDetailsForHost("wiki.apps.example.org").getUsername());
+    // Configured mappings take precedence over the domains of the accounts.
+    assertEquals("OTHER.EXAMPLE.COM", accConfig.getRealmForHost("legacy.corp.example.com"));
+    assertEquals("CORP.EXAMPLE.COM", accConfig.getRealmForHost("wiki.corp.example.com"));
+    // Realms without an account of their own use the primary account.
+    assertEquals(
+        TestHelper.TEST_USERNAME,
+        accConfig.getAccountDetailsForHost("legacy.corp.example.com").getUsername());
+    assertNull(accConfig.getRealmForHost("www.example.net"));
+  }
+
   @Test
   public void testDebugWithSensitiveDataOffByDefault() {
     shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
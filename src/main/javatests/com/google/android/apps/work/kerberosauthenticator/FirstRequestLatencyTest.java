@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.accounts.Account;
+import android.accounts.AccountAuthenticatorResponse;
+import android.accounts.AccountManager;
+import android.accounts.IAccountAuthenticatorResponse;
+import android.content.Context;
+import android.content.RestrictionsManager;
+import android.os.Bundle;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.UserAuthenticationRequest;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.kerby.kerberos.kerb.server.SimpleKdcServer;
+import org.apache.kerby.util.NetworkUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAccountManager;
+
+/**
+ * Measures the latency of the first {@code getAuthToken} request of a process, against a KDC
+ * running on the loopback interface, with or without {@link KerberosWarmUp} having run first.
+ *
+ * <p>Only the first request in a JVM is cold, so each variant runs in its own target: {@code
+ * FirstRequestLatencyTest} without warm-up, and {@code WarmFirstRequestLatencyTest}, which sets
+ * the {@code kerberos.warmUp} system property, with it. The user is logged in before the request
+ * in both, which already loads the classes of the AS exchange; the difference between the two is
+ * what the warm-up saves on the SPNEGO path.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(
+    sdk = 26,
+    shadows = {ShadowAccountManager.class})
+public final class FirstRequestLatencyTest {
+  private static final String DOMAIN = "example.com";
+  private static final String REALM = "EXAMPLE.COM";
+  private static final String USERNAME = "firstuser";
+  private static final String PASSWORD = "first-password";
+  // The only host name that resolves without DNS, as in KerberosLoadTest.
+  private static final String SERVICE = "localhost";
+  private static final String AUTH_TOKEN_TYPE = "SPNEGO:HOSTBASED:HTTP@localhost.example.com";
+  private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SimpleKdcServer kdcServer;
+  private Context context;
+  private Account account;
+  private KerberosAuthenticator authenticator;
+
+  @Before
+  public void setUp() throws Exception {
+    int port = NetworkUtil.getServerPort();
+    kdcServer = new SimpleKdcServer();
+    kdcServer.setWorkDir(temporaryFolder.getRoot());
+    kdcServer.setKdcHost("localhost");
+    kdcServer.setKdcRealm(REALM);
+    kdcServer.setAllowTcp(true);
+    kdcServer.setAllowUdp(true);
+    kdcServer.setKdcTcpPort(port);
+    kdcServer.setKdcUdpPort(port);
+    kdcServer.init();
+    kdcServer.start();
+    kdcServer.createPrincipal(USERNAME + "@" + REALM, PASSWORD);
+    kdcServer.createPrincipal(String.format("HTTP/%s@%s", SERVICE, REALM), PASSWORD);
+    String kdc = "localhost:" + port;
+
+    context = ApplicationProvider.getApplicationContext();
+    account = new Account(USERNAME, Constants.KERBEROS_ACCOUNT_TYPE);
+    AccountManager accountManager = AccountManager.get(context);
+    shadowOf(accountManager).addAccount(account);
+    accountManager.setUserData(account, KerberosAccount.KEY_AD_DOMAIN, DOMAIN);
+    accountManager.setUserData(account, KerberosAccount.KEY_AD_DC, kdc);
+    accountManager.setUserData(
+        account,
+        KerberosAccount.KEY_TGT,
+        Base64.getEncoder().encodeToString(login(kdc).asSerialized()));
+
+    Bundle restrictionsBundle = new Bundle();
+    restrictionsBundle.putString(AccountConfiguration.USERNAME_KEY, USERNAME);
+    restrictionsBundle.putString(AccountConfiguration.AD_DOMAIN_KEY, DOMAIN);
+    restrictionsBundle.putString(AccountConfiguration.AD_CONTROLLER_KEY, kdc);
+    restrictionsBundle.putBoolean(AccountConfiguration.BACKGROUND_SERVICE_TICKETS_KEY, true);
+    RestrictionsManager restrictionsManager =
+        (RestrictionsManager)
+            context.getSystemService(context.getSystemServiceName(RestrictionsManager.class));
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+
+    authenticator = new KerberosAuthenticator(context);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    shadowOf(AccountManager.get(context)).removeAllAccounts();
+    kdcServer.stop();
+  }
+
+  @Test
+  public void testFirstAuthTokenRequest() throws Exception {
+    boolean warmUp = Boolean.getBoolean("kerberos.warmUp");
+    if (warmUp) {
+      // Run on the test thread rather than in the background, so that the request below
+      // certainly finds the stack warmed up.
+      KerberosWarmUp.run(context);
+      assertThat(KerberosMetrics.getInstance().getWarmUpMillis()).isAtLeast(0L);
+    }
+
+    long latencyMillis = requestAuthToken();
+
+    System.out.println(
+        String.format(
+            "First request %s warm-up: %d ms%s",
+            warmUp ? "with" : "without",
+            latencyMillis,
+            warmUp
+                ? String.format(" (warm-up took %d ms)",
+                    KerberosMetrics.getInstance().getWarmUpMillis())
+                : ""));
+  }
+
+  // Logs the user in, as the LoginActivity would.
+  private static TicketGrantingTicket login(String kdc) {
+    UserAuthenticationRequest request =
+        new UserAuthenticationRequest(
+            USERNAME,
+            PASSWORD,
+            new KerberosContext(REALM, Collections.singletonList(kdc), null, false));
+    TicketRequestResult result = request.execute();
+    assertThat(result.successful()).isTrue();
+    return new TicketGrantingTicket(request.getSubject());
+  }
+
+  // Makes one getAuthToken request, and returns how long it took to get the token.
+  private long requestAuthToken() throws Exception {
+    Bundle options = new Bundle();
+    options.putString(AccountManager.KEY_ANDROID_PACKAGE_NAME, Constants.CHROME_PACKAGE_NAME);
+    CompletableFuture<Bundle> result = new CompletableFuture<>();
+    AccountAuthenticatorResponse response =
+        new AccountAuthenticatorResponse(
+            new IAccountAuthenticatorResponse.Stub() {
+              @Override
+              public void onResult(Bundle bundle) {
+                result.complete(bundle);
+              }
+
+              @Override
+              public void onRequestContinued() {}
+
+              @Override
+              public void onError(int errorCode, String errorMessage) {
+                result.completeExceptionally(
+                    new AssertionError(String.format("Error %d: %s", errorCode, errorMessage)));
+              }
+            });
+    long startNanos = System.nanoTime();
+    Bundle immediateResult =
+        authenticator.getAuthToken(response, account, AUTH_TOKEN_TYPE, options);
+    if (immediateResult != null) {
+      result.complete(immediateResult);
+    }
+    Bundle bundle = result.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    assertThat(bundle.getString(AccountManager.KEY_AUTHTOKEN)).isNotNull();
+    return latencyMillis;
+  }
+}
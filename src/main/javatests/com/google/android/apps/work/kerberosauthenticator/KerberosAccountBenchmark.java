@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per-request work of the authenticator outside of Kerberos: parsing the auth token
+ * type and reading the stored ticket-granting-ticket back from the account.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KerberosAccountBenchmark {
+  private static final String AUTH_TOKEN_TYPE = "SPNEGO:HOSTBASED:HTTP@test-server.example.com";
+
+  private byte[] serializedTgt;
+  private KerberosAccount account;
+
+  @Setup
+  public void setUp() {
+    serializedTgt = Base64.getDecoder().decode(TestHelper.B64_SUBJECT);
+    account =
+        new KerberosAccount(
+            TestHelper.USERNAME, TestHelper.PASSWORD, TestHelper.AD_DOMAIN, TestHelper.AD_DC);
+    account.setTicketGrantingTicket(serializedTgt);
+  }
+
+  @Benchmark
+  public String matchAuthTokenType() {
+    Matcher matcher = Constants.AUTH_TOKEN_PATTERN.matcher(AUTH_TOKEN_TYPE);
+    return matcher.matches() ? matcher.group(4) : null;
+  }
+
+  @Benchmark
+  public byte[] encodeTicketGrantingTicket() {
+    account.setTicketGrantingTicket(serializedTgt);
+    return serializedTgt;
+  }
+
+  @Benchmark
+  public byte[] decodeTicketGrantingTicket() {
+    return account.getTicketGrantingTicket();
+  }
+}
@@ -23,7 +23,6 @@ import static com.google.android.apps.work.kerberosauthenticator.TestHelper.TGT;
 import static com.google.android.apps.work.kerberosauthenticator.TestHelper.TGT_B64;
 import static com.google.android.apps.work.kerberosauthenticator.TestHelper.USERNAME;
 import static com.google.common.truth.Truth.assertThat;
-import static org.junit.Assert.fail;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.accounts.Account;
@@ -31,8 +30,10 @@ import android.accounts.AccountManager;
 import android.app.Activity;
 import android.content.ContextWrapper;
 import android.content.SharedPreferences;
+import android.os.Looper;
 import androidx.test.core.app.ApplicationProvider;
 import com.google.android.apps.work.kerberosauthenticator.BaseAuthenticatorActivity.ServiceTicketInfo;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
 import java.util.Base64;
 import org.junit.After;
 import org.junit.Before;
@@ -77,13 +78,13 @@ public final class KerberosAccountTest {
 
   @Test
   public void testGetAccount_nullByDefault() {
-    assertThat(KerberosAccount.getAccount(context)).isNull();
+    assertThat(KerberosAccount.getAccount(context, USERNAME)).isNull();
   }
 
   @Test
   public void testGetAccount_positive() {
     shadowOf(accountManager).addAccount(new Account(USERNAME, KERBEROS_ACCOUNT_TYPE));
-    assertThat(KerberosAccount.getAccount(context)).isNotNull();
+    assertThat(KerberosAccount.getAccount(context, USERNAME)).isNotNull();
   }
 
   @Test
@@ -102,10 +103,10 @@ public final class KerberosAccountTest {
     assertThat(info.getObtainedAtMillis()).isEqualTo(1);
 
     // Remove account
-    KerberosAccount.removeAccount(context);
+    KerberosAccount.removeAccount(context, USERNAME);
 
     // Verify all account data has been successfully removed.
-    assertThat(KerberosAccount.getAccount(context)).isNull();
+    assertThat(KerberosAccount.getAccount(context, USERNAME)).isNull();
     info =
         ServiceTicketInfo.getServiceTicketInfo(
             context.getSharedPreferences(Constants.PREFERENCE_NAME, Activity.MODE_PRIVATE));
@@ -123,19 +124,65 @@ public final class KerberosAccountTest {
     accountManager.setUserData(account, "domain_controller", AD_DC);
     accountManager.setUserData(account, "ticket_granting_ticket", TGT_B64);
 
-    KerberosAccount krbAccount = KerberosAccount.getAccount(context);
+    KerberosAccount krbAccount = KerberosAccount.getAccount(context, USERNAME);
     assertKerberosAccount(krbAccount);
   }
 
+  @Test
+  public void testGetAccount_readOnce() {
+    Account account = new Account(USERNAME, KERBEROS_ACCOUNT_TYPE);
+    shadowOf(accountManager).addAccount(account);
+    accountManager.setPassword(account, PASSWORD);
+    accountManager.setUserData(account, "ad_domain", AD_DOMAIN);
+    accountManager.setUserData(account, "domain_controller", AD_DC);
+    accountManager.setUserData(account, "ticket_granting_ticket", TGT_B64);
+    assertKerberosAccount(KerberosAccount.getAccount(context, USERNAME));
+
+    // Only this class writes the account, so it is not read from the AccountManager again.
+    accountManager.setUserData(account, "ad_domain", "other.example.com");
+    assertKerberosAccount(KerberosAccount.getAccount(context, USERNAME));
+  }
+
+  @Test
+  public void testGetAccount_noticesAccountRemovedElsewhere() {
+    Account account = new Account(USERNAME, KERBEROS_ACCOUNT_TYPE);
+    shadowOf(accountManager).addAccount(account);
+    assertThat(KerberosAccount.getAccount(context, USERNAME)).isNotNull();
+
+    // E.g. removed by the user from the settings.
+    accountManager.removeAccountExplicitly(account);
+    shadowOf(Looper.getMainLooper()).idle();
+
+    assertThat(KerberosAccount.getAccount(context, USERNAME)).isNull();
+  }
+
+  @Test
+  public void testSaveAccount_keptWhenAccountsChangeElsewhere() throws Exception {
+    TestHelper.createKerberosAccount().save(context);
+    KerberosAccount account = KerberosAccount.getAccount(context, USERNAME);
+    account.setTicketGrantingTicket(new byte[] {1});
+    account.save(context);
+
+    // E.g. added by the user from the settings, while the TGT may still be being written.
+    accountManager.addAccountExplicitly(
+        new Account("anotherUser", KERBEROS_ACCOUNT_TYPE), null /* password */, null);
+    shadowOf(Looper.getMainLooper()).idle();
+
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getTicketGrantingTicket())
+        .isEqualTo(new byte[] {1});
+    KerberosAccount.flushWrites();
+    assertThat(KerberosAccount.getAccount(context, "anotherUser")).isNotNull();
+  }
+
   @Test
   public void testSaveAccount_noPreviousAccount() {
     TestHelper.createKerberosAccount().save(context);
-    KerberosAccount loadedAccount = KerberosAccount.getAccount(context);
+    KerberosAccount loadedAccount = KerberosAccount.getAccount(context, USERNAME);
     assertKerberosAccount(loadedAccount);
   }
 
   @Test
-  public void testSaveAccount_PreviousAccountSameName() {
+  public void testSaveAccount_PreviousAccountSameName() throws Exception {
     Account account = new Account(USERNAME, KERBEROS_ACCOUNT_TYPE);
     shadowOf(accountManager).addAccount(account);
     accountManager.setPassword(account, PASSWORD);
@@ -153,6 +200,9 @@ public final class KerberosAccountTest {
     modifiedAccount.setTicketGrantingTicket(anotherTgt);
     modifiedAccount.save(context);
 
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getDomainController())
+        .isEqualTo(anotherDc);
+    KerberosAccount.flushWrites();
     Account readAccount = accountManager.getAccountsByType(KERBEROS_ACCOUNT_TYPE)[0];
     assertThat(readAccount).isNotNull();
     assertThat(readAccount.name).isEqualTo(USERNAME);
@@ -163,7 +213,38 @@ public final class KerberosAccountTest {
   }
 
   @Test
-  public void testSaveAccount_PreviousAccountDifferentName() {
+  public void testSaveAccount_unchangedAccountIsNotWritten() throws Exception {
+    TestHelper.createKerberosAccount().save(context);
+    Account account = accountManager.getAccountsByType(KERBEROS_ACCOUNT_TYPE)[0];
+    // Only this class writes the account, so this goes unnoticed and is not overwritten.
+    accountManager.setUserData(account, "ad_domain", "other.example.com");
+
+    KerberosAccount.getAccount(context, USERNAME).save(context);
+    KerberosAccount.flushWrites();
+
+    assertThat(accountManager.getUserData(account, "ad_domain")).isEqualTo("other.example.com");
+  }
+
+  @Test
+  public void testSaveAccount_writesOnlyLatestChanges() throws Exception {
+    TestHelper.createKerberosAccount().save(context);
+    Account account = accountManager.getAccountsByType(KERBEROS_ACCOUNT_TYPE)[0];
+
+    KerberosAccount first = KerberosAccount.getAccount(context, USERNAME);
+    first.setTicketGrantingTicket(new byte[] {1});
+    first.save(context);
+    KerberosAccount second = KerberosAccount.getAccount(context, USERNAME);
+    second.setTicketGrantingTicket(new byte[] {2});
+    second.save(context);
+    KerberosAccount.flushWrites();
+
+    assertThat(accountManager.getUserData(account, "ticket_granting_ticket"))
+        .isEqualTo(Base64.getEncoder().encodeToString(new byte[] {2}));
+    assertThat(accountManager.getUserData(account, "ad_domain")).isEqualTo(AD_DOMAIN);
+  }
+
+  @Test
+  public void testSaveAccount_PreviousAccountDifferentName() throws Exception {
     Account account = new Account("anotherUser", KERBEROS_ACCOUNT_TYPE);
     shadowOf(accountManager).addAccount(account);
     accountManager.setPassword(account, "dummyPassword");
@@ -171,21 +252,100 @@ public final class KerberosAccountTest {
     accountManager.setUserData(account, "domain_controller", "dummyAd");
     accountManager.setUserData(account, "ticket_granting_ticket", "");
 
-    KerberosAccount krbAccount = TestHelper.createKerberosAccount();
-    // This call will throw expected exception IllegalStateException
-    try {
-      krbAccount.save(context);
-      fail("Overwriting account should throw IllegalStateException.");
-    } catch (IllegalStateException expected) {
-    }
-    // Exception was expected, continue with checking that there were no changes
-    Account readAccount = accountManager.getAccountsByType(KERBEROS_ACCOUNT_TYPE)[0];
-    assertThat(readAccount).isNotNull();
-    assertThat(readAccount.name).isEqualTo("anotherUser");
-    assertThat(accountManager.getPassword(readAccount)).isEqualTo("dummyPassword");
-    assertThat(accountManager.getUserData(readAccount, "ad_domain")).isEqualTo("dummyDomain");
-    assertThat(accountManager.getUserData(readAccount, "domain_controller")).isEqualTo("dummyAd");
-    assertThat(accountManager.getUserData(readAccount, "ticket_granting_ticket")).isEmpty();
-    return;
+    TestHelper.createKerberosAccount().save(context);
+    KerberosAccount.flushWrites();
+
+    // Both accounts are kept, and the other account is left untouched.
+    assertThat(accountManager.getAccountsByType(KERBEROS_ACCOUNT_TYPE)).hasLength(2);
+    assertKerberosAccount(KerberosAccount.getAccount(context, USERNAME));
+    KerberosAccount otherAccount = KerberosAccount.getAccount(context, "anotherUser");
+    assertThat(otherAccount.getPassword()).isEqualTo("dummyPassword");
+    assertThat(otherAccount.getDomain()).isEqualTo("dummyDomain");
+    assertThat(otherAccount.getDomainController()).isEqualTo("dummyAd");
+    assertThat(accountManager.getUserData(account, "ticket_granting_ticket")).isEmpty();
+  }
+
+  @Test
+  public void testSeveralAccountsHoldTheirOwnTgt() {
+    KerberosAccount account = TestHelper.createKerberosAccount();
+    account.setTicketGrantingTicket(Base64.getDecoder().decode(TestHelper.B64_SUBJECT));
+    account.save(context);
+    KerberosAccount otherAccount =
+        new KerberosAccount("otherUser", PASSWORD, "other.example.com", "dc.other.example.com");
+    otherAccount.setTicketGrantingTicket(new byte[] {1});
+    otherAccount.save(context);
+
+    assertThat(KerberosAccount.getAccounts(context)).hasSize(2);
+    TicketGrantingTicket tgt =
+        KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket();
+    assertThat(tgt).isNotNull();
+    assertThat(KerberosAccount.getAccount(context, "otherUser").getTicketGrantingTicket())
+        .isEqualTo(new byte[] {1});
+    // Decoding the other account's TGT does not evict this one's.
+    assertThat(KerberosAccount.getAccount(context, "otherUser").getDecodedTicketGrantingTicket())
+        .isNull();
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket())
+        .isSameAs(tgt);
+  }
+
+  @Test
+  public void testRemoveAccount_keepsOtherAccounts() {
+    TestHelper.createKerberosAccount().save(context);
+    new KerberosAccount("otherUser", PASSWORD, "other.example.com", "dc.other.example.com")
+        .save(context);
+
+    KerberosAccount.removeAccount(context, "otherUser");
+
+    assertThat(KerberosAccount.getAccount(context, "otherUser")).isNull();
+    assertKerberosAccount(KerberosAccount.getAccount(context, USERNAME));
+    assertThat(accountManager.getAccountsByType(KERBEROS_ACCOUNT_TYPE)).hasLength(1);
+  }
+
+  @Test
+  public void testDecodedTgtIsReusedUntilChanged() {
+    KerberosAccount account = TestHelper.createKerberosAccount();
+    account.setTicketGrantingTicket(Base64.getDecoder().decode(TestHelper.B64_SUBJECT));
+    account.save(context);
+
+    TicketGrantingTicket tgt =
+        KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket();
+    assertThat(tgt).isNotNull();
+    // Nothing changed the stored TGT, so it is not decoded again.
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket())
+        .isSameAs(tgt);
+
+    KerberosAccount updatedAccount = KerberosAccount.getAccount(context, USERNAME);
+    updatedAccount.setTicketGrantingTicket(TGT);
+    updatedAccount.save(context);
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket())
+        .isNull();
+  }
+
+  @Test
+  public void testDecodedTgtIsSetWithTgt() {
+    KerberosAccount account = TestHelper.createKerberosAccount();
+    TicketGrantingTicket tgt =
+        TicketGrantingTicket.fromSerializedSubject(
+            Base64.getDecoder().decode(TestHelper.B64_SUBJECT));
+    account.setTicketGrantingTicket(tgt);
+    account.save(context);
+
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket())
+        .isSameAs(tgt);
+  }
+
+  @Test
+  public void testDecodedTgtIsDroppedWithAccount() {
+    KerberosAccount account = TestHelper.createKerberosAccount();
+    account.setTicketGrantingTicket(Base64.getDecoder().decode(TestHelper.B64_SUBJECT));
+    account.save(context);
+    TicketGrantingTicket tgt =
+        KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket();
+
+    KerberosAccount.removeAccount(context, USERNAME);
+    account.save(context);
+
+    assertThat(KerberosAccount.getAccount(context, USERNAME).getDecodedTicketGrantingTicket())
+        .isNotSameAs(tgt);
   }
 }
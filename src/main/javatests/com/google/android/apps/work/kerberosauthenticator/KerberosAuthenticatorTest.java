@@ -33,6 +33,8 @@ import android.content.Intent;
 import android.content.RestrictionsManager;
 import android.os.Bundle;
 import androidx.test.core.app.ApplicationProvider;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -190,6 +192,34 @@ public class KerberosAuthenticatorTest {
         .isEqualTo(ServiceTicketActivity.class.getName());
   }
 
+  @Test
+  public void testGetAuthTokenValidTGTInBackground() {
+    Account testAccount = new Account(TestHelper.USERNAME, Constants.KERBEROS_ACCOUNT_TYPE);
+    shadowOf(accountManager).addAccount(testAccount);
+    accountManager.setUserData(testAccount, KerberosAccount.KEY_AD_DC, TEST_AD_CONTROLLER);
+    accountManager.setUserData(testAccount, KerberosAccount.KEY_AD_DOMAIN, TEST_AD_DOMAIN);
+    accountManager.setUserData(
+        testAccount, KerberosAccount.KEY_TGT, TestHelper.B64_SUBJECT);
+
+    RestrictionsManager restrictionsManager =
+        (RestrictionsManager)
+            context.getSystemService(context.getSystemServiceName(RestrictionsManager.class));
+    Bundle restrictionsBundle = TestHelper.makeRestrictionsBundle();
+    restrictionsBundle.putString(AccountConfiguration.USERNAME_KEY, USERNAME);
+    restrictionsBundle.putBoolean(AccountConfiguration.BACKGROUND_SERVICE_TICKETS_KEY, true);
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    authenticator = new KerberosAuthenticator(context, backgroundTasks::add);
+    Bundle result =
+        authenticator.getAuthToken(
+            null, testAccount, "SPNEGO:HOSTBASED:HTTP@test-server.example.com", getTestOptions());
+
+    // No activity is launched, the response is answered once the background request is done.
+    assertThat(result).isNull();
+    assertThat(backgroundTasks).hasSize(1);
+  }
+
   @Test
   public void testGetAuthTokenAccountDetailsChange() {
     Account testAccount = new Account(TestHelper.USERNAME, Constants.KERBEROS_ACCOUNT_TYPE);
@@ -237,6 +267,70 @@ public class KerberosAuthenticatorTest {
     assertThat(response.get(AccountManager.KEY_BOOLEAN_RESULT)).isEqualTo(true);
   }
 
+  @Test
+  public void testGetAuthTokenRoutesHostToAdditionalAccount() {
+    Account testAccount = new Account(TestHelper.USERNAME, Constants.KERBEROS_ACCOUNT_TYPE);
+    shadowOf(accountManager).addAccount(testAccount);
+    accountManager.setUserData(testAccount, KerberosAccount.KEY_AD_DC, TEST_AD_CONTROLLER);
+    accountManager.setUserData(testAccount, KerberosAccount.KEY_AD_DOMAIN, TEST_AD_DOMAIN);
+    accountManager.setUserData(testAccount, KerberosAccount.KEY_TGT, TestHelper.B64_SUBJECT);
+
+    RestrictionsManager restrictionsManager =
+        (RestrictionsManager)
+            context.getSystemService(context.getSystemServiceName(RestrictionsManager.class));
+    Bundle restrictionsBundle = TestHelper.makeRestrictionsBundle();
+    restrictionsBundle.putString(AccountConfiguration.USERNAME_KEY, USERNAME);
+    restrictionsBundle.putParcelableArray(
+        AccountConfiguration.ADDITIONAL_ACCOUNTS_KEY,
+        new Bundle[] {
+          TestHelper.makeAccountBundle("other_user", "corp.example.com", "dc.corp.example.com")
+        });
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+
+    Bundle result =
+        authenticator.getAuthToken(
+            null, testAccount, "SPNEGO:HOSTBASED:HTTP@wiki.corp.example.com", getTestOptions());
+
+    // The host is in the domain of the other account, which is not logged in yet.
+    Intent resultIntent = result.getParcelable(AccountManager.KEY_INTENT);
+    assertIsAuthenticationActivity(resultIntent);
+    assertThat(resultIntent.getStringExtra(AccountManager.KEY_ACCOUNT_NAME))
+        .isEqualTo("other_user");
+    assertThat(resultIntent.getStringExtra(Constants.SERVICE_REALM))
+        .isEqualTo("CORP.EXAMPLE.COM");
+    // In a known realm, the service is named by its full host name, not just its first label.
+    assertThat(resultIntent.getStringExtra(Constants.SERVICE_NAME))
+        .isEqualTo("wiki.corp.example.com");
+  }
+
+  @Test
+  public void testHasFeaturesOnlyForPrimaryAccount() {
+    Bundle restrictionsBundle = TestHelper.makeRestrictionsBundle();
+    restrictionsBundle.putParcelableArray(
+        AccountConfiguration.ADDITIONAL_ACCOUNTS_KEY,
+        new Bundle[] {
+          TestHelper.makeAccountBundle("other_user", "corp.example.com", "dc.corp.example.com")
+        });
+    RestrictionsManager restrictionsManager =
+        (RestrictionsManager)
+            context.getSystemService(context.getSystemServiceName(RestrictionsManager.class));
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+
+    Account primaryAccount = new Account(TestHelper.TEST_USERNAME, KERBEROS_ACCOUNT_TYPE);
+    Account otherAccount = new Account("other_user", KERBEROS_ACCOUNT_TYPE);
+    // Chrome refuses to authenticate if more than one account has the feature.
+    assertThat(
+            authenticator
+                .hasFeatures(null, primaryAccount, new String[] {"SPNEGO"})
+                .getBoolean(AccountManager.KEY_BOOLEAN_RESULT))
+        .isTrue();
+    assertThat(
+            authenticator
+                .hasFeatures(null, otherAccount, new String[] {"SPNEGO"})
+                .getBoolean(AccountManager.KEY_BOOLEAN_RESULT))
+        .isFalse();
+  }
+
   private void setTestRestrictions() {
     RestrictionsManager restrictionsManager =
         (RestrictionsManager)
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.accounts.Account;
+import android.accounts.AccountAuthenticatorResponse;
+import android.accounts.AccountManager;
+import android.accounts.IAccountAuthenticatorResponse;
+import android.content.Context;
+import android.content.RestrictionsManager;
+import android.os.Bundle;
+import androidx.test.core.app.ApplicationProvider;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import com.google.android.apps.work.kerberosauthenticator.internal.kinit.UserAuthenticationRequest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.kerby.kerberos.kerb.server.SimpleKdcServer;
+import org.apache.kerby.util.NetworkUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAccountManager;
+
+/**
+ * Drives concurrent {@code getAuthToken} requests through {@link KerberosAuthenticator} against a
+ * KDC running on the loopback interface, and reports throughput, latency and the number of KDC
+ * exchanges.
+ *
+ * <p>The number of requests and how many are made at once are read from the {@code
+ * LOAD_REQUESTS} and {@code LOAD_CONCURRENCY} environment variables, e.g.
+ *
+ * <pre>
+ * bazel test //src/main/javatests:KerberosLoadTest \
+ *     --test_env=LOAD_REQUESTS=2000 --test_env=LOAD_CONCURRENCY=32 --test_output=streamed
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(
+    sdk = 26,
+    shadows = {ShadowAccountManager.class})
+public final class KerberosLoadTest {
+  private static final String DOMAIN = "example.com";
+  private static final String REALM = "EXAMPLE.COM";
+  private static final String USERNAME = "loaduser";
+  private static final String PASSWORD = "load-password";
+  // The only host name that resolves without DNS, so that the GSS layer does not have to look up
+  // the service's canonical name.
+  private static final String SERVICE = "localhost";
+  private static final String AUTH_TOKEN_TYPE = "SPNEGO:HOSTBASED:HTTP@localhost.example.com";
+  private static final int DEFAULT_REQUESTS = 200;
+  private static final int DEFAULT_CONCURRENCY = 8;
+  private static final long REQUEST_TIMEOUT_SECONDS = 30;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SimpleKdcServer kdcServer;
+  private String kdc;
+  private Context context;
+  private Account account;
+  private KerberosAuthenticator authenticator;
+
+  @Before
+  public void setUp() throws Exception {
+    int port = NetworkUtil.getServerPort();
+    kdcServer = new SimpleKdcServer();
+    kdcServer.setWorkDir(temporaryFolder.getRoot());
+    kdcServer.setKdcHost("localhost");
+    kdcServer.setKdcRealm(REALM);
+    kdcServer.setAllowTcp(true);
+    kdcServer.setAllowUdp(true);
+    kdcServer.setKdcTcpPort(port);
+    kdcServer.setKdcUdpPort(port);
+    kdcServer.init();
+    kdcServer.start();
+    kdcServer.createPrincipal(USERNAME + "@" + REALM, PASSWORD);
+    kdcServer.createPrincipal(String.format("HTTP/%s@%s", SERVICE, REALM), PASSWORD);
+    kdc = "localhost:" + port;
+
+    context = ApplicationProvider.getApplicationContext();
+    account = new Account(USERNAME, Constants.KERBEROS_ACCOUNT_TYPE);
+    AccountManager accountManager = AccountManager.get(context);
+    shadowOf(accountManager).addAccount(account);
+    accountManager.setUserData(account, KerberosAccount.KEY_AD_DOMAIN, DOMAIN);
+    accountManager.setUserData(account, KerberosAccount.KEY_AD_DC, kdc);
+    accountManager.setUserData(
+        account,
+        KerberosAccount.KEY_TGT,
+        Base64.getEncoder().encodeToString(login().asSerialized()));
+
+    Bundle restrictionsBundle = new Bundle();
+    restrictionsBundle.putString(AccountConfiguration.USERNAME_KEY, USERNAME);
+    restrictionsBundle.putString(AccountConfiguration.AD_DOMAIN_KEY, DOMAIN);
+    restrictionsBundle.putString(AccountConfiguration.AD_CONTROLLER_KEY, kdc);
+    restrictionsBundle.putBoolean(AccountConfiguration.BACKGROUND_SERVICE_TICKETS_KEY, true);
+    RestrictionsManager restrictionsManager =
+        (RestrictionsManager)
+            context.getSystemService(context.getSystemServiceName(RestrictionsManager.class));
+    shadowOf(restrictionsManager).setApplicationRestrictions(restrictionsBundle);
+
+    authenticator = new KerberosAuthenticator(context);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    shadowOf(AccountManager.get(context)).removeAllAccounts();
+    kdcServer.stop();
+  }
+
+  @Test
+  public void testConcurrentAuthTokenRequests() throws Exception {
+    int requests = getEnv("LOAD_REQUESTS", DEFAULT_REQUESTS);
+    int concurrency = getEnv("LOAD_CONCURRENCY", DEFAULT_CONCURRENCY);
+    Bundle options = new Bundle();
+    options.putString(AccountManager.KEY_ANDROID_PACKAGE_NAME, Constants.CHROME_PACKAGE_NAME);
+    KerberosMetrics metrics = KerberosMetrics.getInstance();
+    long kdcRequestsBefore = metrics.getKdcRequestCount(kdc);
+
+    ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+    List<Future<Long>> latencies = new ArrayList<>(requests);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      latencies.add(clients.submit(() -> requestAuthToken(options)));
+    }
+    List<Long> latencyMillis = new ArrayList<>(requests);
+    int rejected = 0;
+    for (Future<Long> latency : latencies) {
+      Long millis = latency.get();
+      if (millis == null) {
+        rejected++;
+      } else {
+        latencyMillis.add(millis);
+      }
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    clients.shutdown();
+    long kdcRequests = metrics.getKdcRequestCount(kdc) - kdcRequestsBefore;
+
+    Collections.sort(latencyMillis);
+    System.out.println(
+        String.format(
+            "%d requests, %d at a time: %.1f requests/s, p50 %d ms, p99 %d ms, %d rejected, "
+                + "%d KDC requests",
+            requests,
+            concurrency,
+            requests / (elapsedNanos / 1e9),
+            percentile(latencyMillis, 50),
+            percentile(latencyMillis, 99),
+            rejected,
+            kdcRequests));
+    assertThat(latencyMillis).isNotEmpty();
+    // The service ticket is cached after the first request, and concurrent requests for it share
+    // a single exchange with the KDC.
+    assertThat(kdcRequests).isEqualTo(1L);
+  }
+
+  // Logs the user in, as the LoginActivity would.
+  private TicketGrantingTicket login() {
+    UserAuthenticationRequest request =
+        new UserAuthenticationRequest(
+            USERNAME,
+            PASSWORD,
+            new KerberosContext(REALM, Collections.singletonList(kdc), null, false));
+    TicketRequestResult result = request.execute();
+    assertThat(result.successful()).isTrue();
+    return new TicketGrantingTicket(request.getSubject());
+  }
+
+  /**
+   * Makes one getAuthToken request and waits for its result.
+   *
+   * @return how long the request took, or null if it was rejected as the authenticator was busy.
+   */
+  private Long requestAuthToken(Bundle options) throws Exception {
+    CompletableFuture<Bundle> result = new CompletableFuture<>();
+    AccountAuthenticatorResponse response =
+        new AccountAuthenticatorResponse(
+            new IAccountAuthenticatorResponse.Stub() {
+              @Override
+              public void onResult(Bundle bundle) {
+                result.complete(bundle);
+              }
+
+              @Override
+              public void onRequestContinued() {}
+
+              @Override
+              public void onError(int errorCode, String errorMessage) {
+                result.completeExceptionally(
+                    new AssertionError(String.format("Error %d: %s", errorCode, errorMessage)));
+              }
+            });
+    long startNanos = System.nanoTime();
+    Bundle immediateResult =
+        authenticator.getAuthToken(response, account, AUTH_TOKEN_TYPE, options);
+    if (immediateResult != null) {
+      result.complete(immediateResult);
+    }
+    Bundle bundle = result.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    if (bundle.getInt(AccountManager.KEY_ERROR_CODE)
+        == AccountManager.ERROR_CODE_REMOTE_EXCEPTION) {
+      return null;
+    }
+    assertThat(bundle.getString(AccountManager.KEY_AUTHTOKEN)).isNotNull();
+    return latencyMillis;
+  }
+
+  private static long percentile(List<Long> sortedValues, int percentile) {
+    if (sortedValues.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+    return sortedValues.get(Math.max(0, index));
+  }
+
+  private static int getEnv(String name, int defaultValue) {
+    String value = System.getenv(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+}
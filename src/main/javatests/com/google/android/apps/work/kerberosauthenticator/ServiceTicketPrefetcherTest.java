@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class ServiceTicketPrefetcherTest {
+  private final KerberosAccount account = TestHelper.createKerberosAccount();
+  private final TicketGrantingTicket tgt =
+      TicketGrantingTicket.fromSerializedSubject(
+          Base64.getDecoder().decode(TestHelper.B64_SUBJECT));
+  private final List<Runnable> requests = new ArrayList<>();
+
+  @Test
+  public void testNothingToPrefetch() {
+    assertThat(
+            ServiceTicketPrefetcher.prefetch(
+                Collections.emptyList(), account, tgt, host -> null, false, requests::add))
+        .isEqualTo(0);
+    assertThat(requests).isEmpty();
+  }
+
+  @Test
+  public void testPrefetchesEachService() {
+    int started =
+        ServiceTicketPrefetcher.prefetch(
+            Arrays.asList("portal.example.com", "wiki.example.com"),
+            account,
+            tgt,
+            host -> null,
+            false,
+            requests::add);
+
+    assertThat(started).isEqualTo(2);
+    assertThat(requests).hasSize(2);
+  }
+
+  @Test
+  public void testSkipsDuplicateAndInvalidHosts() {
+    int started =
+        ServiceTicketPrefetcher.prefetch(
+            Arrays.asList("portal.example.com", "portal.example.com", "not a host"),
+            account,
+            tgt,
+            host -> null,
+            false,
+            requests::add);
+
+    assertThat(started).isEqualTo(1);
+  }
+
+  @Test
+  public void testRejectedRequestsAreNotCounted() {
+    int started =
+        ServiceTicketPrefetcher.prefetch(
+            Arrays.asList("portal.example.com"),
+            account,
+            tgt,
+            host -> null,
+            false,
+            request -> {
+              throw new RejectedExecutionException();
+            });
+
+    assertThat(started).isEqualTo(0);
+  }
+}
@@ -91,6 +91,15 @@ public class TestHelper {
     return restrictionsBundle;
   }
 
+  /** Returns the managed configuration of an additional account. */
+  static Bundle makeAccountBundle(String username, String adDomain, String adController) {
+    Bundle accountBundle = new Bundle();
+    accountBundle.putString(AccountConfiguration.USERNAME_KEY, username);
+    accountBundle.putString(AccountConfiguration.AD_DOMAIN_KEY, adDomain);
+    accountBundle.putString(AccountConfiguration.AD_CONTROLLER_KEY, adController);
+    return accountBundle;
+  }
+
   static KerberosAccount createKerberosAccount() {
     KerberosAccount account = new KerberosAccount(USERNAME, PASSWORD, AD_DOMAIN, AD_DC);
     account.setTicketGrantingTicket(TGT);
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Runs the JMH benchmarks of the ticket hot paths, and fails if any got slower than a baseline.
+ *
+ * <p>The benchmarks run in the test's process rather than in forked JVMs, since the code under
+ * test needs the Robolectric environment. Scores, in microseconds per operation, are written to
+ * {@code benchmarks.properties} in the test's outputs. To record a baseline, copy that file from
+ * a run on the reference machine; to check against it, pass its path:
+ *
+ * <pre>
+ * bazel test //src/main/javatests:TicketBenchmarks \
+ *     --test_env=BENCHMARK_BASELINE=/path/to/benchmarks.properties
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class TicketBenchmarks {
+  private static final String BASELINE_ENV = "BENCHMARK_BASELINE";
+  private static final String OUTPUT_DIR_ENV = "TEST_UNDECLARED_OUTPUTS_DIR";
+  private static final String RESULTS_FILE = "benchmarks.properties";
+  // How much slower than the baseline a benchmark may get before it counts as a regression.
+  private static final double REGRESSION_TOLERANCE = 0.2;
+
+  @Test
+  public void runBenchmarks() throws Exception {
+    Options options =
+        new OptionsBuilder()
+            .include("com\\.google\\.android\\.apps\\.work\\.kerberosauthenticator\\..*Benchmark")
+            .forks(0)
+            .warmupIterations(3)
+            .warmupTime(TimeValue.seconds(1))
+            .measurementIterations(5)
+            .measurementTime(TimeValue.seconds(1))
+            .build();
+    Collection<RunResult> results = new Runner(options).run();
+
+    Properties scores = new Properties();
+    for (RunResult result : results) {
+      scores.setProperty(
+          result.getParams().getBenchmark(),
+          Double.toString(result.getPrimaryResult().getScore()));
+    }
+    writeScores(scores);
+
+    String baselinePath = System.getenv(BASELINE_ENV);
+    if (baselinePath == null) {
+      return;
+    }
+    Properties baseline = readScores(new File(baselinePath));
+    List<String> regressions = new ArrayList<>();
+    for (String benchmark : scores.stringPropertyNames()) {
+      String baselineScore = baseline.getProperty(benchmark);
+      if (baselineScore == null) {
+        continue;
+      }
+      double score = Double.parseDouble(scores.getProperty(benchmark));
+      if (score > Double.parseDouble(baselineScore) * (1 + REGRESSION_TOLERANCE)) {
+        regressions.add(
+            String.format("%s: %.3f us/op, baseline %s us/op", benchmark, score, baselineScore));
+      }
+    }
+    assertWithMessage("Benchmarks slower than the baseline").that(regressions).isEmpty();
+  }
+
+  private static void writeScores(Properties scores) throws IOException {
+    String outputDir = System.getenv(OUTPUT_DIR_ENV);
+    File resultsFile =
+        new File(outputDir == null ? System.getProperty("java.io.tmpdir") : outputDir,
+            RESULTS_FILE);
+    try (OutputStream out = new FileOutputStream(resultsFile)) {
+      scores.store(out, "JMH scores, in microseconds per operation");
+    }
+  }
+
+  private static Properties readScores(File file) throws IOException {
+    Properties scores = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      scores.load(in);
+    }
+    return scores;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class TicketRenewalJobServiceTest {
+  private static final long NOW = 1_500_000_000_000L;
+
+  @Test
+  public void testRenewalDelayLongLivedTicket() {
+    Date issued = new Date(NOW);
+    Date expires = new Date(NOW + TimeUnit.HOURS.toMillis(10));
+
+    assertThat(TicketRenewalJobService.getRenewalDelayMillis(issued, expires, NOW))
+        .isEqualTo(
+            TimeUnit.HOURS.toMillis(10) - TicketRenewalJobService.RENEWAL_MARGIN_MILLIS);
+  }
+
+  @Test
+  public void testRenewalDelayShortLivedTicket() {
+    Date issued = new Date(NOW);
+    Date expires = new Date(NOW + TimeUnit.MINUTES.toMillis(20));
+
+    assertThat(TicketRenewalJobService.getRenewalDelayMillis(issued, expires, NOW))
+        .isEqualTo(TimeUnit.MINUTES.toMillis(10));
+  }
+
+  @Test
+  public void testRenewalDelayUnknownIssuance() {
+    Date expires = new Date(NOW + TimeUnit.HOURS.toMillis(1));
+
+    assertThat(TicketRenewalJobService.getRenewalDelayMillis(null, expires, NOW))
+        .isEqualTo(
+            TimeUnit.HOURS.toMillis(1) - TicketRenewalJobService.RENEWAL_MARGIN_MILLIS);
+  }
+
+  @Test
+  public void testRenewalDelayAlreadyDue() {
+    Date issued = new Date(NOW - TimeUnit.HOURS.toMillis(10));
+    Date expires = new Date(NOW + TimeUnit.MINUTES.toMillis(5));
+
+    assertThat(TicketRenewalJobService.getRenewalDelayMillis(issued, expires, NOW)).isEqualTo(0);
+  }
+
+  @Test
+  public void testRenewalJobPerAccount() {
+    int jobId = TicketRenewalJobService.getRenewalJobId("user");
+
+    assertThat(TicketRenewalJobService.getRenewalJobId("user")).isEqualTo(jobId);
+    assertThat(TicketRenewalJobService.getRenewalJobId("other_user")).isNotEqualTo(jobId);
+    // Job 1 renews every account.
+    assertThat(jobId).isGreaterThan(1);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class DomainRealmMapTest {
+  @Test
+  public void testDomainEntryMatchesHostsInDomain() {
+    DomainRealmMap map = DomainRealmMap.parse(".example.com = EXAMPLE.COM");
+
+    assertThat(map.getRealm("www.example.com")).isEqualTo("EXAMPLE.COM");
+    assertThat(map.getRealm("a.b.example.com")).isEqualTo("EXAMPLE.COM");
+    assertThat(map.getRealm("example.com")).isNull();
+    assertThat(map.getRealm("www.otherexample.com")).isNull();
+    assertThat(map.getRealm("www.example.org")).isNull();
+  }
+
+  @Test
+  public void testHostEntryMatchesHostOnly() {
+    DomainRealmMap map = DomainRealmMap.parse("example.com = EXAMPLE.COM");
+
+    assertThat(map.getRealm("example.com")).isEqualTo("EXAMPLE.COM");
+    assertThat(map.getRealm("www.example.com")).isNull();
+  }
+
+  @Test
+  public void testMostSpecificEntryWins() {
+    DomainRealmMap map =
+        DomainRealmMap.parse(
+            ".example.com = EXAMPLE.COM\n"
+                + ".eu.example.com = EU.EXAMPLE.COM\n"
+                + "legacy.eu.example.com = LEGACY.EXAMPLE.COM");
+
+    assertThat(map.getRealm("www.example.com")).isEqualTo("EXAMPLE.COM");
+    assertThat(map.getRealm("www.eu.example.com")).isEqualTo("EU.EXAMPLE.COM");
+    assertThat(map.getRealm("legacy.eu.example.com")).isEqualTo("LEGACY.EXAMPLE.COM");
+    // The host is not in the domains it has no entry for, but still in the enclosing one.
+    assertThat(map.getRealm("eu.example.com")).isEqualTo("EXAMPLE.COM");
+    assertThat(map.getRealm("www.legacy.eu.example.com")).isEqualTo("EU.EXAMPLE.COM");
+  }
+
+  @Test
+  public void testLookupIgnoresCaseAndTrailingDot() {
+    DomainRealmMap map = DomainRealmMap.parse(".Example.COM = EXAMPLE.COM");
+
+    assertThat(map.getRealm("WWW.example.com.")).isEqualTo("EXAMPLE.COM");
+  }
+
+  @Test
+  public void testFirstEntryWins() {
+    DomainRealmMap map =
+        DomainRealmMap.parse(".example.com = FIRST.COM, .example.com = SECOND.COM");
+    map.putIfAbsent(".example.com", "THIRD.COM");
+
+    assertThat(map.getRealm("www.example.com")).isEqualTo("FIRST.COM");
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testInvalidEntriesAreSkipped() {
+    DomainRealmMap map =
+        DomainRealmMap.parse("no mapping, = EXAMPLE.COM, . = EXAMPLE.COM, a = b = c, x.com =,");
+
+    assertThat(map.size()).isEqualTo(0);
+    assertThat(DomainRealmMap.parse(null).size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Date;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import sun.security.krb5.EncryptedData;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.internal.KeyUsage;
+import sun.security.krb5.internal.Ticket;
+
+/**
+ * Stands in for a KDC inside the test process: issues tickets the way a KDC would, without any
+ * network exchange.
+ *
+ * <p>The encrypted part of each ticket is sealed with a key only this class knows, as it would
+ * be with the service's key, so the tickets are only good for building requests: nothing can
+ * verify them.
+ */
+public final class FakeKdc {
+  private static final int AES128_CTS_HMAC_SHA1_96 = EncryptedData.ETYPE_AES128_CTS_HMAC_SHA1_96;
+  private static final int INITIAL_TICKET_FLAG = 9;
+
+  private final String realm;
+  private final SecureRandom random = new SecureRandom();
+  private final EncryptionKey serviceKey;
+
+  public FakeKdc(String realm) {
+    this.realm = realm;
+    this.serviceKey = new EncryptionKey(randomKey(), AES128_CTS_HMAC_SHA1_96, null);
+  }
+
+  /** Returns a subject holding a ticket-granting-ticket for the user, as a login would. */
+  public Subject login(String username, long lifetimeMillis) throws KrbException, IOException {
+    KerberosPrincipal client = new KerberosPrincipal(username + "@" + realm);
+    KerberosTicket tgt =
+        issueTicket(
+            client,
+            new KerberosPrincipal(String.format("krbtgt/%s@%s", realm, realm)),
+            lifetimeMillis,
+            true /* initial */);
+    return new Subject(
+        false,
+        Collections.singleton(client),
+        Collections.emptySet(),
+        Collections.singleton(tgt));
+  }
+
+  /** Returns a ticket to the HTTP service on the host, as a TGS exchange would. */
+  public KerberosTicket issueServiceTicket(KerberosPrincipal client, String host,
+      long lifetimeMillis) throws KrbException, IOException {
+    return issueTicket(
+        client,
+        new KerberosPrincipal(String.format("HTTP/%s@%s", host, realm)),
+        lifetimeMillis,
+        false /* initial */);
+  }
+
+  private KerberosTicket issueTicket(KerberosPrincipal client, KerberosPrincipal server,
+      long lifetimeMillis, boolean initial) throws KrbException, IOException {
+    // Only the service could decrypt the ticket, so what it holds does not matter here.
+    EncryptedData encryptedPart =
+        new EncryptedData(serviceKey, new byte[] {0}, KeyUsage.KU_TICKET);
+    Ticket ticket =
+        new Ticket(
+            new PrincipalName(server.getName(), PrincipalName.KRB_NT_SRV_INST), encryptedPart);
+    boolean[] flags = new boolean[32];
+    flags[INITIAL_TICKET_FLAG] = initial;
+    long now = System.currentTimeMillis();
+    return new KerberosTicket(
+        ticket.asn1Encode(),
+        client,
+        server,
+        randomKey(),
+        AES128_CTS_HMAC_SHA1_96,
+        flags,
+        new Date(now),
+        new Date(now),
+        new Date(now + lifetimeMillis),
+        null /* renewTill */,
+        null /* clientAddresses */);
+  }
+
+  private byte[] randomKey() {
+    byte[] key = new byte[16];
+    random.nextBytes(key);
+    return key;
+  }
+}
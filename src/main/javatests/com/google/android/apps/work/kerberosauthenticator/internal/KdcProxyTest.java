@@ -0,0 +1,356 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class KdcProxyTest {
+  private static final String REALM = "EXAMPLE.COM";
+
+  private final List<FakeTcpKdc> kdcs = new ArrayList<>();
+  private KerberosMetrics metrics;
+  private KdcProxy proxy;
+
+  @Before
+  public void setUp() {
+    metrics = new KerberosMetrics();
+    proxy = makeProxy(2000 /* timeoutMillis */, client -> true);
+  }
+
+  @After
+  public void tearDown() {
+    proxy.close();
+    for (FakeTcpKdc kdc : kdcs) {
+      kdc.close();
+    }
+  }
+
+  @Test
+  public void testRelaysRequestsThroughListener() throws Exception {
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 1);
+    InetSocketAddress listener = proxy.serve(REALM, Collections.singletonList(kdc.getName()));
+
+    assertThat(listener.getAddress().isLoopbackAddress()).isTrue();
+    try (Socket client = new Socket(listener.getAddress(), listener.getPort())) {
+      KdcProxy.writeMessage(client.getOutputStream(), message("first"));
+      assertThat(KdcProxy.readMessage(client.getInputStream())).isEqualTo(message("reply first"));
+      KdcProxy.writeMessage(client.getOutputStream(), message("second"));
+      assertThat(KdcProxy.readMessage(client.getInputStream()))
+          .isEqualTo(message("reply second"));
+    }
+    assertThat(metrics.getKdcRequestCount(kdc.getName())).isEqualTo(2L);
+  }
+
+  @Test
+  public void testRefusesConnectionsFromOtherApps() throws Exception {
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 1);
+    proxy.close();
+    // Only the proxy's own connection, made to check the filter, is accepted.
+    AtomicInteger checkedClients = new AtomicInteger();
+    proxy = makeProxy(2000 /* timeoutMillis */, client -> checkedClients.getAndIncrement() == 0);
+    InetSocketAddress listener = proxy.serve(REALM, Collections.singletonList(kdc.getName()));
+
+    try (Socket client = new Socket(listener.getAddress(), listener.getPort())) {
+      KdcProxy.writeMessage(client.getOutputStream(), message("request"));
+      assertThat(KdcProxy.readMessage(client.getInputStream())).isNull();
+    } catch (IOException e) {
+      // The connection was reset rather than closed.
+    }
+    assertThat(kdc.connectionCount.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testNotServedWhenClientsCannotBeIdentified() throws Exception {
+    proxy.close();
+    // As when the platform does not tell which app owns a connection.
+    proxy = makeProxy(2000 /* timeoutMillis */, client -> false);
+
+    assertThat(proxy.canIdentifyClients()).isFalse();
+    try {
+      proxy.serve(REALM, Collections.singletonList("127.0.0.1:88"));
+      throw new AssertionError("The proxy was started");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testFindConnectionOwner() throws Exception {
+    String table =
+        "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  "
+            + "timeout inode\n"
+            + "   0: 0100007F:1F90 0100007F:C350 01 00000000:00000000 00:00000000 00000000  "
+            + "10057        0 4242 1 0000000000000000 20 4 30 10 -1\n"
+            + "   1: 0100007F:C350 0100007F:1F90 01 00000000:00000000 00:00000000 00000000  "
+            + "10123        0 4343 1 0000000000000000 20 4 30 10 -1\n";
+
+    assertThat(KdcProxy.findConnectionOwner(reader(table), 0xC350, 0x1F90)).isEqualTo(10123);
+    assertThat(KdcProxy.findConnectionOwner(reader(table), 0x1F90, 0xC350)).isEqualTo(10057);
+    assertThat(KdcProxy.findConnectionOwner(reader(table), 0xC351, 0x1F90)).isNull();
+  }
+
+  @Test
+  public void testKeepsConnectionOpen() throws Exception {
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 1);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(proxy.exchange(kdc.getNames(), message("request " + i)))
+          .isEqualTo(message("reply request " + i));
+    }
+    assertThat(kdc.connectionCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSendsConcurrentRequestsOnSeparateConnections() throws Exception {
+    // The KDC only answers once it read all three requests, last one first.
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 3);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<byte[]>> replies = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        byte[] request = message("request " + i);
+        replies.add(executor.submit(() -> proxy.exchange(kdc.getNames(), request)));
+      }
+
+      for (int i = 0; i < 3; i++) {
+        assertThat(new String(replies.get(i).get(5, TimeUnit.SECONDS), StandardCharsets.UTF_8))
+            .isEqualTo("reply request " + i);
+      }
+      assertThat(kdc.connectionCount.get()).isEqualTo(3);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFallsBackWhenKdcClosesConnection() throws Exception {
+    FakeTcpKdc kdc = startKdc(1 /* reply per connection */, 1);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(proxy.exchange(kdc.getNames(), message("request " + i)))
+          .isEqualTo(message("reply request " + i));
+    }
+    assertThat(kdc.connectionCount.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testClosesIdleConnection() throws Exception {
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 1);
+    proxy.exchange(kdc.getNames(), message("request"));
+
+    // The idle timeout is 200 milliseconds.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (kdc.closedCount.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(kdc.closedCount.get()).isEqualTo(1);
+
+    assertThat(proxy.exchange(kdc.getNames(), message("request")))
+        .isEqualTo(message("reply request"));
+    assertThat(kdc.connectionCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReconnectsAfterTimeout() throws Exception {
+    proxy.close();
+    proxy = makeProxy(200 /* timeoutMillis */, client -> true);
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 1);
+    try {
+      proxy.exchange(kdc.getNames(), message("unanswered"));
+      throw new AssertionError("The request was answered");
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+
+    // The connection of the request that timed out was closed, so that the next request does
+    // not get its reply.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (kdc.closedCount.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(kdc.closedCount.get()).isEqualTo(1);
+    assertThat(proxy.exchange(kdc.getNames(), message("a"))).isEqualTo(message("reply a"));
+    assertThat(kdc.connectionCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFailsOverToNextKdc() throws Exception {
+    String unreachableKdc;
+    try (ServerSocket closed = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+      unreachableKdc = "127.0.0.1:" + closed.getLocalPort();
+    }
+    FakeTcpKdc kdc = startKdc(0 /* keeps connections */, 1);
+
+    assertThat(proxy.exchange(Arrays.asList(unreachableKdc, kdc.getName()), message("request")))
+        .isEqualTo(message("reply request"));
+    assertThat(metrics.getKdcRequestCount(unreachableKdc)).isEqualTo(1L);
+    assertThat(metrics.getKdcRequestCount(kdc.getName())).isEqualTo(1L);
+  }
+
+  @Test(expected = IOException.class)
+  public void testFailsWhenNoKdcAnswers() throws Exception {
+    String unreachableKdc;
+    try (ServerSocket closed = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+      unreachableKdc = "127.0.0.1:" + closed.getLocalPort();
+    }
+    proxy.exchange(Collections.singletonList(unreachableKdc), message("request"));
+  }
+
+  private KdcProxy makeProxy(int timeoutMillis, Predicate<Socket> clientFilter) {
+    return new KdcProxy(
+        new KdcSelector(() -> 0L, 0 /* no racing */), metrics, timeoutMillis, 200, clientFilter);
+  }
+
+  private static BufferedReader reader(String text) {
+    return new BufferedReader(new StringReader(text));
+  }
+
+  private FakeTcpKdc startKdc(int repliesPerConnection, int batchSize) throws IOException {
+    FakeTcpKdc kdc = new FakeTcpKdc(repliesPerConnection, batchSize);
+    kdcs.add(kdc);
+    return kdc;
+  }
+
+  private static byte[] message(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A KDC on the loopback interface that answers each length-prefixed request with "reply "
+   * followed by the request. Requests starting with "unanswered" are read but not answered.
+   */
+  private static final class FakeTcpKdc {
+    private final ServerSocket serverSocket;
+    // How many requests it answers before closing a connection, or 0 to keep it open.
+    private final int repliesPerConnection;
+    // How many requests, over all connections, it reads before answering them, the last one
+    // first.
+    private final int batchSize;
+    // The requests read and not answered yet, with the connection each came in on.
+    private final List<Map.Entry<OutputStream, byte[]>> batch = new ArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    // How many connections the client closed.
+    private final AtomicInteger closedCount = new AtomicInteger();
+
+    FakeTcpKdc(int repliesPerConnection, int batchSize) throws IOException {
+      this.repliesPerConnection = repliesPerConnection;
+      this.batchSize = batchSize;
+      serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+      Thread acceptor = new Thread(this::accept, "Fake KDC");
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    String getName() {
+      return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    List<String> getNames() {
+      return Collections.singletonList(getName());
+    }
+
+    void close() {
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        // Already closed.
+      }
+    }
+
+    private void accept() {
+      while (!serverSocket.isClosed()) {
+        try {
+          Socket socket = serverSocket.accept();
+          connectionCount.incrementAndGet();
+          Thread connection = new Thread(() -> serve(socket), "Fake KDC connection");
+          connection.setDaemon(true);
+          connection.start();
+        } catch (IOException e) {
+          // Closed.
+        }
+      }
+    }
+
+    private void serve(Socket socket) {
+      try (Socket connection = socket) {
+        InputStream in = connection.getInputStream();
+        OutputStream out = connection.getOutputStream();
+        int replies = 0;
+        while (true) {
+          byte[] request = KdcProxy.readMessage(in);
+          if (request == null) {
+            closedCount.incrementAndGet();
+            return;
+          }
+          String text = new String(request, StandardCharsets.UTF_8);
+          if (text.startsWith("unanswered")) {
+            continue;
+          }
+          List<Map.Entry<OutputStream, byte[]>> answered = new ArrayList<>();
+          synchronized (batch) {
+            batch.add(new SimpleEntry<>(out, message("reply " + text)));
+            if (batch.size() == batchSize) {
+              answered.addAll(batch);
+              batch.clear();
+            }
+          }
+          Collections.reverse(answered);
+          for (Map.Entry<OutputStream, byte[]> reply : answered) {
+            KdcProxy.writeMessage(reply.getKey(), reply.getValue());
+          }
+          replies++;
+          if (replies == repliesPerConnection) {
+            return;
+          }
+        }
+      } catch (IOException e) {
+        // The connection was reset.
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.security.auth.login.LoginException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class KdcSelectorTest {
+  private static final List<String> KDCS = Arrays.asList("dc1", "dc2", "dc3");
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+  private final KdcSelector selector = new KdcSelector(now::get, 0 /* no racing */);
+
+  @Test
+  public void testUnmeasuredKdcsKeepConfiguredOrder() {
+    assertThat(selector.order(KDCS)).containsExactly("dc1", "dc2", "dc3").inOrder();
+  }
+
+  @Test
+  public void testFastestKdcFirst() {
+    selector.recordSuccess("dc1", 300);
+    selector.recordSuccess("dc3", 20);
+
+    assertThat(selector.order(KDCS)).containsExactly("dc3", "dc1", "dc2").inOrder();
+  }
+
+  @Test
+  public void testFailedKdcLastUntilBackoffElapsed() {
+    selector.recordSuccess("dc1", 20);
+    selector.recordSuccess("dc2", 300);
+    selector.recordFailure("dc1");
+
+    assertThat(selector.order(KDCS)).containsExactly("dc2", "dc3", "dc1").inOrder();
+
+    now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+    assertThat(selector.order(KDCS)).containsExactly("dc1", "dc2", "dc3").inOrder();
+  }
+
+  @Test
+  public void testBackoffGrowsWithConsecutiveFailures() {
+    selector.recordFailure("dc1");
+    selector.recordFailure("dc1");
+    selector.recordFailure("dc1");
+    now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+
+    assertThat(selector.order(KDCS)).containsExactly("dc2", "dc3", "dc1").inOrder();
+  }
+
+  @Test
+  public void testRecordRequestDoesNotGuessWhichKdcAnswered() {
+    selector.recordSuccess("dc2", 10);
+    selector.recordSuccess("dc1", 20);
+
+    // Any of the KDCs may have given the slow answer.
+    assertThat(selector.recordRequest(KDCS, 5000, null)).isEmpty();
+    assertThat(selector.order(KDCS).get(0)).isEqualTo("dc2");
+  }
+
+  @Test
+  public void testRecordRequestAttributesAnswerOfSingleKdc() {
+    selector.recordSuccess("dc2", 10);
+    selector.recordSuccess("dc1", 20);
+
+    // Slow answer from dc2, which is then no longer the fastest.
+    assertThat(selector.recordRequest(Arrays.asList("dc2"), 5000, null)).containsExactly("dc2");
+    assertThat(selector.order(KDCS).get(0)).isEqualTo("dc1");
+  }
+
+  @Test
+  public void testRecordRequestAttributesFailureToEveryKdc() {
+    selector.recordSuccess("dc3", 10);
+
+    assertThat(
+            selector.recordRequest(
+                Arrays.asList("dc1", "dc2"),
+                5000,
+                wrap(new ConnectException("Connection refused"))))
+        .containsExactly("dc1", "dc2");
+    assertThat(selector.order(KDCS)).containsExactly("dc3", "dc1", "dc2").inOrder();
+  }
+
+  @Test
+  public void testErrorFromKdcCountsAsAnswer() {
+    selector.recordRequest(
+        Arrays.asList("dc2"), 30, new LoginException("Pre-authentication information was invalid"));
+
+    assertThat(selector.order(KDCS).get(0)).isEqualTo("dc2");
+    selector.recordSuccess("dc1", 40);
+    assertThat(selector.order(KDCS)).containsExactly("dc2", "dc1", "dc3").inOrder();
+  }
+
+  @Test
+  public void testRaceMeasuresKdcs() throws Exception {
+    KdcSelector racingSelector =
+        new KdcSelector(System::currentTimeMillis, TimeUnit.SECONDS.toMillis(2));
+    try (ServerSocket listening = new ServerSocket(0);
+        ServerSocket closed = new ServerSocket(0)) {
+      String listeningKdc = "127.0.0.1:" + listening.getLocalPort();
+      String closedKdc = "127.0.0.1:" + closed.getLocalPort();
+      closed.close();
+      List<String> kdcs = Arrays.asList(closedKdc, listeningKdc);
+
+      racingSelector.raceIfUnmeasured(kdcs);
+
+      assertThat(racingSelector.order(kdcs)).containsExactly(listeningKdc, closedKdc).inOrder();
+    }
+  }
+
+  @Test
+  public void testRaceEndsWithFirstAnswer() throws Exception {
+    KdcSelector racingSelector =
+        new KdcSelector(System::currentTimeMillis, TimeUnit.SECONDS.toMillis(5));
+    List<Socket> backlog = new ArrayList<>();
+    try (ServerSocket listening = new ServerSocket(0);
+        ServerSocket unanswering = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      // Connections to a listener whose backlog is full wait for the connect timeout.
+      while (true) {
+        Socket socket = new Socket();
+        backlog.add(socket);
+        try {
+          socket.connect(unanswering.getLocalSocketAddress(), 200);
+        } catch (SocketTimeoutException e) {
+          break;
+        }
+      }
+      String listeningKdc = "127.0.0.1:" + listening.getLocalPort();
+      List<String> kdcs = Arrays.asList("127.0.0.1:" + unanswering.getLocalPort(), listeningKdc);
+
+      long start = System.currentTimeMillis();
+      racingSelector.raceIfUnmeasured(kdcs);
+
+      assertThat(System.currentTimeMillis() - start).isLessThan(TimeUnit.SECONDS.toMillis(2));
+      assertThat(racingSelector.order(kdcs).get(0)).isEqualTo(listeningKdc);
+    } finally {
+      for (Socket socket : backlog) {
+        socket.close();
+      }
+    }
+  }
+
+  @Test
+  public void testToSocketAddress() {
+    assertThat(KdcSelector.toSocketAddress("dc.example.com"))
+        .isEqualTo(InetSocketAddress.createUnresolved("dc.example.com", 88));
+    assertThat(KdcSelector.toSocketAddress("dc.example.com:1088"))
+        .isEqualTo(InetSocketAddress.createUnresolved("dc.example.com", 1088));
+    assertThat(KdcSelector.toSocketAddress("[::1]:1088"))
+        .isEqualTo(InetSocketAddress.createUnresolved("::1", 1088));
+    assertThat(KdcSelector.toSocketAddress("[::1]"))
+        .isEqualTo(InetSocketAddress.createUnresolved("::1", 88));
+    assertThat(KdcSelector.toSocketAddress("::1"))
+        .isEqualTo(InetSocketAddress.createUnresolved("::1", 88));
+  }
+
+  private static LoginException wrap(Exception cause) {
+    LoginException e = new LoginException(cause.getMessage());
+    e.initCause(cause);
+    return e;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class KerberosConfigTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File configFile;
+  private KerberosConfig config;
+  private KdcDiscovery discovery;
+  private final AtomicInteger dnsServerLookups = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    configFile = new File(temporaryFolder.getRoot(), "krb5.conf");
+    discovery =
+        new KdcDiscovery(
+            new SrvResolver(() -> 0L, 100),
+            () -> {
+              dnsServerLookups.incrementAndGet();
+              return Collections.emptyList();
+            });
+    config =
+        new KerberosConfig(
+            configFile,
+            new KdcSelector(() -> 0L, 0 /* no racing */),
+            discovery,
+            new KerberosMetrics(),
+            null /* no proxy */);
+  }
+
+  @Test
+  public void testForDomain() {
+    KerberosContext context =
+        KerberosContext.forDomain("example.com", "dc.example.com", null, false);
+
+    assertThat(context.getRealm()).isEqualTo("EXAMPLE.COM");
+    assertThat(context.getKdcs()).containsExactly("dc.example.com");
+    assertThat(context.qualifyPrincipal("user")).isEqualTo("user@EXAMPLE.COM");
+    assertThat(context.qualifyPrincipal("user@OTHER.COM")).isEqualTo("user@OTHER.COM");
+  }
+
+  @Test
+  public void testForDomainWithSeveralControllers() {
+    KerberosContext context =
+        KerberosContext.forDomain("example.com", "dc1.example.com, dc2.example.com,", null, false);
+
+    assertThat(context.getKdcs()).containsExactly("dc1.example.com", "dc2.example.com").inOrder();
+  }
+
+  @Test
+  public void testApplyWritesAllRealms() throws Exception {
+    config.apply(KerberosContext.forDomain("example.com", "dc.example.com", null, false));
+    config.apply(
+        new KerberosContext(
+            "CORP.EXAMPLE.COM",
+            Arrays.asList("dc1.corp.example.com", "dc2.corp.example.com"),
+            null,
+            false));
+
+    String written = new String(Files.readAllBytes(configFile.toPath()), StandardCharsets.UTF_8);
+    assertThat(written).isEqualTo(config.render());
+    assertThat(written).contains("default_realm = EXAMPLE.COM\n");
+    assertThat(written).contains("  EXAMPLE.COM = {\n    kdc = dc.example.com\n  }\n");
+    assertThat(written)
+        .contains(
+            "  CORP.EXAMPLE.COM = {\n"
+                + "    kdc = dc1.corp.example.com\n"
+                + "    kdc = dc2.corp.example.com\n"
+                + "  }\n");
+    assertThat(written).contains("  .corp.example.com = CORP.EXAMPLE.COM\n");
+  }
+
+  @Test
+  public void testApplyThroughProxy() throws Exception {
+    KdcSelector kdcSelector = new KdcSelector(() -> 0L, 0 /* no racing */);
+    KerberosMetrics metrics = new KerberosMetrics();
+    KdcProxy proxy = new KdcProxy(kdcSelector, metrics, 1000, 1000, client -> true);
+    try {
+      KerberosConfig proxiedConfig =
+          new KerberosConfig(
+              configFile,
+              kdcSelector,
+              new KdcDiscovery(new SrvResolver(() -> 0L, 100), Collections::emptyList),
+              metrics,
+              proxy);
+      proxiedConfig.apply(
+          KerberosContext.forDomain("example.com", "dc1.example.com,dc2.example.com", null, false));
+
+      int port =
+          proxy.serve("EXAMPLE.COM", Arrays.asList("dc1.example.com", "dc2.example.com")).getPort();
+      String written =
+          new String(Files.readAllBytes(configFile.toPath()), StandardCharsets.UTF_8);
+      assertThat(written).contains("  udp_preference_limit = 1\n");
+      assertThat(written).contains("  kdc_timeout = 10000\n");
+      assertThat(written).contains("  EXAMPLE.COM = {\n    kdc = 127.0.0.1:" + port + "\n  }\n");
+    } finally {
+      proxy.close();
+    }
+  }
+
+  @Test
+  public void testApplyOnlyReloadsOnChange() throws Exception {
+    KerberosContext context =
+        KerberosContext.forDomain("example.com", "dc.example.com", null, false);
+
+    assertThat(config.apply(context)).isTrue();
+    assertThat(config.apply(context)).isFalse();
+    KerberosContext otherKdc =
+        KerberosContext.forDomain("example.com", "dc2.example.com", null, false);
+    assertThat(config.apply(otherKdc)).isTrue();
+  }
+
+  @Test
+  public void testApplyKeepsDebugSetting() throws Exception {
+    config.setDebug(false);
+
+    config.apply(KerberosContext.forDomain("example.com", "dc.example.com", null, true));
+
+    assertThat(System.getProperty("sun.security.jgss.debug")).isEqualTo("false");
+  }
+
+  @Test
+  public void testForDomainWithoutController() {
+    KerberosContext context = KerberosContext.forDomain("example.com", "", null, false);
+
+    assertThat(context.getKdcs()).isEmpty();
+  }
+
+  @Test(expected = IOException.class)
+  public void testApplyWithoutKdcNeedsDiscovery() throws Exception {
+    discovery.setEnabled(true);
+    // No DNS server to discover the KDCs with.
+    config.apply(KerberosContext.forDomain("example.com", "", null, false));
+  }
+
+  @Test
+  public void testApplyWithoutKdcDoesNotDiscoverWhenDisabled() throws Exception {
+    discovery.setEnabled(false);
+
+    try {
+      config.apply(KerberosContext.forDomain("example.com", "", null, false));
+      throw new AssertionError("Expected IOException");
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).contains("No KDC configured");
+    }
+    assertThat(dnsServerLookups.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testApplyRealmUsesConfiguredKdcs() throws Exception {
+    // As for a realm a KDC referred a request to, which an additional account is configured for.
+    discovery.setEnabled(false);
+    config.setConfiguredKdcs(
+        Collections.singletonMap("FOREST.COM", Arrays.asList("dc1.forest.com")));
+
+    config.applyRealm(new KerberosContext("FOREST.COM", Collections.emptyList(), null, false));
+
+    assertThat(config.render()).contains("kdc = dc1.forest.com");
+    assertThat(dnsServerLookups.get()).isEqualTo(0);
+  }
+}
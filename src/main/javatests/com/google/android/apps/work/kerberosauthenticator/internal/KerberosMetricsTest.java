@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosMetrics.Operation;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult.ResultCode;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class KerberosMetricsTest {
+  private static final TicketRequestResult SUCCESS =
+      new TicketRequestResult(ResultCode.SUCCESS, "");
+  private static final TicketRequestResult BAD_PASSWORD =
+      new TicketRequestResult(ResultCode.ERROR_BAD_PASSWORD, "");
+
+  private final KerberosMetrics metrics = new KerberosMetrics();
+
+  @Test
+  public void testCountsResultsByCode() {
+    metrics.recordRequest(Operation.LOGIN, SUCCESS, 100);
+    metrics.recordRequest(Operation.LOGIN, BAD_PASSWORD, 100);
+    metrics.recordRequest(Operation.LOGIN, BAD_PASSWORD, 100);
+
+    assertThat(metrics.getResultCount(Operation.LOGIN, ResultCode.SUCCESS)).isEqualTo(1L);
+    assertThat(metrics.getResultCount(Operation.LOGIN, ResultCode.ERROR_BAD_PASSWORD))
+        .isEqualTo(2L);
+    assertThat(metrics.getResultCount(Operation.SPNEGO, ResultCode.SUCCESS)).isEqualTo(0L);
+  }
+
+  @Test
+  public void testLatencyBuckets() {
+    metrics.recordRequest(Operation.SPNEGO, SUCCESS, 0);
+    metrics.recordRequest(Operation.SPNEGO, SUCCESS, 10);
+    metrics.recordRequest(Operation.SPNEGO, SUCCESS, 11);
+    metrics.recordRequest(Operation.SPNEGO, SUCCESS, 60000);
+
+    long[] buckets = metrics.getLatencyBuckets(Operation.SPNEGO);
+    assertThat(buckets[0]).isEqualTo(2L);
+    assertThat(buckets[1]).isEqualTo(1L);
+    assertThat(buckets[KerberosMetrics.BUCKET_BOUNDS_MILLIS.length]).isEqualTo(1L);
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 1000; i++) {
+      executor.execute(() -> metrics.recordRequest(Operation.RENEWAL, SUCCESS, 30));
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(metrics.getResultCount(Operation.RENEWAL, ResultCode.SUCCESS)).isEqualTo(1000L);
+  }
+
+  @Test
+  public void testDump() {
+    metrics.recordRequest(Operation.LOGIN, SUCCESS, 40);
+    metrics.recordRequest(Operation.LOGIN, BAD_PASSWORD, 80);
+    metrics.recordKdcRequest("dc1.example.com", 20, false);
+    metrics.recordKdcRequest("dc2.example.com", 5000, true);
+
+    StringWriter output = new StringWriter();
+    metrics.dump(new PrintWriter(output));
+    String dump = output.toString();
+
+    assertThat(dump).contains("  LOGIN: count=2 mean=60ms max=80ms\n");
+    assertThat(dump).contains("    results: SUCCESS=1 ERROR_BAD_PASSWORD=1\n");
+    assertThat(dump).contains("    latency: <=50ms:1 <=100ms:1\n");
+    assertThat(dump).contains("  RENEWAL: count=0\n");
+    assertThat(dump).contains("  dc1.example.com: count=1 mean=20ms max=20ms unreachable=0\n");
+    assertThat(dump).contains("  dc2.example.com: count=0 unreachable=1\n");
+  }
+
+  @Test
+  public void testWarmUp() {
+    assertThat(metrics.getWarmUpMillis()).isEqualTo(-1L);
+    StringWriter output = new StringWriter();
+    metrics.dump(new PrintWriter(output));
+    assertThat(output.toString()).doesNotContain("Warm-up");
+
+    metrics.recordWarmUp(120);
+
+    assertThat(metrics.getWarmUpMillis()).isEqualTo(120L);
+    output = new StringWriter();
+    metrics.dump(new PrintWriter(output));
+    assertThat(output.toString()).startsWith("Warm-up: 120ms\n");
+    metrics.clear();
+    assertThat(metrics.getWarmUpMillis()).isEqualTo(-1L);
+  }
+
+  @Test
+  public void testClear() {
+    metrics.recordRequest(Operation.LOGIN, SUCCESS, 40);
+    metrics.recordKdcRequest("dc1.example.com", 20, false);
+    metrics.clear();
+
+    assertThat(metrics.getResultCount(Operation.LOGIN, ResultCode.SUCCESS)).isEqualTo(0L);
+    StringWriter output = new StringWriter();
+    metrics.dump(new PrintWriter(output));
+    assertThat(output.toString()).doesNotContain("dc1.example.com");
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.work.kerberosauthenticator.internal.SrvResolver.SrvRecord;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class SrvResolverTest {
+  private static final String SRV_NAME = "_kerberos._udp.EXAMPLE.COM";
+  private static final int TTL_SECONDS = 300;
+
+  private final AtomicLong now = new AtomicLong(1000);
+  private FakeDnsServer dnsServer;
+  private List<InetSocketAddress> dnsServers;
+  private SrvResolver resolver;
+
+  @Before
+  public void setUp() throws Exception {
+    dnsServer = new FakeDnsServer();
+    dnsServers = Collections.singletonList(dnsServer.getAddress());
+    resolver = new SrvResolver(now::get, 2000);
+  }
+
+  @After
+  public void tearDown() {
+    dnsServer.close();
+  }
+
+  @Test
+  public void testResolveSrvSortsByPriorityAndWeight() throws Exception {
+    dnsServer.addSrv(SRV_NAME, 10, 0, 88, "backup.example.com");
+    dnsServer.addSrv(SRV_NAME, 0, 10, 88, "dc1.example.com");
+    dnsServer.addSrv(SRV_NAME, 0, 50, 750, "dc2.example.com");
+
+    List<SrvRecord> records = resolver.resolveSrv(SRV_NAME, dnsServers);
+
+    assertThat(records).hasSize(3);
+    assertThat(records.get(0).target).isEqualTo("dc2.example.com");
+    assertThat(records.get(0).port).isEqualTo(750);
+    assertThat(records.get(1).target).isEqualTo("dc1.example.com");
+    assertThat(records.get(2).target).isEqualTo("backup.example.com");
+  }
+
+  @Test
+  public void testResolveSrvIsCachedForTtl() throws Exception {
+    dnsServer.addSrv(SRV_NAME, 0, 0, 88, "dc1.example.com");
+
+    resolver.resolveSrv(SRV_NAME, dnsServers);
+    now.addAndGet(TimeUnit.SECONDS.toMillis(TTL_SECONDS - 1));
+    resolver.resolveSrv(SRV_NAME, dnsServers);
+    assertThat(dnsServer.getQueryCount()).isEqualTo(1);
+
+    now.addAndGet(TimeUnit.SECONDS.toMillis(2));
+    resolver.resolveSrv(SRV_NAME, dnsServers);
+    assertThat(dnsServer.getQueryCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testMissingNameIsEmpty() throws Exception {
+    assertThat(resolver.resolveSrv(SRV_NAME, dnsServers)).isEmpty();
+  }
+
+  @Test
+  public void testEmptyAnswerIsCachedBriefly() throws Exception {
+    // The name exists, but has no SRV records, e.g. while they are being published.
+    dnsServer.addName(SRV_NAME, SrvResolver.TYPE_SRV);
+
+    assertThat(resolver.resolveSrv(SRV_NAME, dnsServers)).isEmpty();
+    now.addAndGet(TimeUnit.MINUTES.toMillis(2));
+    resolver.resolveSrv(SRV_NAME, dnsServers);
+
+    assertThat(dnsServer.getQueryCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAdditionalAddressesAreCached() throws Exception {
+    dnsServer.addSrv(SRV_NAME, 0, 0, 88, "dc1.example.com");
+    dnsServer.addAddress("dc1.example.com", InetAddress.getByName("192.0.2.1"));
+
+    resolver.resolveSrv(SRV_NAME, dnsServers);
+    List<InetAddress> addresses = resolver.resolveAddresses("DC1.example.com", dnsServers);
+
+    assertThat(addresses).containsExactly(InetAddress.getByName("192.0.2.1"));
+    assertThat(dnsServer.getQueryCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testDiscoverReturnsKdcAddresses() throws Exception {
+    dnsServer.addSrv(SRV_NAME, 0, 0, 88, "dc1.example.com");
+    dnsServer.addSrv("_kerberos._tcp.EXAMPLE.COM", 0, 0, 88, "dc1.example.com");
+    dnsServer.addSrv("_kerberos._tcp.EXAMPLE.COM", 5, 0, 88, "dc2.example.com");
+    dnsServer.addAddress("dc1.example.com", InetAddress.getByName("192.0.2.1"));
+    dnsServer.addAddress("dc1.example.com", InetAddress.getByName("2001:db8::1"));
+    KdcDiscovery discovery = new KdcDiscovery(resolver, () -> dnsServers);
+
+    assertThat(discovery.discover("EXAMPLE.COM"))
+        .containsExactly("192.0.2.1:88", "[2001:db8:0:0:0:0:0:1]:88", "dc2.example.com:88")
+        .inOrder();
+  }
+
+  @Test
+  public void testUnansweredQueryFails() throws Exception {
+    dnsServer.close();
+    resolver = new SrvResolver(now::get, 100);
+    try {
+      resolver.resolveSrv(SRV_NAME, dnsServers);
+      throw new AssertionError("Expected the query to fail");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  /** Answers queries on the loopback interface from canned records. */
+  private static final class FakeDnsServer {
+    private final DatagramSocket socket;
+    private final Map<String, List<byte[]>> records = new LinkedHashMap<>();
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final Thread thread;
+
+    FakeDnsServer() throws SocketException {
+      socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+      thread = new Thread(this::serve);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    InetSocketAddress getAddress() {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+    }
+
+    int getQueryCount() {
+      return queryCount.get();
+    }
+
+    synchronized void addSrv(String name, int priority, int weight, int port, String target) {
+      ByteBuffer data = ByteBuffer.allocate(512);
+      data.putShort((short) priority);
+      data.putShort((short) weight);
+      data.putShort((short) port);
+      SrvResolver.writeName(data, target);
+      records
+          .computeIfAbsent(key(name, SrvResolver.TYPE_SRV), unused -> new ArrayList<>())
+          .add(record(name, SrvResolver.TYPE_SRV, toBytes(data)));
+    }
+
+    /** Makes the name exist without records of the type, answered with NOERROR and no records. */
+    synchronized void addName(String name, int type) {
+      records.computeIfAbsent(key(name, type), unused -> new ArrayList<>());
+    }
+
+    synchronized void addAddress(String host, InetAddress address) {
+      int type = address.getAddress().length == 4 ? SrvResolver.TYPE_A : SrvResolver.TYPE_AAAA;
+      records
+          .computeIfAbsent(key(host, type), unused -> new ArrayList<>())
+          .add(record(host, type, address.getAddress()));
+    }
+
+    void close() {
+      socket.close();
+    }
+
+    private void serve() {
+      byte[] buffer = new byte[512];
+      while (!socket.isClosed()) {
+        try {
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          socket.receive(packet);
+          queryCount.incrementAndGet();
+          byte[] answer = answer(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+          socket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+        } catch (Exception e) {
+          return;
+        }
+      }
+    }
+
+    private synchronized byte[] answer(ByteBuffer query) {
+      short id = query.getShort();
+      query.position(12);
+      StringBuilder name = new StringBuilder();
+      for (int length = query.get(); length > 0; length = query.get()) {
+        byte[] label = new byte[length];
+        query.get(label);
+        name.append(name.length() == 0 ? "" : ".")
+            .append(new String(label, StandardCharsets.US_ASCII));
+      }
+      int type = query.getShort();
+      int questionEnd = query.position() + 2;
+
+      List<byte[]> answers = records.getOrDefault(key(name.toString(), type), new ArrayList<>());
+      // Like real servers, send the addresses of SRV targets along.
+      List<byte[]> additional = new ArrayList<>();
+      if (type == SrvResolver.TYPE_SRV) {
+        for (Map.Entry<String, List<byte[]>> entry : records.entrySet()) {
+          if (!entry.getKey().endsWith(" " + SrvResolver.TYPE_SRV)) {
+            additional.addAll(entry.getValue());
+          }
+        }
+      }
+
+      ByteBuffer response = ByteBuffer.allocate(512);
+      response.putShort(id);
+      // NXDOMAIN for names without any records.
+      response.putShort(
+          (short) (records.containsKey(key(name.toString(), type)) ? 0x8180 : 0x8183));
+      response.putShort((short) 1);
+      response.putShort((short) answers.size());
+      response.putShort((short) 0);
+      response.putShort((short) additional.size());
+      response.put(query.array(), 12, questionEnd - 12);
+      for (byte[] record : answers) {
+        response.put(record);
+      }
+      for (byte[] record : additional) {
+        response.put(record);
+      }
+      return toBytes(response);
+    }
+
+    private static byte[] record(String name, int type, byte[] data) {
+      ByteBuffer record = ByteBuffer.allocate(512);
+      SrvResolver.writeName(record, name);
+      record.putShort((short) type);
+      record.putShort((short) 1); // IN.
+      record.putInt(TTL_SECONDS);
+      record.putShort((short) data.length);
+      record.put(data);
+      return toBytes(record);
+    }
+
+    private static String key(String name, int type) {
+      return name.toLowerCase() + " " + type;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.position()];
+      buffer.flip();
+      buffer.get(bytes);
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal;
+
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Measures decoding and encoding the stored ticket-granting-ticket. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TicketGrantingTicketBenchmark {
+  private byte[] serializedSubject;
+  private byte[] compactTgt;
+  private TicketGrantingTicket tgt;
+
+  @Setup
+  public void setUp() {
+    serializedSubject = Base64.getDecoder().decode(TicketGrantingTicketTest.B64_SUBJECT);
+    tgt = TicketGrantingTicket.fromSerializedSubject(serializedSubject);
+    compactTgt = tgt.asSerialized();
+  }
+
+  @Benchmark
+  public TicketGrantingTicket decodeSerializedSubject() {
+    return TicketGrantingTicket.fromSerializedSubject(serializedSubject);
+  }
+
+  @Benchmark
+  public TicketGrantingTicket decodeCompactFormat() {
+    return TicketGrantingTicket.fromSerializedSubject(compactTgt);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return tgt.asSerialized();
+  }
+
+  @Benchmark
+  public Date getExpiryDate() {
+    return tgt.getExpiryDate();
+  }
+}
@@ -18,6 +18,7 @@ package com.google.android.apps.work.kerberosauthenticator.internal;
 import static com.google.common.truth.Truth.assertThat;
 
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Date;
 import java.util.Set;
@@ -123,8 +124,37 @@ public final class TicketGrantingTicketTest {
   @Test
   public void testEncodingSubject() {
     TicketGrantingTicket tgt = TicketGrantingTicket.fromSerializedSubject(encodedSubject);
-    // DER encoding must be identical
-    assertThat(tgt.asSerialized()).isEqualTo(encodedSubject);
+    byte[] compactEncoding = tgt.asSerialized();
+    assertThat(compactEncoding.length).isLessThan(encodedSubject.length);
+
+    TicketGrantingTicket decodedTgt = TicketGrantingTicket.fromSerializedSubject(compactEncoding);
+    assertThat(decodedTgt).isNotNull();
+    assertThat(decodedTgt.asSubject().getPrincipals())
+        .containsExactlyElementsIn(tgt.asSubject().getPrincipals());
+    assertThat(decodedTgt.asSubject().getPrivateCredentials())
+        .containsExactlyElementsIn(tgt.asSubject().getPrivateCredentials());
+    assertThat(decodedTgt.getExpiryDate()).isEqualTo(EXPECTED_DATE);
+    assertThat(decodedTgt.getIssuanceDate()).isEqualTo(EXPECTED_AUTH_DATE);
+    // Encoding must be stable.
+    assertThat(decodedTgt.asSerialized()).isEqualTo(compactEncoding);
+  }
+
+  @Test
+  public void testEncodingEmptySubject() {
+    TicketGrantingTicket tgt = TicketGrantingTicket.fromSerializedSubject(encodedEmptySubject);
+    TicketGrantingTicket decodedTgt = TicketGrantingTicket.fromSerializedSubject(tgt.asSerialized());
+    assertThat(decodedTgt).isNotNull();
+    assertThat(decodedTgt.getExpiryDate()).isNull();
+    assertThat(decodedTgt.asSubject().getPrincipals()).isEmpty();
+    assertThat(decodedTgt.asSubject().getPrivateCredentials()).isEmpty();
+  }
+
+  @Test
+  public void testDecodingTruncatedTicket() {
+    TicketGrantingTicket tgt = TicketGrantingTicket.fromSerializedSubject(encodedSubject);
+    byte[] compactEncoding = tgt.asSerialized();
+    byte[] truncated = Arrays.copyOf(compactEncoding, compactEncoding.length / 2);
+    assertThat(TicketGrantingTicket.fromSerializedSubject(truncated)).isNull();
   }
 
   @Test
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class KeyTabFilesTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final KeyTabFiles keyTabFiles = KeyTabFiles.getInstance();
+  private File directory;
+
+  @Before
+  public void setUp() {
+    directory = new File(temporaryFolder.getRoot(), "keytabs");
+    keyTabFiles.setDirectory(directory);
+  }
+
+  @Test
+  public void testSameFileForEveryLogin() {
+    File file = keyTabFiles.getFile("user@EXAMPLE.COM");
+
+    assertThat(file.getParentFile()).isEqualTo(directory);
+    assertThat(keyTabFiles.getFile("user@EXAMPLE.COM")).isEqualTo(file);
+    assertThat(keyTabFiles.getFile("other@EXAMPLE.COM")).isNotEqualTo(file);
+    assertThat(keyTabFiles.getLock("user@EXAMPLE.COM"))
+        .isSameAs(keyTabFiles.getLock("user@EXAMPLE.COM"));
+  }
+
+  @Test
+  public void testFileNameIsSafe() {
+    assertThat(keyTabFiles.getFile("../user/admin@EXAMPLE.COM").getName())
+        .isEqualTo(".._user_admin@EXAMPLE.COM.keytab");
+  }
+
+  @Test
+  public void testDeletesFilesLeftByEarlierProcess() throws Exception {
+    File leftover = keyTabFiles.getFile("user@EXAMPLE.COM");
+    assertThat(leftover.createNewFile()).isTrue();
+
+    // As when the next process starts.
+    keyTabFiles.setDirectory(directory);
+
+    assertThat(leftover.exists()).isFalse();
+  }
+}
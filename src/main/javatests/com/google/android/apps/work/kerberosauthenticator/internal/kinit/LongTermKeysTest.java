@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosKey;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import sun.security.krb5.EncryptionKey;
+import sun.security.krb5.PrincipalName;
+import sun.security.krb5.internal.ktab.KeyTab;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class LongTermKeysTest {
+  private static final KerberosPrincipal USER = new KerberosPrincipal("user@EXAMPLE.COM");
+  private static final int AES128 = 17;
+  private static final int AES256 = 18;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static KerberosKey makeKey(int keyType, int length, int versionNumber) {
+    byte[] key = new byte[length];
+    Arrays.fill(key, (byte) keyType);
+    return new KerberosKey(USER, key, keyType, versionNumber);
+  }
+
+  private static Subject makeSubject(Object... credentials) {
+    return new Subject(
+        false,
+        Collections.singleton(USER),
+        Collections.emptySet(),
+        new HashSet<>(Arrays.asList(credentials)));
+  }
+
+  @Test
+  public void testSubjectWithoutKeys() {
+    assertThat(LongTermKeys.fromSubject(makeSubject())).isNull();
+    assertThat(LongTermKeys.fromSubject(null)).isNull();
+  }
+
+  @Test
+  public void testKeysByTypeAndVersion() {
+    LongTermKeys keys =
+        LongTermKeys.fromSubject(
+            makeSubject(makeKey(AES128, 16, 3), makeKey(AES256, 32, 3), makeKey(AES256, 32, 4)));
+
+    assertThat(keys.getKeys()).hasSize(3);
+  }
+
+  @Test
+  public void testAppliesToPrincipalWithSameSalt() {
+    LongTermKeys keys = LongTermKeys.fromSubject(makeSubject(makeKey(AES256, 32, 3)));
+
+    assertThat(keys.appliesTo("user@EXAMPLE.COM")).isTrue();
+    assertThat(keys.appliesTo("other@EXAMPLE.COM")).isFalse();
+    assertThat(keys.appliesTo("user@OTHER.EXAMPLE.COM")).isFalse();
+  }
+
+  @Test
+  public void testAddTo() {
+    KerberosKey key = makeKey(AES256, 32, 3);
+    LongTermKeys keys = LongTermKeys.fromSubject(makeSubject(key));
+    Subject subject = makeSubject();
+
+    keys.addTo(subject);
+
+    assertThat(subject.getPrivateCredentials(KerberosKey.class)).containsExactly(key);
+  }
+
+  @Test
+  public void testWriteKeyTab() throws Exception {
+    LongTermKeys keys =
+        LongTermKeys.fromSubject(makeSubject(makeKey(AES128, 16, 3), makeKey(AES256, 32, 3)));
+    File file = new File(temporaryFolder.getRoot(), "user.keytab");
+
+    keys.writeKeyTab(file);
+
+    EncryptionKey[] read =
+        KeyTab.getInstance(file).readServiceKeys(new PrincipalName("user@EXAMPLE.COM"));
+    assertThat(read).hasLength(2);
+    for (EncryptionKey key : read) {
+      assertThat(key.getKeyVersionNumber()).isEqualTo(3);
+      assertThat(key.getBytes()).isEqualTo(makeKey(key.getEType(), key.getBytes().length, 3)
+          .getEncoded());
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketGrantingTicket;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class TicketRenewalRequestTest {
+  private static final int RENEWABLE_TICKET_FLAG = 8;
+  private static final long NOW = System.currentTimeMillis();
+
+  private static TicketGrantingTicket makeTgt(boolean renewable, long endTime, Long renewTill) {
+    boolean[] flags = new boolean[32];
+    flags[RENEWABLE_TICKET_FLAG] = renewable;
+    KerberosPrincipal client = new KerberosPrincipal("user@EXAMPLE.COM");
+    KerberosTicket ticket =
+        new KerberosTicket(
+            new byte[] {1, 2, 3},
+            client,
+            new KerberosPrincipal("krbtgt/EXAMPLE.COM@EXAMPLE.COM"),
+            new byte[16],
+            17 /* aes128-cts-hmac-sha1-96 */,
+            flags,
+            new Date(NOW - TimeUnit.HOURS.toMillis(1)),
+            new Date(NOW - TimeUnit.HOURS.toMillis(1)),
+            new Date(endTime),
+            renewTill == null ? null : new Date(renewTill),
+            null);
+    return new TicketGrantingTicket(
+        new Subject(
+            false,
+            Collections.singleton(client),
+            Collections.emptySet(),
+            Collections.singleton(ticket)));
+  }
+
+  @Test
+  public void testCanRenewWithinRenewableLifetime() {
+    TicketGrantingTicket tgt =
+        makeTgt(true, NOW + TimeUnit.MINUTES.toMillis(20), NOW + TimeUnit.DAYS.toMillis(7));
+
+    assertThat(TicketRenewalRequest.canRenew(tgt, NOW)).isTrue();
+  }
+
+  @Test
+  public void testCannotRenewNonRenewableTicket() {
+    TicketGrantingTicket tgt =
+        makeTgt(false, NOW + TimeUnit.MINUTES.toMillis(20), NOW + TimeUnit.DAYS.toMillis(7));
+
+    assertThat(TicketRenewalRequest.canRenew(tgt, NOW)).isFalse();
+  }
+
+  @Test
+  public void testCannotRenewPastRenewableLifetime() {
+    TicketGrantingTicket tgt =
+        makeTgt(true, NOW + TimeUnit.MINUTES.toMillis(20), NOW - TimeUnit.MINUTES.toMillis(1));
+
+    assertThat(TicketRenewalRequest.canRenew(tgt, NOW)).isFalse();
+  }
+
+  @Test
+  public void testCannotRenewExpiredTicket() {
+    TicketGrantingTicket tgt =
+        makeTgt(true, NOW - TimeUnit.MINUTES.toMillis(1), NOW + TimeUnit.DAYS.toMillis(7));
+
+    assertThat(TicketRenewalRequest.canRenew(tgt, NOW)).isFalse();
+  }
+
+  @Test
+  public void testCannotRenewWithoutTicket() {
+    assertThat(TicketRenewalRequest.canRenew(null, NOW)).isFalse();
+    assertThat(TicketRenewalRequest.canRenew(new TicketGrantingTicket(new Subject()), NOW))
+        .isFalse();
+  }
+
+  @Test
+  public void testExecuteNonRenewableTicketFails() {
+    TicketGrantingTicket tgt = makeTgt(false, NOW + TimeUnit.MINUTES.toMillis(20), null);
+    TicketRenewalRequest request =
+        new TicketRenewalRequest(tgt, "example.com", "dc.example.com", false);
+
+    TicketRequestResult result = request.execute();
+
+    assertThat(result.successful()).isFalse();
+    assertThat(request.getSubject()).isNull();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.kinit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.net.SocketTimeoutException;
+import javax.security.auth.login.LoginException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import sun.security.krb5.KrbException;
+import sun.security.krb5.internal.Krb5;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class UserAuthenticationRequestTest {
+  private static LoginException loginException(Throwable cause) {
+    LoginException exception = new LoginException(cause.getMessage());
+    exception.initCause(cause);
+    return exception;
+  }
+
+  @Test
+  public void testKeysOfOldPasswordAreRefused() {
+    assertThat(
+            UserAuthenticationRequest.isKeyRefused(
+                loginException(new KrbException(Krb5.KDC_ERR_PREAUTH_FAILED))))
+        .isTrue();
+    assertThat(
+            UserAuthenticationRequest.isKeyRefused(
+                loginException(new KrbException(Krb5.KDC_ERR_ETYPE_NOSUPP))))
+        .isTrue();
+    assertThat(
+            UserAuthenticationRequest.isKeyRefused(
+                new LoginException("Pre-authentication information was invalid (24)")))
+        .isTrue();
+  }
+
+  @Test
+  public void testOtherFailuresAreNotKeyRefusals() {
+    // The password would fail the same way.
+    assertThat(
+            UserAuthenticationRequest.isKeyRefused(
+                loginException(new KrbException(Krb5.KDC_ERR_C_PRINCIPAL_UNKNOWN))))
+        .isFalse();
+    assertThat(
+            UserAuthenticationRequest.isKeyRefused(
+                loginException(new SocketTimeoutException("Receive timed out"))))
+        .isFalse();
+  }
+}
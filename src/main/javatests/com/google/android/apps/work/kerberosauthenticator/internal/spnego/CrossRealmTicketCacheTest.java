@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.internal.spnego.TestHelper.makeTicket;
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import sun.security.krb5.KrbException;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class CrossRealmTicketCacheTest {
+  private static final String CLIENT = "user@HOME.COM";
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final CrossRealmTicketCache cache = CrossRealmTicketCache.getInstance();
+  private final KerberosTicket tgt = makeTicket(CLIENT, "krbtgt/HOME.COM@HOME.COM", HOUR_MILLIS);
+  // The ticket the KDCs answer each request with.
+  private final Map<String, KerberosTicket> referrals = new HashMap<>();
+  private final List<String> requests = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    cache.clear();
+  }
+
+  private KerberosTicket requestTicket(KerberosTicket tgt, String servicePrincipal)
+      throws KrbException {
+    requests.add(servicePrincipal);
+    KerberosTicket ticket = referrals.get(servicePrincipal);
+    if (ticket == null) {
+      throw new KrbException("No referral to " + servicePrincipal);
+    }
+    return ticket;
+  }
+
+  private void addForestReferrals(long targetValidForMillis) {
+    referrals.put(
+        "krbtgt/TARGET.COM@HOME.COM",
+        makeTicket(CLIENT, "krbtgt/FOREST.COM@HOME.COM", HOUR_MILLIS));
+    referrals.put(
+        "krbtgt/TARGET.COM@FOREST.COM",
+        makeTicket(CLIENT, "krbtgt/TARGET.COM@FOREST.COM", targetValidForMillis));
+  }
+
+  @Test
+  public void testFollowsReferralsToTargetRealm() throws Exception {
+    addForestReferrals(HOUR_MILLIS);
+
+    KerberosTicket ticket =
+        cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+
+    assertThat(ticket.getServer().getName()).isEqualTo("krbtgt/TARGET.COM@FOREST.COM");
+    assertThat(requests)
+        .containsExactly("krbtgt/TARGET.COM@HOME.COM", "krbtgt/TARGET.COM@FOREST.COM")
+        .inOrder();
+    assertThat(cache.getPath(CLIENT, "TARGET.COM"))
+        .containsExactly("FOREST.COM", "TARGET.COM")
+        .inOrder();
+  }
+
+  @Test
+  public void testCachedTicketNeedsNoReferral() throws Exception {
+    addForestReferrals(HOUR_MILLIS);
+    KerberosTicket ticket =
+        cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+    requests.clear();
+
+    assertThat(cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket))
+        .isSameAs(ticket);
+    assertThat(requests).isEmpty();
+  }
+
+  @Test
+  public void testResumesFromIntermediateRealm() throws Exception {
+    // The ticket for the target realm expires too soon to be cached, unlike the one before it.
+    addForestReferrals(TimeUnit.SECONDS.toMillis(10));
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+    requests.clear();
+
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+
+    assertThat(requests).containsExactly("krbtgt/TARGET.COM@FOREST.COM");
+  }
+
+  @Test
+  public void testEvictedTicketIsObtainedAgain() throws Exception {
+    addForestReferrals(HOUR_MILLIS);
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+    requests.clear();
+
+    cache.evict(CLIENT, "TARGET.COM");
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+
+    assertThat(requests).containsExactly("krbtgt/TARGET.COM@FOREST.COM");
+  }
+
+  @Test
+  public void testDropsPathWithoutUsableTickets() throws Exception {
+    addForestReferrals(HOUR_MILLIS);
+    referrals.put(
+        "krbtgt/OTHER.COM@HOME.COM", makeTicket(CLIENT, "krbtgt/OTHER.COM@HOME.COM", HOUR_MILLIS));
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+
+    // Once none of the TGTs on the way is usable, the next walk drops the path.
+    cache.evict(CLIENT, "FOREST.COM");
+    cache.evict(CLIENT, "TARGET.COM");
+    cache.getTicketGrantingTicket(CLIENT, tgt, "OTHER.COM", this::requestTicket);
+
+    assertThat(cache.getPath(CLIENT, "TARGET.COM")).isNull();
+    assertThat(cache.getPath(CLIENT, "OTHER.COM")).containsExactly("OTHER.COM");
+  }
+
+  @Test
+  public void testDoesNotKeepPathOfShortLivedTickets() throws Exception {
+    long tooShortMillis = TimeUnit.SECONDS.toMillis(10);
+    referrals.put(
+        "krbtgt/TARGET.COM@HOME.COM",
+        makeTicket(CLIENT, "krbtgt/FOREST.COM@HOME.COM", tooShortMillis));
+    referrals.put(
+        "krbtgt/TARGET.COM@FOREST.COM",
+        makeTicket(CLIENT, "krbtgt/TARGET.COM@FOREST.COM", tooShortMillis));
+
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+
+    assertThat(cache.getPath(CLIENT, "TARGET.COM")).isNull();
+  }
+
+  @Test(expected = KrbException.class)
+  public void testReferralLoopFails() throws Exception {
+    referrals.put(
+        "krbtgt/TARGET.COM@HOME.COM",
+        makeTicket(CLIENT, "krbtgt/FOREST.COM@HOME.COM", HOUR_MILLIS));
+    referrals.put(
+        "krbtgt/TARGET.COM@FOREST.COM",
+        makeTicket(CLIENT, "krbtgt/HOME.COM@FOREST.COM", HOUR_MILLIS));
+
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+  }
+
+  @Test
+  public void testClearClient() throws Exception {
+    addForestReferrals(HOUR_MILLIS);
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+    requests.clear();
+
+    cache.clearClient(CLIENT);
+
+    assertThat(cache.getPath(CLIENT, "TARGET.COM")).isNull();
+    cache.getTicketGrantingTicket(CLIENT, tgt, "TARGET.COM", this::requestTicket);
+    assertThat(requests).hasSize(2);
+  }
+
+  @Test
+  public void testGetTicketRealm() {
+    assertThat(CrossRealmTicketCache.getTicketRealm(tgt)).isEqualTo("HOME.COM");
+    assertThat(
+            CrossRealmTicketCache.getTicketRealm(
+                makeTicket(CLIENT, "HTTP/intranet.example.com@HOME.COM", HOUR_MILLIS)))
+        .isNull();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.ietf.jgss.GSSName;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import sun.security.jgss.GSSUtil;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class GssEngineTest {
+  private final GssEngine engine = GssEngine.getInstance();
+
+  @Test
+  public void testSupportsSpnegoAndKerberos() throws Exception {
+    engine.warmUp();
+
+    assertThat(engine.getMechanisms()).contains(GssEngine.SPNEGO_MECHANISM.toString());
+    assertThat(engine.getMechanisms()).contains(GssEngine.KRB5_MECHANISM.toString());
+    assertThat(engine.getMechanisms()).isSameAs(engine.getMechanisms());
+  }
+
+  @Test
+  public void testCreateServiceName() throws Exception {
+    GSSName name =
+        engine.createServiceName(
+            "HTTP/intranet.example.com@EXAMPLE.COM", GSSUtil.NT_GSS_KRB5_PRINCIPAL);
+
+    assertThat(name.toString()).isEqualTo("HTTP/intranet.example.com@EXAMPLE.COM");
+    assertThat(name.isMN()).isTrue();
+  }
+
+  @Test
+  public void testCreateContext() throws Exception {
+    GSSName name =
+        engine.createServiceName(
+            "HTTP/intranet.example.com@EXAMPLE.COM", GSSUtil.NT_GSS_KRB5_PRINCIPAL);
+
+    // Creating the context does not talk to the KDC yet.
+    assertThat(engine.createContext(name).isEstablished()).isFalse();
+  }
+}
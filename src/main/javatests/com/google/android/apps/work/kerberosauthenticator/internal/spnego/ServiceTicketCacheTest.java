@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.internal.spnego.TestHelper.makeTicket;
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class ServiceTicketCacheTest {
+  private static final String CLIENT = "user@EXAMPLE.COM";
+  private static final String OTHER_CLIENT = "other@EXAMPLE.COM";
+  private static final String SERVICE = "HTTP@intranet";
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final ServiceTicketCache cache = ServiceTicketCache.getInstance();
+
+  @After
+  public void tearDown() {
+    cache.clear();
+  }
+
+  @Test
+  public void testGetMissingTicket() {
+    assertThat(cache.get(CLIENT, SERVICE)).isNull();
+  }
+
+  @Test
+  public void testGetCachedTicket() {
+    KerberosTicket ticket = makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1));
+    cache.put(CLIENT, SERVICE, ticket);
+    assertThat(cache.get(CLIENT, SERVICE)).isSameAs(ticket);
+  }
+
+  @Test
+  public void testTicketsAreKeyedByClient() {
+    cache.put(CLIENT, SERVICE, makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1)));
+    assertThat(cache.get(OTHER_CLIENT, SERVICE)).isNull();
+  }
+
+  @Test
+  public void testExpiringTicketIsNotCached() {
+    cache.put(CLIENT, SERVICE, makeTicket(CLIENT, TimeUnit.SECONDS.toMillis(10)));
+    assertThat(cache.get(CLIENT, SERVICE)).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDestroyedTicketIsEvicted() throws Exception {
+    KerberosTicket ticket = makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1));
+    cache.put(CLIENT, SERVICE, ticket);
+    ticket.destroy();
+    assertThat(cache.get(CLIENT, SERVICE)).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testClear() {
+    cache.put(CLIENT, SERVICE, makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1)));
+    cache.clear();
+    assertThat(cache.get(CLIENT, SERVICE)).isNull();
+  }
+
+  @Test
+  public void testClearClient() {
+    cache.put(CLIENT, SERVICE, makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1)));
+    KerberosTicket otherTicket = makeTicket(OTHER_CLIENT, TimeUnit.HOURS.toMillis(1));
+    cache.put(OTHER_CLIENT, SERVICE, otherTicket);
+
+    cache.clearClient(CLIENT);
+
+    assertThat(cache.get(CLIENT, SERVICE)).isNull();
+    assertThat(cache.get(OTHER_CLIENT, SERVICE)).isSameAs(otherTicket);
+  }
+
+  @Test
+  public void testStoredTicketOutlivesCache() {
+    File file = new File(temporaryFolder.getRoot(), "service_tickets");
+    byte[] keys = new byte[64];
+    ServiceTicketCache firstCache = new ServiceTicketCache();
+    firstCache.setStore(new ServiceTicketStore(file, () -> keys));
+    KerberosTicket ticket = makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1));
+    firstCache.put(CLIENT, SERVICE, ticket);
+    firstCache.flushWrites();
+
+    // As after the process was restarted.
+    ServiceTicketCache secondCache = new ServiceTicketCache();
+    secondCache.setStore(new ServiceTicketStore(file, () -> keys));
+    KerberosTicket storedTicket = secondCache.get(CLIENT, SERVICE);
+    assertThat(storedTicket).isNotNull();
+    assertThat(storedTicket.getEncoded()).isEqualTo(ticket.getEncoded());
+    assertThat(secondCache.get(CLIENT, SERVICE)).isSameAs(storedTicket);
+    assertThat(secondCache.get(OTHER_CLIENT, SERVICE)).isNull();
+  }
+
+  @Test
+  public void testClearedTicketIsNotReadBackFromStore() {
+    ServiceTicketCache storingCache = new ServiceTicketCache();
+    storingCache.setStore(
+        new ServiceTicketStore(
+            new File(temporaryFolder.getRoot(), "service_tickets"), () -> new byte[64]));
+    storingCache.put(CLIENT, SERVICE, makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1)));
+
+    // The store is read behind the queued writes, including the one dropping the ticket.
+    storingCache.clear();
+
+    assertThat(storingCache.get(CLIENT, SERVICE)).isNull();
+  }
+
+  @Test
+  public void testGetOrAcquireCachesAcquiredTicket() {
+    KerberosTicket ticket = makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1));
+    assertThat(cache.getOrAcquire(CLIENT, SERVICE, () -> ticket)).isSameAs(ticket);
+    assertThat(cache.get(CLIENT, SERVICE)).isSameAs(ticket);
+  }
+
+  @Test
+  public void testGetOrAcquireFailureIsNotCached() {
+    assertThat(cache.getOrAcquire(CLIENT, SERVICE, () -> null)).isNull();
+
+    KerberosTicket ticket = makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1));
+    assertThat(cache.getOrAcquire(CLIENT, SERVICE, () -> ticket)).isSameAs(ticket);
+  }
+
+  @Test
+  public void testGetOrAcquireCoalescesConcurrentRequests() throws Exception {
+    KerberosTicket ticket = makeTicket(CLIENT, TimeUnit.HOURS.toMillis(1));
+    CountDownLatch acquiring = new CountDownLatch(1);
+    CountDownLatch releaseTicket = new CountDownLatch(1);
+    AtomicInteger acquisitions = new AtomicInteger();
+    Supplier<KerberosTicket> acquirer =
+        () -> {
+          acquisitions.incrementAndGet();
+          acquiring.countDown();
+          try {
+            releaseTicket.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return ticket;
+        };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<KerberosTicket> first =
+          executor.submit(() -> cache.getOrAcquire(CLIENT, SERVICE, acquirer));
+      acquiring.await();
+      Future<KerberosTicket> second =
+          executor.submit(() -> cache.getOrAcquire(CLIENT, SERVICE, acquirer));
+      // Give the second request the chance to ask the KDC itself, which it should not do.
+      Thread.sleep(100);
+      releaseTicket.countDown();
+
+      assertThat(first.get(5, TimeUnit.SECONDS)).isSameAs(ticket);
+      assertThat(second.get(5, TimeUnit.SECONDS)).isSameAs(ticket);
+      assertThat(acquisitions.get()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.android.apps.work.kerberosauthenticator.internal.spnego.TestHelper.makeTicket;
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class ServiceTicketStoreTest {
+  private static final String CLIENT = "user@EXAMPLE.COM";
+  private static final String OTHER_CLIENT = "other@EXAMPLE.COM";
+  private static final String SERVICE = "HTTP@intranet";
+  private static final String OTHER_SERVICE = "HTTP@wiki";
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final byte[] keys = new byte[64];
+  private File file;
+
+  @Before
+  public void setUp() {
+    Arrays.fill(keys, (byte) 7);
+    file = new File(temporaryFolder.getRoot(), "service_tickets");
+  }
+
+  private ServiceTicketStore newStore() {
+    return new ServiceTicketStore(file, () -> keys.clone());
+  }
+
+  private static void assertSameTicket(KerberosTicket actual, KerberosTicket expected) {
+    assertThat(actual).isNotNull();
+    assertThat(actual.getEncoded()).isEqualTo(expected.getEncoded());
+    assertThat(actual.getClient().getName()).isEqualTo(expected.getClient().getName());
+    assertThat(actual.getServer().getName()).isEqualTo(expected.getServer().getName());
+    assertThat(actual.getEndTime()).isEqualTo(expected.getEndTime());
+  }
+
+  @Test
+  public void testTicketOutlivesStore() {
+    KerberosTicket ticket = makeTicket(CLIENT, HOUR_MILLIS);
+    newStore().put(CLIENT, SERVICE, ticket);
+
+    ServiceTicketStore store = newStore();
+    assertSameTicket(store.get(CLIENT, SERVICE, System.currentTimeMillis()), ticket);
+    assertThat(store.get(CLIENT, OTHER_SERVICE, System.currentTimeMillis())).isNull();
+    assertThat(store.get(OTHER_CLIENT, SERVICE, System.currentTimeMillis())).isNull();
+  }
+
+  @Test
+  public void testLatestTicketWins() {
+    ServiceTicketStore store = newStore();
+    store.put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+    KerberosTicket newTicket = makeTicket(CLIENT, 2 * HOUR_MILLIS);
+    store.put(CLIENT, SERVICE, newTicket);
+
+    assertSameTicket(newStore().get(CLIENT, SERVICE, System.currentTimeMillis()), newTicket);
+  }
+
+  @Test
+  public void testEndedTicketIsNotReturned() {
+    newStore().put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+
+    assertThat(newStore().get(CLIENT, SERVICE, System.currentTimeMillis() + 2 * HOUR_MILLIS))
+        .isNull();
+  }
+
+  @Test
+  public void testTicketsAreEncrypted() throws Exception {
+    KerberosTicket ticket = makeTicket(CLIENT, HOUR_MILLIS);
+    newStore().put(CLIENT, SERVICE, ticket);
+
+    String contents = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+    assertThat(contents).doesNotContain(CLIENT);
+    assertThat(contents).doesNotContain("intranet");
+  }
+
+  @Test
+  public void testStoreOfOtherKeysIsDiscarded() {
+    newStore().put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+    keys[0] = 8;
+
+    ServiceTicketStore store = newStore();
+    assertThat(store.get(CLIENT, SERVICE, System.currentTimeMillis())).isNull();
+    KerberosTicket ticket = makeTicket(CLIENT, HOUR_MILLIS);
+    store.put(CLIENT, SERVICE, ticket);
+    assertSameTicket(newStore().get(CLIENT, SERVICE, System.currentTimeMillis()), ticket);
+  }
+
+  @Test
+  public void testPartialRecordIsDropped() throws Exception {
+    KerberosTicket ticket = makeTicket(CLIENT, HOUR_MILLIS);
+    ServiceTicketStore store = newStore();
+    store.put(CLIENT, SERVICE, ticket);
+    store.put(CLIENT, OTHER_SERVICE, ticket);
+    // The process died while appending the second record.
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.setLength(out.length() - 5);
+    }
+
+    store = newStore();
+    assertSameTicket(store.get(CLIENT, SERVICE, System.currentTimeMillis()), ticket);
+    assertThat(store.get(CLIENT, OTHER_SERVICE, System.currentTimeMillis())).isNull();
+    store.put(CLIENT, OTHER_SERVICE, ticket);
+    assertSameTicket(newStore().get(CLIENT, OTHER_SERVICE, System.currentTimeMillis()), ticket);
+  }
+
+  @Test
+  public void testTamperedRecordIsDropped() throws Exception {
+    newStore().put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.seek(out.length() - 1);
+      int last = out.read();
+      out.seek(out.length() - 1);
+      out.write(last ^ 1);
+    }
+
+    assertThat(newStore().get(CLIENT, SERVICE, System.currentTimeMillis())).isNull();
+  }
+
+  @Test
+  public void testLogIsCompacted() {
+    ServiceTicketStore store = newStore();
+    KerberosTicket ticket = makeTicket(CLIENT, HOUR_MILLIS);
+    store.put(CLIENT, OTHER_SERVICE, ticket);
+    for (int i = 0; i < 3 * ServiceTicketStore.MIN_DEAD_RECORDS; i++) {
+      store.put(CLIENT, SERVICE, ticket);
+    }
+
+    assertThat(store.getRecordCount()).isAtMost(ServiceTicketStore.MIN_DEAD_RECORDS + 2);
+    store = newStore();
+    assertThat(store.getRecordCount()).isAtMost(ServiceTicketStore.MIN_DEAD_RECORDS + 2);
+    assertSameTicket(store.get(CLIENT, SERVICE, System.currentTimeMillis()), ticket);
+    assertSameTicket(store.get(CLIENT, OTHER_SERVICE, System.currentTimeMillis()), ticket);
+  }
+
+  @Test
+  public void testRemoveClient() {
+    ServiceTicketStore store = newStore();
+    store.put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+    KerberosTicket otherTicket = makeTicket(OTHER_CLIENT, HOUR_MILLIS);
+    store.put(OTHER_CLIENT, SERVICE, otherTicket);
+
+    store.removeClient(CLIENT);
+
+    store = newStore();
+    assertThat(store.getRecordCount()).isEqualTo(1);
+    assertThat(store.get(CLIENT, SERVICE, System.currentTimeMillis())).isNull();
+    assertSameTicket(store.get(OTHER_CLIENT, SERVICE, System.currentTimeMillis()), otherTicket);
+  }
+
+  @Test
+  public void testClear() {
+    ServiceTicketStore store = newStore();
+    store.put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+
+    store.clear();
+
+    assertThat(file.exists()).isFalse();
+    assertThat(newStore().get(CLIENT, SERVICE, System.currentTimeMillis())).isNull();
+  }
+
+  @Test
+  public void testUnavailableKeysDisableStore() {
+    ServiceTicketStore store =
+        new ServiceTicketStore(
+            file,
+            () -> {
+              throw new KeyStoreException("No Keystore");
+            });
+
+    store.put(CLIENT, SERVICE, makeTicket(CLIENT, HOUR_MILLIS));
+
+    assertThat(store.get(CLIENT, SERVICE, System.currentTimeMillis())).isNull();
+    assertThat(file.exists()).isFalse();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import com.google.android.apps.work.kerberosauthenticator.internal.FakeKdc;
+import com.google.android.apps.work.kerberosauthenticator.internal.KerberosContext;
+import com.google.android.apps.work.kerberosauthenticator.internal.TicketRequestResult;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures building a SPNEGO token once the service ticket is cached, which is what most
+ * requests from Chrome come down to. The tickets are issued by a {@link FakeKdc}, so no KDC is
+ * needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpnegoTicketRequestBenchmark {
+  private static final String REALM = "EXAMPLE.COM";
+  // Resolves locally, so that canonicalizing the service's host name does not need DNS.
+  private static final String SERVICE = "localhost";
+  private static final long LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(10);
+
+  private SpnegoTicketRequest request;
+
+  @Setup
+  public void setUp() throws Exception {
+    FakeKdc kdc = new FakeKdc(REALM);
+    Subject subject = kdc.login("user", LIFETIME_MILLIS);
+    KerberosPrincipal client = subject.getPrincipals(KerberosPrincipal.class).iterator().next();
+    ServiceTicketCache.getInstance()
+        .put(
+            client.getName(),
+            "HTTP@" + SERVICE,
+            kdc.issueServiceTicket(client, SERVICE, LIFETIME_MILLIS));
+    request =
+        new SpnegoTicketRequest(
+            new KerberosContext(
+                REALM, Collections.singletonList("kdc.example.com"), subject, false));
+
+    TicketRequestResult result = request.execute(SERVICE);
+    if (!result.successful()) {
+      throw new IllegalStateException(String.format("Cannot build SPNEGO token: %s", result));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    ServiceTicketCache.getInstance().clear();
+  }
+
+  @Benchmark
+  public String buildSpnegoToken() {
+    request.execute(SERVICE);
+    return request.getSpnegoTicket();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public final class SpnegoTicketRequestTest {
+  @Test
+  public void testServicePrincipalInKnownRealm() {
+    // Named by the full host name, as the service is registered in the directory.
+    assertThat(SpnegoTicketRequest.getServicePrincipal("wiki.corp.example.com", "CORP.EXAMPLE.COM"))
+        .isEqualTo("HTTP/wiki.corp.example.com@CORP.EXAMPLE.COM");
+  }
+
+  @Test
+  public void testServicePrincipalInUnknownRealm() {
+    // The GSS layer canonicalizes the host-based name.
+    assertThat(SpnegoTicketRequest.getServicePrincipal("wiki", null)).isEqualTo("HTTP@wiki");
+  }
+}
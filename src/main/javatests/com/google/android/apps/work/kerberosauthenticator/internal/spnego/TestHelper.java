@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.work.kerberosauthenticator.internal.spnego;
+
+import java.util.Date;
+import krb.javax.security.auth.kerberos.KerberosPrincipal;
+import krb.javax.security.auth.kerberos.KerberosTicket;
+
+public class TestHelper {
+  static final String SERVER = "HTTP/intranet.example.com@EXAMPLE.COM";
+
+  /** Returns a ticket of the client to {@link #SERVER}, valid from now on for the given time. */
+  static KerberosTicket makeTicket(String client, long validForMillis) {
+    return makeTicket(client, SERVER, validForMillis);
+  }
+
+  /** Returns a ticket of the client to the server, valid from now on for the given time. */
+  static KerberosTicket makeTicket(String client, String server, long validForMillis) {
+    long now = System.currentTimeMillis();
+    return new KerberosTicket(
+        new byte[] {1, 2, 3},
+        new KerberosPrincipal(client),
+        new KerberosPrincipal(server),
+        new byte[16],
+        17 /* aes128-cts-hmac-sha1-96 */,
+        new boolean[32],
+        new Date(now),
+        new Date(now),
+        new Date(now + validForMillis),
+        null,
+        null);
+  }
+}